@@ -17,9 +17,15 @@
  package com.google.codelabs;
 
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -28,9 +34,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import com.google.api.gax.longrunning.OperationFuture;
+import com.google.cloud.Date;
 import com.google.cloud.Timestamp;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryException;
@@ -58,6 +68,17 @@ import com.opencsv.CSVReader;
 
 public class App {
 
+  // Fixed set of categories the model may assign to a transaction
+  static final List<String> CATEGORIES = Arrays.asList("Entertainment", "Gifts", "Groceries",
+      "Investment", "Medical", "Movies", "Online Shopping", "Other", "Purchases", "Refund",
+      "Restaurants", "Salary", "Transfer", "Transportation", "Utilities");
+
+  // Prompt to instruct the LLM how to categorize the transactions, followed by the description
+  static final String CATEGORIZE_PROMPT = "Categorize the following financial activity into one "
+      + "of these categories: " + String.join(", ", CATEGORIES) + ". Return Other if the "
+      + "description cannot be mapped to one of these categories.  Only return the exact category "
+      + "string, no other text or punctuation or reasoning. Description: ";
+
   // Create the Spanner database and schema
   public static void create(DatabaseAdminClient dbAdminClient, DatabaseId db,
       String location, String model) {
@@ -115,6 +136,21 @@ public class App {
       "CREATE SEARCH INDEX TransactionLedgerTextSearch\n"
           + "ON TransactionLedger(CategoryTokens, DescriptionTokens)",
 
+      "CREATE TABLE SpendingRollup (\n"
+          + "  AccountId INT64 NOT NULL,\n"
+          + "  Category STRING(256) NOT NULL,\n"
+          + "  Day DATE NOT NULL,\n"
+          + "  TotalDebits NUMERIC NOT NULL\n"
+          + ") PRIMARY KEY (AccountId, Category, Day),\n"
+          + "INTERLEAVE IN PARENT Accounts ON DELETE CASCADE",
+
+      "CREATE TABLE CategorizeCheckpoints (\n"
+          + "  RangeStart INT64 NOT NULL,\n"
+          + "  RangeEnd INT64 NOT NULL,\n"
+          + "  LastAccountId INT64 NOT NULL,\n"
+          + "  LastTransactionId INT64 NOT NULL\n"
+          + ") PRIMARY KEY (RangeStart, RangeEnd)",
+
       "CREATE MODEL TransactionCategoryModel\n"
           + "INPUT (prompt STRING(MAX))\n"
           + "OUTPUT (content STRING(MAX))\n"
@@ -217,6 +253,7 @@ public class App {
             Instant currentTimestamp = startTime;
 
             Map<Long, BigDecimal> balanceChanges = new HashMap<>();
+            Map<List<Object>, BigDecimal> rollupChanges = new HashMap<>();
             while ((line = reader.readNext()) != null) {
               long accountId = Long.parseLong(line[1]);
               String transactionType = line[2];
@@ -235,7 +272,7 @@ public class App {
                 .bind("transactionType").to(transactionType)
                 .bind("amount").to(amount)
                 .bind("timestamp").to(timestamp)
-                .bind("category").to(line[5])
+                .bind("category").to(line[5].isEmpty() ? null : line[5])
                 .bind("description").to(line[6])
                 .build();
               statements.add(statement);
@@ -247,6 +284,10 @@ public class App {
                 balanceChanges.put(accountId, balanceChange.add(amount));
               } else if ("Debit".equalsIgnoreCase(transactionType)) {
                 balanceChanges.put(accountId, balanceChange.subtract(amount));
+                List<Object> rollupKey = Arrays.asList(accountId, line[5],
+                    rollupDay(currentTimestamp));
+                rollupChanges.put(rollupKey,
+                    rollupChanges.getOrDefault(rollupKey, BigDecimal.ZERO).add(amount));
               } else {
                 System.err.println("Unsupported transaction type: " + transactionType);
                 continue;
@@ -276,6 +317,13 @@ public class App {
               }
             }
 
+            // Add the new debits to the per account, category and day spending totals
+            for (Map.Entry<List<Object>, BigDecimal> entry : rollupChanges.entrySet()) {
+              List<Object> rollupKey = entry.getKey();
+              statements.add(addToSpendingRollup((Long) rollupKey.get(0),
+                  (String) rollupKey.get(1), (Date) rollupKey.get(2), entry.getValue()));
+            }
+
             transaction.batchUpdate(statements);
             System.out.println("Inserted " + count + " transactions");
           }
@@ -283,35 +331,102 @@ public class App {
         });
   }
 
-  // Use Vertex AI to set the category of transactions
-  public static void categorize(DatabaseClient dbClient) {
+  // Use Vertex AI to set the category of all transactions. Each batch moves its debits between
+  // SpendingRollup rows in the same transaction as the new categories, so the rollup stays in sync
+  // without rewriting it as a whole.
+  public static void categorize(DatabaseClient dbClient, int batchSize, int parallelism) {
     System.out.println("Categorizing transactions...");
-    try {
-      // Create a prompt to instruct the LLM how to categorize the transactions
-      String categories = String.join(", ", Arrays.asList("Entertainment", "Gifts", "Groceries",
-          "Investment", "Medical", "Movies", "Online Shopping", "Other", "Purchases", "Refund",
-          "Restaurants", "Salary", "Transfer", "Transportation", "Utilities"));
-      String prompt = "Categorize the following financial activity into one of these "
-          + "categories: " +  categories + ". Return Other if the description cannot be mapped to "
-          + "one of these categories.  Only return the exact category string, no other text or "
-          + "punctuation or reasoning. Description: ";
-      String sql = "UPDATE TransactionLedger SET Category = (\n"
-          + "  SELECT content FROM ML.PREDICT(MODEL `TransactionCategoryModel`, (\n"
-          + "    SELECT CONCAT('" + prompt + "', CASE WHEN TRIM(Description) = ''\n"
-          + "    THEN 'Other' ELSE Description END) AS prompt\n"
-          + "  ))\n"
-          + ") WHERE TRUE";
-
-      // Use partitioned update to batch update a large number of rows
-      dbClient.executePartitionedUpdate(Statement.of(sql));
-      System.out.println("Completed categorizing transactions");
-    } catch (SpannerException e) {
-      throw e;
+    long start = System.nanoTime();
+    Categorizer categorizer = new Categorizer(dbClient, new Categorizer.SpannerModel(dbClient),
+        batchSize, parallelism, /* recategorize= */ true);
+    categorizer.run();
+    System.out.println("Categorized " + categorizer.getRowsCategorized() + " transactions with "
+        + categorizer.getModelCalls() + " model calls in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    System.out.println("Completed categorizing transactions");
+  }
+
+  // Use Vertex AI to set the category of only the transactions that do not have one yet
+  public static void categorizeIncremental(DatabaseClient dbClient, int batchSize,
+      int parallelism) {
+    System.out.println("Categorizing new transactions...");
+    long start = System.nanoTime();
+    // Repeated descriptions and keyword matches are answered locally, only misses reach the model
+    CachingModel model = new CachingModel(new Categorizer.SpannerModel(dbClient));
+    Categorizer categorizer = new Categorizer(dbClient, model, batchSize, parallelism);
+    categorizer.run();
+    // The caching model only calls the remote model for descriptions it cannot answer itself
+    System.out.println("Categorized " + categorizer.getRowsCategorized() + " transactions with "
+        + model.getModelCalls() + " model calls in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    System.out.println(model.stats());
+    System.out.println("Completed categorizing transactions");
+  }
+
+  // Day bucket used by SpendingRollup, in UTC
+  static Date rollupDay(Instant timestamp) {
+    LocalDate day = timestamp.atZone(ZoneOffset.UTC).toLocalDate();
+    return Date.fromYearMonthDay(day.getYear(), day.getMonthValue(), day.getDayOfMonth());
+  }
+
+  // Add an amount to a single SpendingRollup row, creating the row if it does not exist yet
+  static Statement addToSpendingRollup(long accountId, String category, Date day,
+      BigDecimal amount) {
+    return Statement.newBuilder(
+        "INSERT OR UPDATE INTO SpendingRollup (AccountId, Category, Day, TotalDebits)\n"
+            + "SELECT @accountId, @category, @day, @amount + IFNULL((\n"
+            + "  SELECT TotalDebits FROM SpendingRollup\n"
+            + "  WHERE AccountId = @accountId AND Category = @category AND Day = @day), 0)")
+        .bind("accountId").to(accountId)
+        .bind("category").to(category == null ? "" : category)
+        .bind("day").to(day)
+        .bind("amount").to(amount)
+        .build();
+  }
+
+  // Recompute all SpendingRollup rows from the debits in TransactionLedger. Only needed for a
+  // database populated before the rollup existed, as inserts and categorization keep it up to
+  // date. Each transaction rebuilds the rows of a chunk of accounts, so that a commit stays
+  // within the mutation limit and only locks those accounts' rows.
+  public static void refreshSpendingRollup(DatabaseClient dbClient, int accountsPerChunk) {
+    List<Long> accountIds = new ArrayList<>();
+    try (ResultSet resultSet = dbClient.singleUse().executeQuery(
+        Statement.of("SELECT AccountId FROM Accounts ORDER BY AccountId"))) {
+      while (resultSet.next()) {
+        accountIds.add(resultSet.getLong("AccountId"));
+      }
+    }
+    for (int i = 0; i < accountIds.size(); i += accountsPerChunk) {
+      List<Long> chunk = accountIds.subList(i, Math.min(i + accountsPerChunk, accountIds.size()));
+      dbClient
+          .readWriteTransaction()
+          .run(transaction -> {
+            transaction.batchUpdate(Arrays.asList(
+                Statement.newBuilder(
+                    "DELETE FROM SpendingRollup WHERE AccountId IN UNNEST(@accountIds)")
+                    .bind("accountIds").toInt64Array(chunk)
+                    .build(),
+                Statement.newBuilder(
+                    "INSERT INTO SpendingRollup (AccountId, Category, Day, TotalDebits)\n"
+                        + "SELECT AccountId, IFNULL(Category, ''), DATE(Timestamp, 'UTC'),"
+                        + " SUM(Amount)\n"
+                        + "FROM TransactionLedger\n"
+                        + "WHERE TransactionType = 'Debit'\n"
+                        + "  AND AccountId IN UNNEST(@accountIds)\n"
+                        + "GROUP BY 1, 2, 3")
+                    .bind("accountIds").toInt64Array(chunk)
+                    .build()));
+            return null;
+          });
     }
   }
 
   // Get current account balance(s) by customer
   public static void getBalance(DatabaseClient dbClient, long customerId) {
+    getBalance(dbClient, customerId, System.out);
+  }
+
+  public static void getBalance(DatabaseClient dbClient, long customerId, PrintStream out) {
     String query = "SELECT AccountId, Balance\n"
         + "FROM Accounts\n"
         + "WHERE CustomerId = @customerId";
@@ -323,16 +438,92 @@ public class App {
     TimestampBound stalenessBound = TimestampBound.ofMaxStaleness(5, TimeUnit.SECONDS);
     try (ReadOnlyTransaction transaction = dbClient.singleUseReadOnlyTransaction(stalenessBound);
         ResultSet resultSet = transaction.executeQuery(statement);) {
-      System.out.println("Account balances for customer " + customerId + ":");
+      out.println("Account balances for customer " + customerId + ":");
       while (resultSet.next()) {
-        System.out.println("  Account " + resultSet.getLong("AccountId") + ": "
+        out.println("  Account " + resultSet.getLong("AccountId") + ": "
             + resultSet.getBigDecimal("Balance"));
       }
     }
   }
 
+  // Get current account balances for many customers from one consistent snapshot
+  public static void getBalances(DatabaseClient dbClient, List<Long> customerIds, int batchSize,
+      int parallelism, PrintStream out) {
+    String query = "SELECT CustomerId, AccountId, Balance\n"
+        + "FROM Accounts\n"
+        + "WHERE CustomerId IN UNNEST(@customerIds)\n"
+        + "ORDER BY CustomerId, AccountId";
+
+    // All batches read at the same timestamp, so balances are consistent across customers. As in
+    // getBalance, seconds-old data is sufficient and avoids waiting on ongoing transactions.
+    TimestampBound stalenessBound = TimestampBound.ofExactStaleness(5, TimeUnit.SECONDS);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    out.println("Account balances for " + customerIds.size() + " customers:");
+    try (ReadOnlyTransaction transaction = dbClient.readOnlyTransaction(stalenessBound)) {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < customerIds.size(); i += batchSize) {
+        List<Long> batch = customerIds.subList(i, Math.min(i + batchSize, customerIds.size()));
+        Statement statement = Statement.newBuilder(query)
+            .bind("customerIds").toInt64Array(batch)
+            .build();
+        futures.add(executor.submit(() -> {
+          // Buffer one batch and print it as a unit so that batches stream out as they complete
+          StringBuilder sb = new StringBuilder();
+          try (ResultSet resultSet = transaction.executeQuery(statement)) {
+            while (resultSet.next()) {
+              sb.append("  Customer ").append(resultSet.getLong("CustomerId"))
+                  .append(" account ").append(resultSet.getLong("AccountId"))
+                  .append(": ").append(resultSet.getBigDecimal("Balance"))
+                  .append(System.lineSeparator());
+            }
+          }
+          synchronized (out) {
+            out.print(sb);
+            out.flush();
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      if (!futures.isEmpty()) {
+        out.println("Read at " + transaction.getReadTimestamp());
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SpannerException) {
+        throw (SpannerException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw SpannerExceptionFactory.propagateInterrupt(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // Parse customer ids given as a comma-separated list, or as @file with one id per line
+  static List<Long> parseCustomerIds(String arg) throws IOException {
+    List<String> values;
+    if (arg.startsWith("@")) {
+      values = Files.readAllLines(Paths.get(arg.substring(1)));
+    } else {
+      values = Arrays.asList(arg.split(","));
+    }
+    List<Long> customerIds = new ArrayList<>();
+    for (String value : values) {
+      if (!value.trim().isEmpty()) {
+        customerIds.add(Long.parseLong(value.trim()));
+      }
+    }
+    return customerIds;
+  }
+
   // Find customers by email
   public static void findCustomers(DatabaseClient dbClient, String email) {
+    findCustomers(dbClient, email, System.out);
+  }
+
+  public static void findCustomers(DatabaseClient dbClient, String email, PrintStream out) {
     // Query using fuzzy search (ngrams) to allow for spelling mistakes
     String query = "SELECT CustomerId, Email\n"
         + "FROM Customers\n"
@@ -345,9 +536,9 @@ public class App {
 
     try (ReadOnlyTransaction transaction = dbClient.singleUseReadOnlyTransaction();
         ResultSet resultSet = transaction.executeQuery(statement)) {
-      System.out.println("Customer emails matching " + email + " (top 10 matches):");
+      out.println("Customer emails matching " + email + " (top 10 matches):");
       while (resultSet.next()) {
-        System.out.println("  Customer " + resultSet.getLong("CustomerId") + ": "
+        out.println("  Customer " + resultSet.getLong("CustomerId") + ": "
             + resultSet.getString("Email"));
       }
     }
@@ -355,7 +546,21 @@ public class App {
 
   // Get total monthly spending for a customer by category
   public static void getSpending(DatabaseClient dbClient, long customerId, String category) {
-    // Query category using full-text search
+    getSpending(dbClient, customerId, category, System.out);
+  }
+
+  public static void getSpending(DatabaseClient dbClient, long customerId, String category,
+      PrintStream out) {
+    // Known categories are answered from the pre-aggregated rollup, whose size does not depend
+    // on the number of transactions
+    for (String knownCategory : CATEGORIES) {
+      if (knownCategory.equalsIgnoreCase(category.trim())) {
+        getSpendingFromRollup(dbClient, customerId, knownCategory, out);
+        return;
+      }
+    }
+
+    // Query free-form terms using full-text search
     String query = "SELECT SUM(Amount) as TotalSpending\n"
         + "FROM TransactionLedger t\n"
         + "JOIN Accounts a\n"
@@ -371,14 +576,59 @@ public class App {
 
     try (ReadOnlyTransaction transaction = dbClient.singleUseReadOnlyTransaction();
         ResultSet resultSet = transaction.executeQuery(statement);) {
-      System.out.println("Total spending for customer " + customerId + " under category "
+      out.println("Total spending for customer " + customerId + " under category "
+          + category + ":");
+      while (resultSet.next()) {
+        BigDecimal totalSpending = BigDecimal.ZERO;
+        if (!resultSet.isNull("TotalSpending")) {
+          totalSpending = resultSet.getBigDecimal("TotalSpending");
+        }
+        out.println("  " + totalSpending);
+      }
+    }
+  }
+
+  // Get total spending for a customer in one of the fixed categories. Categorized debits are
+  // summed from SpendingRollup; debits without a category yet are found by searching their
+  // description, as for free-form terms. A debit categorized otherwise is not counted even if its
+  // description mentions the category.
+  static void getSpendingFromRollup(DatabaseClient dbClient, long customerId, String category,
+      PrintStream out) {
+    // Day buckets cover the current UTC day and the 30 days before it, and the search over
+    // uncategorized debits uses the same days
+    String query = "SELECT IFNULL((\n"
+        + "  SELECT SUM(r.TotalDebits)\n"
+        + "  FROM Accounts a\n"
+        + "  JOIN SpendingRollup r\n"
+        + "    ON r.AccountId = a.AccountId\n"
+        + "  WHERE a.CustomerId = @customerId\n"
+        + "    AND r.Category = @category\n"
+        + "    AND r.Day >= DATE_SUB(CURRENT_DATE('UTC'), INTERVAL 30 DAY)), 0)\n"
+        + "  + IFNULL((\n"
+        + "  SELECT SUM(t.Amount)\n"
+        + "  FROM TransactionLedger t\n"
+        + "  JOIN Accounts a\n"
+        + "    ON t.AccountId = a.AccountId\n"
+        + "  WHERE t.TransactionType = 'Debit'\n"
+        + "    AND a.CustomerId = @customerId\n"
+        + "    AND IFNULL(t.Category, '') = ''\n"
+        + "    AND DATE(t.Timestamp, 'UTC') >= DATE_SUB(CURRENT_DATE('UTC'), INTERVAL 30 DAY)\n"
+        + "    AND SEARCH(t.DescriptionTokens, @category)), 0) AS TotalSpending";
+    Statement statement = Statement.newBuilder(query)
+        .bind("customerId").to(customerId)
+        .bind("category").to(category)
+        .build();
+
+    try (ReadOnlyTransaction transaction = dbClient.singleUseReadOnlyTransaction();
+        ResultSet resultSet = transaction.executeQuery(statement);) {
+      out.println("Total spending for customer " + customerId + " under category "
           + category + ":");
       while (resultSet.next()) {
         BigDecimal totalSpending = BigDecimal.ZERO;
         if (!resultSet.isNull("TotalSpending")) {
           totalSpending = resultSet.getBigDecimal("TotalSpending");
         }
-        System.out.println("  " + totalSpending);
+        out.println("  " + totalSpending);
       }
     }
   }
@@ -421,6 +671,18 @@ public class App {
     }
   }
 
+  // Keep the Spanner client and session pool warm and serve queries over HTTP
+  public static void serve(DatabaseClient dbClient, int port, int threads) {
+    try {
+      BankingServer server = new BankingServer(dbClient, port, threads);
+      server.serve();
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to start server on port " + port, e);
+    } catch (InterruptedException e) {
+      throw SpannerExceptionFactory.propagateInterrupt(e);
+    }
+  }
+
   // Delete the Spanner database
   public static void delete(DatabaseAdminClient dbAdminClient, DatabaseId db) {
     System.out.println("Deleting Spanner database...");
@@ -446,18 +708,34 @@ public class App {
     System.out.println("  java -jar target/onlinebanking.jar insert");
     System.out.println("      - Insert sample Customers, Accounts, and Transactions into the "
         + "database.\n");
-    System.out.println("  java -jar target/onlinebanking.jar categorize");
-    System.out.println("      - Use AI to categorize transactions in the database.\n");
+    System.out.println("  java -jar target/onlinebanking.jar categorize 50 4");
+    System.out.println("      - Use AI to categorize all transactions in the database, sending "
+        + "batches of 50 descriptions from 4 key ranges in parallel.\n");
+    System.out.println("  java -jar target/onlinebanking.jar categorize incremental 50 4");
+    System.out.println("      - Use AI to categorize only transactions without a category, sending "
+        + "batches of 50 descriptions from 4 key ranges in parallel. Progress is checkpointed so an "
+        + "interrupted run resumes where it stopped. Repeated descriptions and keyword matches are "
+        + "categorized locally and only the rest are sent to the model.\n");
     System.out.println("  java -jar target/onlinebanking.jar query balance 1");
     System.out.println("      - Query customer account balance(s) by customer id.\n");
+    System.out.println("  java -jar target/onlinebanking.jar query balances 1,2,3");
+    System.out.println("      - Query account balances for many customers, given as a comma-separated "
+        + "list or as @file with one id per line, from one consistent snapshot.\n");
     System.out.println("  java -jar target/onlinebanking.jar query email madi");
     System.out.println("      - Find customers by email using fuzzy search.\n");
     System.out.println("  java -jar target/onlinebanking.jar query spending 1 groceries");
-    System.out.println("      - Query customer spending by customer id and category using "
-        + "full-text search.\n");
+    System.out.println("      - Query customer spending by customer id and category. Known "
+        + "categories are summed from the spending rollup, plus uncategorized debits whose "
+        + "description matches; other terms use full-text search.\n");
+    System.out.println("  java -jar target/onlinebanking.jar rollup");
+    System.out.println("      - Rebuild the per account, category and day spending rollup from the "
+        + "transaction ledger, 100 accounts per transaction.\n");
     System.out.println("  java -jar target/onlinebanking.jar campaign campaign1 5000");
     System.out.println("      - Use Federated Queries (BigQuery) to find customers that match a "
         + "marketing campaign by name based on a recent spending threshold.\n");
+    System.out.println("  java -jar target/onlinebanking.jar serve 8080 16");
+    System.out.println("      - Serve the balance, email and spending queries over HTTP on the given "
+        + "port with the given number of request threads, reusing one Spanner session pool.\n");
     System.out.println("  java -jar target/onlinebanking.jar delete");
     System.out.println("      - Delete the sample Cloud Spanner database.");
     System.exit(1);
@@ -507,13 +785,29 @@ public class App {
           }
           break;
         case "categorize":
-          categorize(dbClient);
+          if (args.length >= 2 && args[1].equals("incremental")) {
+            int batchSize = (args.length >= 3) ? Integer.parseInt(args[2]) : 50;
+            int parallelism = (args.length >= 4) ? Integer.parseInt(args[3]) : 4;
+            categorizeIncremental(dbClient, batchSize, parallelism);
+          } else {
+            int batchSize = (args.length >= 2) ? Integer.parseInt(args[1]) : 50;
+            int parallelism = (args.length >= 3) ? Integer.parseInt(args[2]) : 4;
+            categorize(dbClient, batchSize, parallelism);
+          }
           break;
         case "query":
           String queryType = (args.length >= 2) ? args[1] : "";
           if (queryType.equals("balance")) {
             long customerId = (args.length >= 3) ? Long.parseLong(args[2]) : 1L;
             getBalance(dbClient, customerId);
+          } else if (queryType.equals("balances")) {
+            try {
+              List<Long> customerIds = parseCustomerIds((args.length >= 3) ? args[2] : "1");
+              getBalances(dbClient, customerIds, 500, 8, System.out);
+            } catch (IOException e) {
+              System.err.println("Unable to read customer ids: " + e.getMessage());
+              System.exit(1);
+            }
           } else if (queryType.equals("email")) {
             String email = (args.length >= 3) ? args[2] : "";
             findCustomers(dbClient, email);
@@ -525,11 +819,21 @@ public class App {
             printUsageAndExit();
           }
           break;
+        case "rollup":
+          System.out.println("Rebuilding spending rollup...");
+          refreshSpendingRollup(dbClient, 100);
+          System.out.println("Rebuilt spending rollup");
+          break;
         case "campaign":
           String campaignId = (args.length >= 2) ? args[1] : "";
           int threshold = (args.length >= 3) ? Integer.parseInt(args[2]) : 5000;
           campaign(bigquery, db, location, campaignId, threshold);
           break;
+        case "serve":
+          int port = (args.length >= 2) ? Integer.parseInt(args[1]) : 8080;
+          int threads = (args.length >= 3) ? Integer.parseInt(args[2]) : 16;
+          serve(dbClient, port, threads);
+          break;
         case "delete":
           delete(dbAdminClient, db);
           break;
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.codelabs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SpannerException;
+import com.google.cloud.spanner.Statement;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Long-running HTTP front end for the balance, email and spending queries. The Spanner client
+// and its session pool are created once and shared by every request, so each query only pays
+// for its own round trip instead of client startup and session creation.
+public class BankingServer {
+
+  // Number of recent request latencies kept for the steady-state percentiles
+  private static final int LATENCY_WINDOW = 1000;
+
+  private final DatabaseClient dbClient;
+  private final HttpServer httpServer;
+  private final ExecutorService executor;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  private volatile long firstQueryMillis = -1;
+  // Ring buffer of the last LATENCY_WINDOW latencies, the next one is written at
+  // requestCount % LATENCY_WINDOW
+  private final long[] latencies = new long[LATENCY_WINDOW];
+  private long requestCount = 0;
+
+  public BankingServer(DatabaseClient dbClient, int port, int threads) throws IOException {
+    this.dbClient = dbClient;
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+    httpServer.setExecutor(executor);
+    httpServer.createContext("/balance", new QueryHandler() {
+      @Override
+      void query(Map<String, String> params, PrintStream out) {
+        App.getBalance(dbClient, Long.parseLong(required(params, "customerId")), out);
+      }
+    });
+    httpServer.createContext("/email", new QueryHandler() {
+      @Override
+      void query(Map<String, String> params, PrintStream out) {
+        App.findCustomers(dbClient, params.getOrDefault("email", ""), out);
+      }
+    });
+    httpServer.createContext("/spending", new QueryHandler() {
+      @Override
+      void query(Map<String, String> params, PrintStream out) {
+        App.getSpending(dbClient, Long.parseLong(required(params, "customerId")),
+            params.getOrDefault("category", ""), out);
+      }
+    });
+    httpServer.createContext("/stats", exchange -> respond(exchange, 200, stats()));
+  }
+
+  // Warm up the session pool, then serve requests until the JVM is shut down
+  public void serve() throws InterruptedException {
+    // Run a trivial query so that session creation is not charged to the first real request
+    try (ResultSet resultSet = dbClient.singleUse().executeQuery(Statement.of("SELECT 1"))) {
+      while (resultSet.next()) {
+      }
+    }
+    // Measured from JVM start so that client construction and session creation are included
+    firstQueryMillis = System.currentTimeMillis()
+        - ManagementFactory.getRuntimeMXBean().getStartTime();
+    System.out.println("Time to first query: " + firstQueryMillis + " ms");
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      stop();
+      System.err.print(stats());
+      stopped.countDown();
+    }));
+    start();
+    System.out.println("Serving on port " + getPort());
+    stopped.await();
+  }
+
+  void start() {
+    httpServer.start();
+  }
+
+  void stop() {
+    httpServer.stop(1);
+    executor.shutdown();
+  }
+
+  int getPort() {
+    return httpServer.getAddress().getPort();
+  }
+
+  synchronized void recordLatency(long nanos) {
+    latencies[(int) (requestCount % LATENCY_WINDOW)] = nanos;
+    requestCount++;
+  }
+
+  String stats() {
+    long[] sorted;
+    long count;
+    synchronized (this) {
+      count = requestCount;
+      sorted = Arrays.copyOf(latencies, (int) Math.min(count, LATENCY_WINDOW));
+    }
+    Arrays.sort(sorted);
+    StringBuilder sb = new StringBuilder();
+    sb.append("Time to first query (ms): ")
+        .append(firstQueryMillis < 0 ? "n/a" : String.valueOf(firstQueryMillis)).append("\n");
+    sb.append("Requests served: ").append(count).append("\n");
+    if (sorted.length > 0) {
+      sb.append("Latency over last ").append(sorted.length).append(" requests (ms): ")
+          .append("p50=").append(percentileMillis(sorted, 50))
+          .append(" p90=").append(percentileMillis(sorted, 90))
+          .append(" p99=").append(percentileMillis(sorted, 99)).append("\n");
+    }
+    return sb.toString();
+  }
+
+  private static String percentileMillis(long[] sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    long nanos = sorted[Math.max(index, 0)];
+    return String.format("%.2f", nanos / 1_000_000.0);
+  }
+
+  private static String required(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null || value.isEmpty()) {
+      throw new IllegalArgumentException("Missing parameter: " + name);
+    }
+    return value;
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery)
+      throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<>();
+    if (rawQuery == null) {
+      return params;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      }
+    }
+    return params;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  // Runs one of the App queries and returns its output as the response body
+  private abstract class QueryHandler implements HttpHandler {
+
+    abstract void query(Map<String, String> params, PrintStream out);
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = System.nanoTime();
+      ByteArrayOutputStream bout = new ByteArrayOutputStream();
+      int status = 200;
+      try (PrintStream out = new PrintStream(bout, true, "UTF-8")) {
+        query(parseQuery(exchange.getRequestURI().getRawQuery()), out);
+      } catch (NumberFormatException e) {
+        status = 400;
+        bout.write(("Invalid number: " + e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (IllegalArgumentException e) {
+        // Missing parameters and malformed escapes in the query string
+        status = 400;
+        bout.write((e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (SpannerException e) {
+        status = 500;
+        bout.write((e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (RuntimeException e) {
+        // Always answer, so that the client is not left waiting and the latency is recorded
+        status = 500;
+        bout.write(("Internal error: " + e + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      recordLatency(System.nanoTime() - start);
+      respond(exchange, status, bout.toString("UTF-8"));
+    }
+  }
+}
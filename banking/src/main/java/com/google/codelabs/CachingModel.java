@@ -0,0 +1,178 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.codelabs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Categorization stage in front of the remote model. Descriptions repeat heavily in a ledger
+// (payroll, the same merchants, transfers), so each description is first looked up by its exact
+// text, then by a normalized form without case, digits and punctuation, and then matched against
+// keyword rules derived from the fixed category list. Only the remaining descriptions are sent to
+// the wrapped model, once per distinct text, and its answers are cached for later batches.
+public class CachingModel implements Categorizer.Model {
+
+  // Upper bound on entries per cache so that a huge ledger cannot exhaust the heap
+  private static final int MAX_CACHE_ENTRIES = 100_000;
+
+  private final Categorizer.Model model;
+  private final Map<String, String> exactCache = new ConcurrentHashMap<>();
+  private final Map<String, String> normalizedCache = new ConcurrentHashMap<>();
+  private final Map<String, String> keywords = new LinkedHashMap<>();
+
+  private final AtomicLong exactHits = new AtomicLong();
+  private final AtomicLong normalizedHits = new AtomicLong();
+  private final AtomicLong ruleHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong modelCalls = new AtomicLong();
+
+  public CachingModel(Categorizer.Model model) {
+    this.model = model;
+    for (String category : App.CATEGORIES) {
+      if (category.equals("Other")) {
+        continue;
+      }
+      // Match both the category name and its singular form, e.g. "gifts" and "gift"
+      String keyword = normalize(category);
+      keywords.put(keyword, category);
+      if (keyword.endsWith("ies")) {
+        keywords.put(keyword.substring(0, keyword.length() - 3) + "y", category);
+      } else if (keyword.endsWith("s")) {
+        keywords.put(keyword.substring(0, keyword.length() - 1), category);
+      }
+    }
+    // Forms the rules above do not derive
+    keywords.put("movie", "Movies");
+    keywords.put("transport", "Transportation");
+  }
+
+  @Override
+  public List<String> categorize(List<String> descriptions) {
+    List<String> categories = new ArrayList<>(descriptions.size());
+    // Distinct misses by normalized form, so that near duplicates in one batch share a model call
+    Map<String, String> pending = new LinkedHashMap<>();
+    for (String description : descriptions) {
+      String category = lookup(description);
+      categories.add(category);
+      if (category == null) {
+        pending.putIfAbsent(normalize(description), description);
+      }
+    }
+    if (pending.isEmpty()) {
+      return categories;
+    }
+
+    List<String> distinctMisses = new ArrayList<>(pending.values());
+    List<String> predicted = model.categorize(distinctMisses);
+    modelCalls.incrementAndGet();
+    Map<String, String> answers = new HashMap<>();
+    for (int i = 0; i < distinctMisses.size(); i++) {
+      String category = Categorizer.normalize(predicted.get(i));
+      answers.put(normalize(distinctMisses.get(i)), category);
+      put(distinctMisses.get(i), category);
+    }
+    for (int i = 0; i < categories.size(); i++) {
+      if (categories.get(i) == null) {
+        categories.set(i, answers.get(normalize(descriptions.get(i))));
+      }
+    }
+    return categories;
+  }
+
+  // Returns the category without calling the model, or null on a miss
+  private String lookup(String description) {
+    String category = exactCache.get(description);
+    if (category != null) {
+      exactHits.incrementAndGet();
+      return category;
+    }
+    String normalized = normalize(description);
+    category = normalizedCache.get(normalized);
+    if (category != null) {
+      normalizedHits.incrementAndGet();
+      putExact(description, category);
+      return category;
+    }
+    category = matchRule(normalized);
+    if (category != null) {
+      ruleHits.incrementAndGet();
+      put(description, category);
+      return category;
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  // A rule applies only when the description names exactly one category. A keyword matches at
+  // the start of a word and may span several words, e.g. "online shopping".
+  private String matchRule(String normalized) {
+    String phrase = " " + normalized;
+    String match = null;
+    for (Map.Entry<String, String> keyword : keywords.entrySet()) {
+      if (phrase.contains(" " + keyword.getKey())) {
+        if (match != null && !match.equals(keyword.getValue())) {
+          return null;
+        }
+        match = keyword.getValue();
+      }
+    }
+    return match;
+  }
+
+  private void put(String description, String category) {
+    putExact(description, category);
+    if (normalizedCache.size() < MAX_CACHE_ENTRIES) {
+      normalizedCache.put(normalize(description), category);
+    }
+  }
+
+  private void putExact(String description, String category) {
+    if (exactCache.size() < MAX_CACHE_ENTRIES) {
+      exactCache.put(description, category);
+    }
+  }
+
+  // Lower case, with digits and punctuation removed and whitespace collapsed
+  static String normalize(String description) {
+    return description.toLowerCase(Locale.ROOT)
+        .replaceAll("[^\\p{L} ]+", " ")
+        .replaceAll("\\s+", " ")
+        .trim();
+  }
+
+  public long getModelCalls() {
+    return modelCalls.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public String stats() {
+    long hits = exactHits.get() + normalizedHits.get() + ruleHits.get();
+    long total = hits + misses.get();
+    return String.format("Cache hits: exact %d, normalized %d, rules %d; misses %d "
+        + "(hit rate %.1f%%); model calls %d", exactHits.get(), normalizedHits.get(),
+        ruleHits.get(), misses.get(), total == 0 ? 0.0 : 100.0 * hits / total, modelCalls.get());
+  }
+}
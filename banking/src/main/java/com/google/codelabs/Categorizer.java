@@ -0,0 +1,321 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.codelabs;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.cloud.Date;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Key;
+import com.google.cloud.spanner.KeySet;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SpannerExceptionFactory;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+
+// Incrementally categorizes transactions that do not have a category yet, or all transactions
+// when recategorizing. The key space of TransactionLedger is split into AccountId ranges that are
+// processed in parallel; each range is paged through in key order, one batch of descriptions is
+// sent to the model at a time, and the last key written is checkpointed in the same transaction
+// as the new categories so that an interrupted run resumes where it stopped. The same
+// transaction moves the batch's debits between SpendingRollup rows, so the rollup never needs a
+// rebuild.
+public class Categorizer {
+
+  // Assigns a category to each description, in order
+  public interface Model {
+    List<String> categorize(List<String> descriptions);
+  }
+
+  // Model backed by ML.PREDICT on the TransactionCategoryModel remote model
+  public static class SpannerModel implements Model {
+
+    private final DatabaseClient dbClient;
+
+    public SpannerModel(DatabaseClient dbClient) {
+      this.dbClient = dbClient;
+    }
+
+    @Override
+    public List<String> categorize(List<String> descriptions) {
+      Statement statement = Statement.newBuilder(
+          "SELECT content FROM ML.PREDICT(MODEL `TransactionCategoryModel`, (\n"
+              + "  SELECT CONCAT(@prompt, CASE WHEN TRIM(IFNULL(d, '')) = ''\n"
+              + "  THEN 'Other' ELSE d END) AS prompt, o\n"
+              + "  FROM UNNEST(@descriptions) AS d WITH OFFSET o\n"
+              + "))\n"
+              + "ORDER BY o")
+          .bind("prompt").to(App.CATEGORIZE_PROMPT)
+          .bind("descriptions").toStringArray(descriptions)
+          .build();
+      List<String> categories = new ArrayList<>();
+      try (ResultSet resultSet = dbClient.singleUse().executeQuery(statement)) {
+        while (resultSet.next()) {
+          categories.add(resultSet.isNull("content") ? null : resultSet.getString("content"));
+        }
+      }
+      return categories;
+    }
+  }
+
+  private final DatabaseClient dbClient;
+  private final Model model;
+  private final int batchSize;
+  private final int parallelism;
+  private final boolean recategorize;
+
+  private final AtomicLong rowsCategorized = new AtomicLong();
+  private final AtomicLong modelCalls = new AtomicLong();
+
+  public Categorizer(DatabaseClient dbClient, Model model, int batchSize, int parallelism) {
+    this(dbClient, model, batchSize, parallelism, false);
+  }
+
+  // With recategorize, transactions that already have a category are categorized again
+  public Categorizer(DatabaseClient dbClient, Model model, int batchSize, int parallelism,
+      boolean recategorize) {
+    this.dbClient = dbClient;
+    this.model = model;
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.recategorize = recategorize;
+  }
+
+  public long getRowsCategorized() {
+    return rowsCategorized.get();
+  }
+
+  public long getModelCalls() {
+    return modelCalls.get();
+  }
+
+  // Categorize all transactions whose category is NULL, or all transactions when recategorizing
+  public void run() {
+    List<long[]> ranges = splitAccountRanges();
+    // A checkpoint only says that the rows before it have a category, so recategorizing starts
+    // over. Checkpoints it leaves behind are still valid for an incremental run.
+    discardStaleCheckpoints(recategorize ? new ArrayList<>() : ranges);
+
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (long[] range : ranges) {
+        futures.add(executor.submit(() -> categorizeRange(range[0], range[1])));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      throw SpannerExceptionFactory.propagateInterrupt(e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  // Split [min(AccountId), max(AccountId)] into up to parallelism half-open ranges
+  private List<long[]> splitAccountRanges() {
+    List<long[]> ranges = new ArrayList<>();
+    try (ResultSet resultSet = dbClient.singleUse().executeQuery(Statement.of(
+        "SELECT MIN(AccountId) AS MinId, MAX(AccountId) AS MaxId FROM Accounts"))) {
+      if (!resultSet.next() || resultSet.isNull("MinId")) {
+        return ranges;
+      }
+      long min = resultSet.getLong("MinId");
+      long max = resultSet.getLong("MaxId");
+      long step = Math.max(1, (max - min + parallelism) / parallelism);
+      for (long start = min; start <= max; start += step) {
+        ranges.add(new long[] {start, Math.min(start + step, max + 1)});
+      }
+    }
+    return ranges;
+  }
+
+  // Checkpoints only apply to the exact same ranges, so drop those left by a differently split run
+  private void discardStaleCheckpoints(List<long[]> ranges) {
+    Set<Key> current = new HashSet<>();
+    for (long[] range : ranges) {
+      current.add(Key.of(range[0], range[1]));
+    }
+    List<Mutation> deletes = new ArrayList<>();
+    try (ResultSet resultSet = dbClient.singleUse().read("CategorizeCheckpoints", KeySet.all(),
+        Arrays.asList("RangeStart", "RangeEnd"))) {
+      while (resultSet.next()) {
+        Key key = Key.of(resultSet.getLong("RangeStart"), resultSet.getLong("RangeEnd"));
+        if (!current.contains(key)) {
+          deletes.add(Mutation.delete("CategorizeCheckpoints", key));
+        }
+      }
+    }
+    if (!deletes.isEmpty()) {
+      dbClient.write(deletes);
+    }
+  }
+
+  private void categorizeRange(long rangeStart, long rangeEnd) {
+    long[] lastKey = readCheckpoint(rangeStart, rangeEnd);
+    while (true) {
+      List<Struct> rows = readBatch(rangeEnd, lastKey);
+      if (rows.isEmpty()) {
+        break;
+      }
+      List<String> descriptions = new ArrayList<>();
+      for (Struct row : rows) {
+        descriptions.add(row.isNull("Description") ? "" : row.getString("Description"));
+      }
+      List<String> categories = model.categorize(descriptions);
+      modelCalls.incrementAndGet();
+      if (categories.size() != rows.size()) {
+        throw new IllegalStateException("Model returned " + categories.size()
+            + " categories for " + rows.size() + " descriptions");
+      }
+      Struct last = rows.get(rows.size() - 1);
+      lastKey = new long[] {last.getLong("AccountId"), last.getLong("TransactionId")};
+      writeBatch(rangeStart, rangeEnd, rows, categories, lastKey);
+    }
+
+    // The range is done, so a later run should scan it again for newly inserted rows
+    dbClient.write(Arrays.asList(
+        Mutation.delete("CategorizeCheckpoints", Key.of(rangeStart, rangeEnd))));
+  }
+
+  // Returns the last key written for this range, or the key just before the range
+  private long[] readCheckpoint(long rangeStart, long rangeEnd) {
+    Struct row = dbClient.singleUse().readRow("CategorizeCheckpoints",
+        Key.of(rangeStart, rangeEnd), Arrays.asList("LastAccountId", "LastTransactionId"));
+    if (row == null) {
+      return new long[] {rangeStart, Long.MIN_VALUE};
+    }
+    return new long[] {row.getLong("LastAccountId"), row.getLong("LastTransactionId")};
+  }
+
+  private List<Struct> readBatch(long rangeEnd, long[] lastKey) {
+    Statement statement = Statement.newBuilder(
+        "SELECT AccountId, TransactionId, TransactionType, Amount, Timestamp, Category,"
+            + " Description\n"
+            + "FROM TransactionLedger\n"
+            + "WHERE (@recategorize OR Category IS NULL)\n"
+            + "  AND ((AccountId = @lastAccountId AND TransactionId > @lastTransactionId)\n"
+            + "    OR (AccountId > @lastAccountId AND AccountId < @rangeEnd))\n"
+            + "ORDER BY AccountId, TransactionId\n"
+            + "LIMIT @batchSize")
+        .bind("lastAccountId").to(lastKey[0])
+        .bind("lastTransactionId").to(lastKey[1])
+        .bind("rangeEnd").to(rangeEnd)
+        .bind("batchSize").to(batchSize)
+        .bind("recategorize").to(recategorize)
+        .build();
+    List<Struct> rows = new ArrayList<>();
+    try (ResultSet resultSet = dbClient.singleUse().executeQuery(statement)) {
+      while (resultSet.next()) {
+        rows.add(resultSet.getCurrentRowAsStruct());
+      }
+    }
+    return rows;
+  }
+
+  private void writeBatch(long rangeStart, long rangeEnd, List<Struct> rows,
+      List<String> categories, long[] lastKey) {
+    dbClient
+        .readWriteTransaction()
+        .run(transaction -> {
+          List<Statement> updates = new ArrayList<>();
+          for (int i = 0; i < rows.size(); i++) {
+            Struct row = rows.get(i);
+            // Only update rows whose category has not changed since they were read, so that the
+            // rollup below moves each debit out of the category it is actually counted in
+            updates.add(Statement.newBuilder(
+                "UPDATE TransactionLedger SET Category = @category\n"
+                    + "WHERE AccountId = @accountId AND TransactionId = @transactionId\n"
+                    + "  AND IFNULL(Category, '') = @oldCategory")
+                .bind("category").to(normalize(categories.get(i)))
+                .bind("accountId").to(row.getLong("AccountId"))
+                .bind("transactionId").to(row.getLong("TransactionId"))
+                .bind("oldCategory").to(oldCategory(row))
+                .build());
+          }
+          long[] counts = transaction.batchUpdate(updates);
+
+          // Move the categorized debits from their old to their new spending totals
+          List<Statement> followUps = new ArrayList<>();
+          for (int i = 0; i < rows.size(); i++) {
+            Struct row = rows.get(i);
+            String oldCategory = oldCategory(row);
+            String newCategory = normalize(categories.get(i));
+            if (counts[i] == 0 || !"Debit".equalsIgnoreCase(row.getString("TransactionType"))
+                || oldCategory.equals(newCategory)) {
+              continue;
+            }
+            Timestamp timestamp = row.getTimestamp("Timestamp");
+            Date day = App.rollupDay(
+                Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos()));
+            BigDecimal amount = row.getBigDecimal("Amount");
+            followUps.add(App.addToSpendingRollup(row.getLong("AccountId"), oldCategory, day,
+                amount.negate()));
+            followUps.add(App.addToSpendingRollup(row.getLong("AccountId"), newCategory, day,
+                amount));
+          }
+          followUps.add(Statement.newBuilder(
+              "INSERT OR UPDATE INTO CategorizeCheckpoints\n"
+                  + "(RangeStart, RangeEnd, LastAccountId, LastTransactionId)\n"
+                  + "VALUES (@rangeStart, @rangeEnd, @lastAccountId, @lastTransactionId)")
+              .bind("rangeStart").to(rangeStart)
+              .bind("rangeEnd").to(rangeEnd)
+              .bind("lastAccountId").to(lastKey[0])
+              .bind("lastTransactionId").to(lastKey[1])
+              .build());
+          transaction.batchUpdate(followUps);
+          return null;
+        });
+    rowsCategorized.addAndGet(rows.size());
+  }
+
+  // Category the row is counted under in SpendingRollup, '' when it has none
+  private static String oldCategory(Struct row) {
+    return row.isNull("Category") ? "" : row.getString("Category");
+  }
+
+  // Map the model output to one of the fixed categories, falling back to Other
+  static String normalize(String category) {
+    if (category != null) {
+      String trimmed = category.trim();
+      for (String knownCategory : App.CATEGORIES) {
+        if (knownCategory.equalsIgnoreCase(trimmed)) {
+          return knownCategory;
+        }
+      }
+    }
+    return "Other";
+  }
+}
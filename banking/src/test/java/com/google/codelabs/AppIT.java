@@ -16,17 +16,24 @@
 
 package com.google.codelabs;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import com.google.cloud.spanner.DatabaseAdminClient;
+import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
+import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.Statement;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -56,6 +63,7 @@ public class AppIT {
 
   private static DatabaseId db;
   private static DatabaseAdminClient dbAdminClient;
+  private static Spanner spanner;
 
   private String runSample(String command, String... commandOptions) throws Exception {
     PrintStream stdOut = System.out;
@@ -80,7 +88,7 @@ public class AppIT {
     System.setProperty("SPANNER_DATABASE", databaseId);
 
     SpannerOptions options = SpannerOptions.newBuilder().build();
-    Spanner spanner = options.getService();
+    spanner = options.getService();
 
     db = DatabaseId.of(options.getProjectId(), instanceId, databaseId);
     dbAdminClient = spanner.getDatabaseAdminClient();
@@ -111,19 +119,94 @@ public class AppIT {
     out = runSample("insert", "transactions");
     assertTrue(out.contains("Inserted") && out.contains("transactions"));
 
+    // Nothing is categorized yet, so the 50.00 of groceries at SuperMart is found by description
+    out = runSample("query", "spending", "1", "groceries");
+    assertTrue(out, spendingTotal(out).compareTo(new BigDecimal("50.00")) >= 0);
+
+    // Use a local stand-in for the remote model to check that only new rows are categorized and
+    // that repeated descriptions are answered from the cache
+    DatabaseClient dbClient = spanner.getDatabaseClient(db);
+    AtomicLong modelRows = new AtomicLong();
+    CachingModel cachingModel = new CachingModel(descriptions -> {
+      modelRows.addAndGet(descriptions.size());
+      return Collections.nCopies(descriptions.size(), "Other");
+    });
+    Categorizer categorizer = new Categorizer(dbClient, cachingModel, 10, 4);
+    categorizer.run();
+    assertTrue(categorizer.getRowsCategorized() > 0);
+    assertTrue(modelRows.get() < categorizer.getRowsCategorized());
+    Categorizer rerun = new Categorizer(dbClient,
+        descriptions -> Collections.nCopies(descriptions.size(), "Other"), 10, 4);
+    rerun.run();
+    assertEquals(0, rerun.getRowsCategorized());
+
+    // Every debit moved to Other in the rollup, including the one that mentions groceries
+    BigDecimal otherSpending = ledgerSpending(dbClient, 1, "Other");
+    assertTrue(otherSpending.signum() > 0);
+    assertSpending(otherSpending, runSample("query", "spending", "1", "other"));
+    assertSpending(BigDecimal.ZERO, runSample("query", "spending", "1", "groceries"));
+
     out = runSample("categorize");
     assertTrue(out.contains("Completed categorizing transactions"));
 
+    // Recategorizing moved the debits between rollup rows in step with the ledger
+    for (String category : App.CATEGORIES) {
+      assertSpending(ledgerSpending(dbClient, 1, category),
+          runSample("query", "spending", "1", category));
+    }
+
     out = runSample("query", "email", "madi");
     assertTrue(out.contains("Customer emails matching"));
 
     out = runSample("query", "balance", "1");
     assertTrue(out.contains("Account balances for customer"));
 
+    out = runSample("query", "balances", "1,2,3");
+    assertTrue(out.contains("Account balances for 3 customers"));
+
     out = runSample("query", "spending", "1", "groceries");
     assertTrue(out.contains("Total spending for customer"));
 
+    out = runSample("query", "spending", "1", "supermart");
+    assertTrue(out.contains("Total spending for customer"));
+
+    out = runSample("rollup");
+    assertTrue(out.contains("Rebuilt spending rollup"));
+    for (String category : App.CATEGORIES) {
+      assertSpending(ledgerSpending(dbClient, 1, category),
+          runSample("query", "spending", "1", category));
+    }
+
     // No tests for BigQuery-related functionality
   }
 
+  // Total printed on the last line of a spending query
+  private static BigDecimal spendingTotal(String out) {
+    String[] lines = out.trim().split("\n");
+    return new BigDecimal(lines[lines.length - 1].trim());
+  }
+
+  private static void assertSpending(BigDecimal expected, String out) {
+    assertEquals(out, 0, expected.compareTo(spendingTotal(out)));
+  }
+
+  // Sum a customer's debits in a category straight from the ledger, over the rollup's days
+  private static BigDecimal ledgerSpending(DatabaseClient dbClient, long customerId,
+      String category) {
+    Statement statement = Statement.newBuilder("SELECT IFNULL(SUM(t.Amount), 0) AS Total\n"
+        + "FROM TransactionLedger t\n"
+        + "JOIN Accounts a ON t.AccountId = a.AccountId\n"
+        + "WHERE a.CustomerId = @customerId\n"
+        + "  AND t.TransactionType = 'Debit'\n"
+        + "  AND t.Category = @category\n"
+        + "  AND DATE(t.Timestamp, 'UTC') >= DATE_SUB(CURRENT_DATE('UTC'), INTERVAL 30 DAY)")
+        .bind("customerId").to(customerId)
+        .bind("category").to(category)
+        .build();
+    try (ResultSet resultSet = dbClient.singleUse().executeQuery(statement)) {
+      resultSet.next();
+      return resultSet.getBigDecimal("Total");
+    }
+  }
+
 }
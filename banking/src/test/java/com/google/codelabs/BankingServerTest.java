@@ -0,0 +1,139 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.codelabs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ErrorCode;
+import com.google.cloud.spanner.SpannerExceptionFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+// Runs the server against a client whose every call fails, so no Spanner instance is needed
+@RunWith(JUnit4.class)
+public class BankingServerTest {
+
+  private BankingServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    DatabaseClient failingClient = (DatabaseClient) Proxy.newProxyInstance(
+        DatabaseClient.class.getClassLoader(), new Class<?>[] {DatabaseClient.class},
+        (proxy, method, args) -> {
+          throw SpannerExceptionFactory.newSpannerException(ErrorCode.UNAVAILABLE, "unavailable");
+        });
+    server = new BankingServer(failingClient, 0, 2);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testMissingCustomerIdIsBadRequest() throws Exception {
+    assertEquals(400, get("/balance").status);
+    assertEquals(400, get("/spending?category=groceries").status);
+  }
+
+  @Test
+  public void testInvalidNumberIsBadRequest() throws Exception {
+    Response response = get("/balance?customerId=abc");
+    assertEquals(400, response.status);
+    assertTrue(response.body, response.body.startsWith("Invalid number"));
+  }
+
+  @Test
+  public void testMalformedEscapeIsBadRequest() throws Exception {
+    // Rejected by the HTTP server or by the query string decoding, always with a response
+    assertEquals(400, get("/email?email=%zz").status);
+    assertEquals(400, get("/email?email=%e9%zz").status);
+  }
+
+  @Test
+  public void testSpannerErrorIsServerError() throws Exception {
+    Response response = get("/balance?customerId=1");
+    assertEquals(500, response.status);
+    assertTrue(response.body, response.body.contains("unavailable"));
+  }
+
+  @Test
+  public void testFailedRequestsAreCounted() throws Exception {
+    get("/balance");
+    get("/balance?customerId=abc");
+    get("/balance?customerId=1");
+    Response stats = get("/stats");
+    assertEquals(200, stats.status);
+    assertTrue(stats.body, stats.body.contains("Requests served: 3\n"));
+    assertTrue(stats.body, stats.body.contains("Latency over last 3 requests"));
+  }
+
+  @Test
+  public void testLatencyWindowKeepsMostRecentRequests() {
+    for (int i = 0; i < 1005; i++) {
+      server.recordLatency(i < 5 ? 1_000_000_000L : 1_000_000L);
+    }
+    String stats = server.stats();
+    assertTrue(stats, stats.contains("Requests served: 1005\n"));
+    // The five slow requests were the oldest and have left the window
+    assertTrue(stats, stats.contains("Latency over last 1000 requests (ms): p50=1.00 p90=1.00"
+        + " p99=1.00"));
+  }
+
+  private static class Response {
+    final int status;
+    final String body;
+
+    Response(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  private Response get(String path) throws IOException {
+    URL url = new URL("http://localhost:" + server.getPort() + path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      int status = connection.getResponseCode();
+      try (InputStream in =
+          status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+          body.write(buffer, 0, n);
+        }
+        return new Response(status, new String(body.toByteArray(), StandardCharsets.UTF_8));
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
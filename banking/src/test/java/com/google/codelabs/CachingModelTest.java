@@ -0,0 +1,96 @@
+/*
+ * Copyright 2025 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.codelabs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingModelTest {
+
+  // Descriptions are only sent to the model when no rule matches, and it answers Other
+  private final List<String> modelInput = new ArrayList<>();
+  private final CachingModel model = new CachingModel(descriptions -> {
+    modelInput.addAll(descriptions);
+    return Collections.nCopies(descriptions.size(), "Other");
+  });
+
+  @Test
+  public void testRuleForEachCategory() {
+    assertRule("Entertainment", "Entertainment subscription");
+    assertRule("Gifts", "Birthday gift for Sam");
+    assertRule("Groceries", "Weekly groceries at SuperMart");
+    assertRule("Groceries", "Grocery run");
+    assertRule("Investment", "Monthly investment deposit");
+    assertRule("Medical", "Medical copay");
+    assertRule("Movies", "Movie tickets");
+    assertRule("Online Shopping", "Online shopping order #1234");
+    assertRule("Purchases", "Purchase at hardware store");
+    assertRule("Refund", "Refund from airline");
+    assertRule("Restaurants", "Dinner at restaurant");
+    assertRule("Salary", "Salary credit from Acme Corp.");
+    assertRule("Transfer", "Transfer to savings");
+    assertRule("Transportation", "Public transport pass");
+    assertRule("Transportation", "Transportation: metro card");
+    assertRule("Utilities", "Utility bill payment");
+    assertRule("Utilities", "Utilities for March");
+    assertEquals(Collections.emptyList(), modelInput);
+  }
+
+  @Test
+  public void testOtherComesFromModel() {
+    assertEquals(Arrays.asList("Other"), model.categorize(Arrays.asList("Coffee with Alex")));
+    assertEquals(Arrays.asList("Coffee with Alex"), modelInput);
+    assertEquals(1, model.getModelCalls());
+  }
+
+  @Test
+  public void testSeveralCategoriesGoToModel() {
+    List<String> descriptions = Arrays.asList("Purchased groceries at SuperMart",
+        "Refund of a movie ticket");
+    model.categorize(descriptions);
+    assertEquals(descriptions, modelInput);
+  }
+
+  @Test
+  public void testKeywordOnlyMatchesAtWordStart() {
+    // "gift" inside "regifted" and "online" without "shopping" name no category
+    model.categorize(Arrays.asList("Regifted scarf sold online"));
+    assertEquals(Arrays.asList("Regifted scarf sold online"), modelInput);
+  }
+
+  @Test
+  public void testRepeatedDescriptionsAreCached() {
+    model.categorize(Arrays.asList("Coffee with Alex", "coffee with alex!", "Coffee with Alex"));
+    model.categorize(Arrays.asList("Coffee with Alex"));
+    assertEquals(Arrays.asList("Coffee with Alex"), modelInput);
+    assertEquals(1, model.getModelCalls());
+  }
+
+  private void assertRule(String category, String description) {
+    assertEquals(description, Arrays.asList(category),
+        model.categorize(Arrays.asList(description)));
+  }
+}
@@ -0,0 +1,109 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+/**
+ * Concurrency limit that adapts to the measured latency, after the TCP Vegas congestion control:
+ * the lowest latency seen estimates the latency without queueing, and the limit grows while few
+ * requests are estimated to be queued and shrinks when many are or when requests fail from
+ * overload.
+ */
+final class AdaptiveConcurrencyLimiter {
+
+  // The no-load latency is learned again after this many samples, so that it follows the database
+  // when it becomes slower for good.
+  private static final int PROBE_INTERVAL = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private double limit;
+  private int inFlight;
+  private long rttNoLoadNanos;
+  private long samples;
+
+  AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+    if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Expected 1 <= min <= initial <= max limit, found: %d, %d, %d",
+              minLimit, initialLimit, maxLimit));
+    }
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  /**
+   * Returns whether a request may start now. Every successful call must be matched by a call to
+   * {@link #release} or {@link #abandon}.
+   */
+  synchronized boolean tryAcquire() {
+    if (inFlight >= (int) limit) {
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /**
+   * Ends a request and adapts the limit.
+   *
+   * @param rttNanos how long the request took
+   * @param dropped whether the request failed because the server or the database was overloaded, in
+   *     which case its latency is not used
+   */
+  synchronized void release(long rttNanos, boolean dropped) {
+    int requests = inFlight--;
+    double step = Math.max(1, Math.log10(limit));
+    if (dropped) {
+      setLimit(limit - step);
+      return;
+    }
+    if (rttNoLoadNanos == 0 || rttNanos < rttNoLoadNanos || ++samples % PROBE_INTERVAL == 0) {
+      rttNoLoadNanos = Math.max(1, rttNanos);
+    }
+    if (requests * 2 < limit) {
+      // The limit is not what holds requests back, so their latency says nothing about it.
+      return;
+    }
+    double queued = limit * (1 - (double) rttNoLoadNanos / Math.max(1, rttNanos));
+    if (queued <= 3 * step) {
+      setLimit(limit + step);
+    } else if (queued >= 6 * step) {
+      setLimit(limit - step);
+    }
+  }
+
+  /**
+   * Ends a request without adapting the limit, for requests whose outcome says nothing about load,
+   * such as those cancelled by their client.
+   */
+  synchronized void abandon() {
+    inFlight--;
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  private void setLimit(double newLimit) {
+    limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.cloud.ByteArray;
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical history reads share one query: a read for the same account, time window
+ * and entry count as a read that is still running waits for that read and returns its result, so it
+ * may miss transactions committed after that read started. With a {@link HistoryReadBatcher}, the
+ * remaining concurrent history reads are batched into fewer queries. All other calls go straight to
+ * the wrapped DAO.
+ */
+final class CoalescingSpannerDao implements SpannerDaoInterface {
+
+  private final SpannerDaoInterface spannerDao;
+  private final HistoryReadBatcher historyReadBatcher;
+  private final ConcurrentMap<List<Object>, CompletableFuture<ImmutableList<TransactionEntry>>>
+      historyReads = new ConcurrentHashMap<>();
+  private final AtomicLong coalescedHistoryReads = new AtomicLong();
+
+  CoalescingSpannerDao(SpannerDaoInterface spannerDao) {
+    this(spannerDao, null);
+  }
+
+  /** @param historyReadBatcher batches the history reads of the DAO, or null to read one by one */
+  CoalescingSpannerDao(SpannerDaoInterface spannerDao, HistoryReadBatcher historyReadBatcher) {
+    this.spannerDao = spannerDao;
+    this.historyReadBatcher = historyReadBatcher;
+  }
+
+  @Override
+  public ImmutableList<TransactionEntry> getRecentTransactionsForAccount(
+      ByteArray accountId, Timestamp beginTimestamp, Timestamp endTimestamp, int maxEntryCount)
+      throws StatusException {
+    List<Object> key = Arrays.asList(accountId, beginTimestamp, endTimestamp, maxEntryCount);
+    CompletableFuture<ImmutableList<TransactionEntry>> read = new CompletableFuture<>();
+    CompletableFuture<ImmutableList<TransactionEntry>> inFlight =
+        historyReads.putIfAbsent(key, read);
+    if (inFlight != null) {
+      coalescedHistoryReads.incrementAndGet();
+      ImmutableList<TransactionEntry> entries = await(inFlight);
+      if (entries != null) {
+        return entries;
+      }
+      // The shared read was given up by its caller; read on behalf of this one.
+      return readHistory(accountId, beginTimestamp, endTimestamp, maxEntryCount);
+    }
+    try {
+      ImmutableList<TransactionEntry> entries =
+          readHistory(accountId, beginTimestamp, endTimestamp, maxEntryCount);
+      read.complete(entries);
+      return entries;
+    } catch (StatusException | RuntimeException e) {
+      read.completeExceptionally(e);
+      throw e;
+    } finally {
+      historyReads.remove(key, read);
+    }
+  }
+
+  private ImmutableList<TransactionEntry> readHistory(
+      ByteArray accountId, Timestamp beginTimestamp, Timestamp endTimestamp, int maxEntryCount)
+      throws StatusException {
+    if (historyReadBatcher == null) {
+      return spannerDao.getRecentTransactionsForAccount(
+          accountId, beginTimestamp, endTimestamp, maxEntryCount);
+    }
+    return historyReadBatcher.read(
+        new HistoryQuery(accountId, beginTimestamp, endTimestamp, maxEntryCount));
+  }
+
+  /**
+   * Waits for a shared read within the deadline of the current call.
+   *
+   * @return the entries read, or null if the read was cancelled or timed out for its own caller
+   */
+  private static ImmutableList<TransactionEntry> await(
+      CompletableFuture<ImmutableList<TransactionEntry>> read) throws StatusException {
+    Deadline deadline = Context.current().getDeadline();
+    try {
+      return deadline == null
+          ? read.get()
+          : read.get(deadline.timeRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      Status status = Status.fromThrowable(e.getCause());
+      if (status.getCode() == Status.Code.CANCELLED
+          || status.getCode() == Status.Code.DEADLINE_EXCEEDED) {
+        return null;
+      }
+      throw status.asException();
+    } catch (TimeoutException e) {
+      throw Status.DEADLINE_EXCEEDED
+          .withDescription("Deadline exceeded waiting for a shared history read")
+          .asException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withCause(e).asException();
+    }
+  }
+
+  /** Returns the number of history reads that were answered by another read's query. */
+  long getCoalescedHistoryReads() {
+    return coalescedHistoryReads.get();
+  }
+
+  @Override
+  public void createCustomer(ByteArray customerId, String name, String address)
+      throws StatusException {
+    spannerDao.createCustomer(customerId, name, address);
+  }
+
+  @Override
+  public void createAccount(ByteArray accountId, AccountStatus accountStatus, BigDecimal balance)
+      throws StatusException {
+    spannerDao.createAccount(accountId, accountStatus, balance);
+  }
+
+  @Override
+  public void createCustomerRole(
+      ByteArray customerId, ByteArray accountId, ByteArray roleId, String roleName)
+      throws StatusException {
+    spannerDao.createCustomerRole(customerId, accountId, roleId, roleName);
+  }
+
+  @Override
+  public ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
+    return spannerDao.moveAccountBalance(fromAccountId, toAccountId, amount, requestId);
+  }
+
+  @Override
+  public ImmutableList<ImmutableMap<ByteArray, BigDecimal>> moveAccountBalances(
+      ImmutableList<TransferLeg> legs) throws StatusException {
+    return spannerDao.moveAccountBalances(legs);
+  }
+
+  @Override
+  public BigDecimal createTransactionForAccount(
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
+    return spannerDao.createTransactionForAccount(accountId, amount, isCredit, requestId);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.common.collect.ImmutableSet;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rejects calls with RESOURCE_EXHAUSTED once the number of calls in flight reaches the limit of an
+ * {@link AdaptiveConcurrencyLimiter}, so that an overloaded server fails the excess calls quickly
+ * instead of queueing all of them until they time out together. Reads and writes have separate
+ * limiters, as they contend on different resources in Spanner. Pings are never rejected.
+ */
+final class ConcurrencyLimitInterceptor implements ServerInterceptor {
+
+  private static final String PING_METHOD = FinAppGrpc.getPingMethod().getFullMethodName();
+
+  private static final ImmutableSet<String> READ_METHODS =
+      ImmutableSet.of(FinAppGrpc.getGetRecentTransactionsForAccountMethod().getFullMethodName());
+
+  // Status codes of calls that failed because the server or the database could not keep up. A
+  // call cancelled by its client is not one of them, it only means the client went away.
+  private static final ImmutableSet<Status.Code> OVERLOAD_CODES =
+      ImmutableSet.of(
+          Status.Code.DEADLINE_EXCEEDED, Status.Code.RESOURCE_EXHAUSTED, Status.Code.UNAVAILABLE);
+
+  private final AdaptiveConcurrencyLimiter readLimiter;
+  private final AdaptiveConcurrencyLimiter writeLimiter;
+
+  ConcurrencyLimitInterceptor(
+      AdaptiveConcurrencyLimiter readLimiter, AdaptiveConcurrencyLimiter writeLimiter) {
+    this.readLimiter = readLimiter;
+    this.writeLimiter = writeLimiter;
+  }
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    String method = call.getMethodDescriptor().getFullMethodName();
+    if (method.equals(PING_METHOD)) {
+      return next.startCall(call, headers);
+    }
+    AdaptiveConcurrencyLimiter limiter = READ_METHODS.contains(method) ? readLimiter : writeLimiter;
+    if (!limiter.tryAcquire()) {
+      call.close(
+          Status.RESOURCE_EXHAUSTED.withDescription(
+              String.format(
+                  "Server is overloaded, %d calls in flight; retry later", limiter.getLimit())),
+          new Metadata());
+      return new ServerCall.Listener<ReqT>() {};
+    }
+
+    long start = System.nanoTime();
+    AtomicBoolean released = new AtomicBoolean();
+    // For calls that end without a status from the handler; they do not adapt the limit.
+    Runnable abandoned =
+        () -> {
+          if (released.compareAndSet(false, true)) {
+            limiter.abandon();
+          }
+        };
+    ServerCall<ReqT, RespT> limitedCall =
+        new SimpleForwardingServerCall<ReqT, RespT>(call) {
+          @Override
+          public void close(Status status, Metadata trailers) {
+            if (released.compareAndSet(false, true)) {
+              limiter.release(System.nanoTime() - start, OVERLOAD_CODES.contains(status.getCode()));
+            }
+            super.close(status, trailers);
+          }
+        };
+    ServerCall.Listener<ReqT> listener;
+    try {
+      listener = next.startCall(limitedCall, headers);
+    } catch (RuntimeException e) {
+      abandoned.run();
+      throw e;
+    }
+    return new SimpleForwardingServerCallListener<ReqT>(listener) {
+      @Override
+      public void onHalfClose() {
+        try {
+          super.onHalfClose();
+        } catch (RuntimeException e) {
+          // The server closes the call without going through limitedCall.
+          abandoned.run();
+          throw e;
+        }
+      }
+
+      @Override
+      public void onCancel() {
+        // A call cancelled because its deadline passed was too slow, so that counts as a drop.
+        Deadline deadline = Context.current().getDeadline();
+        if (deadline != null && deadline.isExpired()) {
+          if (released.compareAndSet(false, true)) {
+            limiter.release(System.nanoTime() - start, /* dropped= */ true);
+          }
+        } else {
+          abandoned.run();
+        }
+        super.onCancel();
+      }
+
+      @Override
+      public void onComplete() {
+        // Released in close, unless the server closed the call itself.
+        abandoned.run();
+        super.onComplete();
+      }
+    };
+  }
+}
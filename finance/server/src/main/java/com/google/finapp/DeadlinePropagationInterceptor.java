@@ -0,0 +1,111 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.api.gax.rpc.ApiCallContext;
+import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.SpannerOptions.CallContextConfigurator;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Deadline;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.StatusException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.threeten.bp.Duration;
+
+/**
+ * Stops work for calls whose client has cancelled or whose deadline has passed. Calls that are
+ * already cancelled when their handler would start are not run, every Spanner RPC made for a call
+ * times out with the call's deadline, and the DAOs check {@link #checkNotCancelled} before every
+ * transaction attempt.
+ */
+final class DeadlinePropagationInterceptor implements ServerInterceptor {
+
+  private static final AtomicLong skippedCalls = new AtomicLong();
+  private static final AtomicLong skippedTransactionAttempts = new AtomicLong();
+
+  // Sets the timeout of a Spanner RPC to what is left of the deadline of the call being served.
+  private static final CallContextConfigurator CALL_CONTEXT_CONFIGURATOR =
+      new CallContextConfigurator() {
+        @Override
+        public <ReqT, RespT> ApiCallContext configure(
+            ApiCallContext context, ReqT request, MethodDescriptor<ReqT, RespT> method) {
+          Deadline deadline = Context.current().getDeadline();
+          if (deadline == null) {
+            return null;
+          }
+          return context.withTimeout(
+              Duration.ofMillis(Math.max(1, deadline.timeRemaining(TimeUnit.MILLISECONDS))));
+        }
+      };
+
+  @Override
+  public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+      ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+    Context context =
+        Context.current()
+            .withValue(SpannerOptions.CALL_CONTEXT_CONFIGURATOR_KEY, CALL_CONTEXT_CONFIGURATOR);
+    return Contexts.interceptCall(
+        context,
+        call,
+        headers,
+        new ServerCallHandler<ReqT, RespT>() {
+          @Override
+          public ServerCall.Listener<ReqT> startCall(
+              ServerCall<ReqT, RespT> call, Metadata headers) {
+            return new SimpleForwardingServerCallListener<ReqT>(next.startCall(call, headers)) {
+              @Override
+              public void onHalfClose() {
+                // Unary handlers run here, possibly after waiting for a server thread.
+                if (Context.current().isCancelled()) {
+                  skippedCalls.incrementAndGet();
+                  call.close(Contexts.statusFromCancelled(Context.current()), new Metadata());
+                  return;
+                }
+                super.onHalfClose();
+              }
+            };
+          }
+        });
+  }
+
+  /**
+   * Throws if the call being served has been cancelled, so that a transaction is not attempted
+   * again for a client that is gone.
+   */
+  static void checkNotCancelled() throws StatusException {
+    Context context = Context.current();
+    if (context.isCancelled()) {
+      skippedTransactionAttempts.incrementAndGet();
+      throw Contexts.statusFromCancelled(context).asException();
+    }
+  }
+
+  /** Returns the number of calls that were not run because they were already cancelled. */
+  static long getSkippedCalls() {
+    return skippedCalls.get();
+  }
+
+  /** Returns the number of transaction attempts not made because their call was cancelled. */
+  static long getSkippedTransactionAttempts() {
+    return skippedTransactionAttempts.get();
+  }
+}
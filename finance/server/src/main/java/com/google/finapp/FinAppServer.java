@@ -16,6 +16,8 @@ package com.google.finapp;
 
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
 import io.grpc.protobuf.services.ProtoReflectionService;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
@@ -28,11 +30,11 @@ final class FinAppServer {
   private final int port;
   private final Server grpcServer;
 
-  FinAppServer(int port, FinAppService finAppService) {
+  FinAppServer(int port, FinAppService finAppService, ServerInterceptor... interceptors) {
     this.port = port;
     this.grpcServer =
         ServerBuilder.forPort(port)
-            .addService(finAppService)
+            .addService(ServerInterceptors.intercept(finAppService, interceptors))
             .addService(ProtoReflectionService.newInstance())
             .build();
   }
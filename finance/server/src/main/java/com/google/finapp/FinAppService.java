@@ -16,21 +16,48 @@ package com.google.finapp;
 
 import com.google.cloud.ByteArray;
 import com.google.cloud.Timestamp;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.finapp.SpannerDaoInterface.TransferLeg;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.StreamObserver;
 import java.math.BigDecimal;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 final class FinAppService extends FinAppGrpc.FinAppImplBase {
 
+  // Keeps the mutations of a MoveAccountBalances transaction well below the Spanner commit limit.
+  static final int MAX_LEGS_PER_TRANSACTION = 1000;
+  static final int MAX_LEGS_PER_REQUEST = 10000;
+
+  static final int MAX_REQUEST_ID_LENGTH = 128;
+  static final long DEFAULT_DEDUP_CACHE_SIZE = 10000;
+  static final long DEFAULT_DEDUP_CACHE_SECONDS = 600;
+
   private final SpannerDaoInterface spannerDao;
 
+  // Recent responses to requests with a request id, so that retries within the window are answered
+  // without going to Spanner. Older retries are answered from the IdempotentRequest table. Both
+  // RPCs share the ids, and a response is only returned for the payload it was recorded for.
+  private final Cache<String, RecordedResponse> recentResponses;
+
   FinAppService(SpannerDaoInterface spannerDao) {
+    this(spannerDao, DEFAULT_DEDUP_CACHE_SIZE, DEFAULT_DEDUP_CACHE_SECONDS);
+  }
+
+  FinAppService(SpannerDaoInterface spannerDao, long dedupCacheSize, long dedupCacheSeconds) {
     this.spannerDao = spannerDao;
+    this.recentResponses =
+        CacheBuilder.newBuilder()
+            .maximumSize(dedupCacheSize)
+            .expireAfterWrite(dedupCacheSeconds, TimeUnit.SECONDS)
+            .build();
   }
 
   @Override
@@ -111,11 +138,22 @@ final class FinAppService extends FinAppGrpc.FinAppImplBase {
               .asException());
       return;
     }
-
+    String requestId = request.getRequestId();
+    IdempotentRequests.Payload payload;
     ImmutableMap<ByteArray, BigDecimal> accountBalances;
     try {
+      checkRequestId(requestId);
       BigDecimal amount = getNonNegativeBigDecimal(request.getAmount());
-      accountBalances = spannerDao.moveAccountBalance(fromAccountId, toAccountId, amount);
+      payload = IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount);
+      MoveAccountBalanceResponse recent =
+          recentResponse(requestId, payload, MoveAccountBalanceResponse.class);
+      if (recent != null) {
+        responseObserver.onNext(recent);
+        responseObserver.onCompleted();
+        return;
+      }
+      accountBalances =
+          spannerDao.moveAccountBalance(fromAccountId, toAccountId, amount, requestId);
     } catch (StatusException e) {
       responseObserver.onError(Status.fromThrowable(e).asException());
       return;
@@ -125,30 +163,120 @@ final class FinAppService extends FinAppGrpc.FinAppImplBase {
             .setFromAccountIdBalance(accountBalances.get(fromAccountId).toString())
             .setToAccountIdBalance(accountBalances.get(toAccountId).toString())
             .build();
+    if (!requestId.isEmpty()) {
+      recentResponses.put(requestId, new RecordedResponse(payload, response));
+    }
     responseObserver.onNext(response);
     responseObserver.onCompleted();
   }
 
+  @Override
+  public void moveAccountBalances(
+      MoveAccountBalancesRequest request,
+      StreamObserver<MoveAccountBalancesResponse> responseObserver) {
+    // Validate every leg before applying any of them.
+    ImmutableList.Builder<TransferLeg> legsBuilder = ImmutableList.builder();
+    try {
+      if (request.getLegsCount() > MAX_LEGS_PER_REQUEST) {
+        throw Status.INVALID_ARGUMENT
+            .withDescription(
+                String.format(
+                    "At most %d legs are allowed, found: %d",
+                    MAX_LEGS_PER_REQUEST, request.getLegsCount()))
+            .asException();
+      }
+      for (int i = 0; i < request.getLegsCount(); i++) {
+        MoveAccountBalancesRequest.Leg leg = request.getLegs(i);
+        ByteArray fromAccountId = ByteArray.copyFrom(leg.getFromAccountId().toByteArray());
+        ByteArray toAccountId = ByteArray.copyFrom(leg.getToAccountId().toByteArray());
+        if (fromAccountId.equals(toAccountId)) {
+          throw Status.INVALID_ARGUMENT
+              .withDescription(
+                  String.format("Leg %d: \"To\" and \"from\" account IDs must be different", i))
+              .asException();
+        }
+        legsBuilder.add(
+            new TransferLeg(fromAccountId, toAccountId, getNonNegativeBigDecimal(leg.getAmount())));
+      }
+    } catch (StatusException e) {
+      responseObserver.onError(Status.fromThrowable(e).asException());
+      return;
+    }
+    ImmutableList<TransferLeg> legs = legsBuilder.build();
+
+    // Apply the legs chunk by chunk and stop at the first chunk that fails, so that the committed
+    // legs are a prefix of the request.
+    MoveAccountBalancesResponse.Builder response = MoveAccountBalancesResponse.newBuilder();
+    String error = null;
+    for (int start = 0; start < legs.size(); start += MAX_LEGS_PER_TRANSACTION) {
+      ImmutableList<TransferLeg> chunk =
+          legs.subList(start, Math.min(start + MAX_LEGS_PER_TRANSACTION, legs.size()));
+      if (error == null) {
+        try {
+          ImmutableList<ImmutableMap<ByteArray, BigDecimal>> legBalances =
+              spannerDao.moveAccountBalances(chunk);
+          for (int i = 0; i < chunk.size(); i++) {
+            response.addResults(
+                MoveAccountBalancesResponse.LegResult.newBuilder()
+                    .setCommitted(true)
+                    .setFromAccountIdBalance(
+                        legBalances.get(i).get(chunk.get(i).fromAccountId).toString())
+                    .setToAccountIdBalance(
+                        legBalances.get(i).get(chunk.get(i).toAccountId).toString()));
+          }
+          continue;
+        } catch (StatusException e) {
+          error =
+              String.format(
+                  "Legs %d to %d were not applied: %s",
+                  start, start + chunk.size() - 1, e.getStatus().getDescription());
+        }
+      }
+      for (int i = 0; i < chunk.size(); i++) {
+        response.addResults(
+            MoveAccountBalancesResponse.LegResult.newBuilder().setCommitted(false).setError(error));
+      }
+    }
+    responseObserver.onNext(response.build());
+    responseObserver.onCompleted();
+  }
+
   @Override
   public void createTransactionForAccount(
       CreateTransactionForAccountRequest request,
       StreamObserver<CreateTransactionForAccountResponse> responseObserver) {
+    String requestId = request.getRequestId();
+    ByteArray accountId = ByteArray.copyFrom(request.getAccountId().toByteArray());
+    IdempotentRequests.Payload payload;
     BigDecimal newBalance;
     try {
+      checkRequestId(requestId);
       BigDecimal amount = getNonNegativeBigDecimal(request.getAmount());
+      payload =
+          IdempotentRequests.Payload.createTransactionForAccount(
+              accountId, amount, request.getIsCredit());
+      CreateTransactionForAccountResponse recent =
+          recentResponse(requestId, payload, CreateTransactionForAccountResponse.class);
+      if (recent != null) {
+        responseObserver.onNext(recent);
+        responseObserver.onCompleted();
+        return;
+      }
       newBalance =
           spannerDao.createTransactionForAccount(
-              ByteArray.copyFrom(request.getAccountId().toByteArray()),
-              amount,
-              request.getIsCredit());
+              accountId, amount, request.getIsCredit(), requestId);
     } catch (StatusException e) {
       responseObserver.onError(Status.fromThrowable(e).asException());
       return;
     }
-    responseObserver.onNext(
+    CreateTransactionForAccountResponse response =
         CreateTransactionForAccountResponse.newBuilder()
             .setNewBalance(newBalance.toString())
-            .build());
+            .build();
+    if (!requestId.isEmpty()) {
+      recentResponses.put(requestId, new RecordedResponse(payload, response));
+    }
+    responseObserver.onNext(response);
     responseObserver.onCompleted();
   }
 
@@ -217,4 +345,43 @@ final class FinAppService extends FinAppGrpc.FinAppImplBase {
     }
     return valueDecimal;
   }
+
+  /**
+   * Returns the recent response to requestId, or null if there is none.
+   *
+   * @throws StatusException with INVALID_ARGUMENT if requestId was used for another payload
+   */
+  private <T extends Message> T recentResponse(
+      String requestId, IdempotentRequests.Payload payload, Class<T> responseType)
+      throws StatusException {
+    RecordedResponse recorded =
+        requestId.isEmpty() ? null : recentResponses.getIfPresent(requestId);
+    if (recorded == null) {
+      return null;
+    }
+    payload.checkSameAs(requestId, recorded.payload);
+    // The same method always has the same response type
+    return responseType.cast(recorded.response);
+  }
+
+  private void checkRequestId(String requestId) throws StatusException {
+    if (requestId.length() > MAX_REQUEST_ID_LENGTH) {
+      throw Status.INVALID_ARGUMENT
+          .withDescription(
+              String.format(
+                  "Request ID must be at most %d characters, found: %d",
+                  MAX_REQUEST_ID_LENGTH, requestId.length()))
+          .asException();
+    }
+  }
+
+  private static final class RecordedResponse {
+    final IdempotentRequests.Payload payload;
+    final Message response;
+
+    RecordedResponse(IdempotentRequests.Payload payload, Message response) {
+      this.payload = payload;
+      this.response = response;
+    }
+  }
 }
@@ -0,0 +1,249 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.finapp.SpannerDaoInterface.HistoryQuery;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the history reads of concurrent calls for a short window and runs them as one query: the
+ * first read of a batch starts the window, and the batch is read once the window ends or it holds
+ * the maximum number of reads. Each call then gets the entries of its own read. Batch queries run
+ * on a fixed number of threads of their own, without the deadline of any one call; each call still
+ * waits no longer than its own deadline. Since a running query is not cancelled with its calls,
+ * reads whose call was cancelled or timed out before their batch starts are left out of it.
+ */
+final class HistoryReadBatcher implements AutoCloseable {
+
+  /** Runs several history reads with one query. */
+  interface BatchReader {
+    /** Returns the entries of each query, in the order of queries. */
+    ImmutableList<ImmutableList<TransactionEntry>> read(ImmutableList<HistoryQuery> queries)
+        throws StatusException;
+  }
+
+  private final BatchReader batchReader;
+  private final long windowMicros;
+  private final int maxBatchSize;
+  private final ScheduledExecutorService windowTimer =
+      Executors.newSingleThreadScheduledExecutor(daemonThreads("history-batch-timer"));
+  private final ExecutorService queryExecutor;
+  // Number of batches read, indexed by their size.
+  private final AtomicLongArray batchSizeCounts;
+
+  // Guarded by this.
+  private Batch openBatch;
+  private boolean closed;
+
+  /**
+   * @param queryThreads number of batch queries that run at once, later batches wait for a thread
+   */
+  HistoryReadBatcher(
+      BatchReader batchReader, long windowMicros, int maxBatchSize, int queryThreads) {
+    if (windowMicros <= 0 || maxBatchSize <= 0 || queryThreads <= 0) {
+      throw new IllegalArgumentException(
+          "Batch window, size and query threads must be positive: "
+              + windowMicros
+              + ", "
+              + maxBatchSize
+              + ", "
+              + queryThreads);
+    }
+    this.batchReader = batchReader;
+    this.windowMicros = windowMicros;
+    this.maxBatchSize = maxBatchSize;
+    this.queryExecutor =
+        Executors.newFixedThreadPool(queryThreads, daemonThreads("history-batch-query"));
+    this.batchSizeCounts = new AtomicLongArray(maxBatchSize + 1);
+  }
+
+  /**
+   * Reads the history of one account as part of a batch, within the deadline of the current call.
+   */
+  ImmutableList<TransactionEntry> read(HistoryQuery query) throws StatusException {
+    CompletableFuture<ImmutableList<TransactionEntry>> entries;
+    Batch fullBatch = null;
+    synchronized (this) {
+      if (closed) {
+        throw Status.UNAVAILABLE.withDescription("History reads are shutting down").asException();
+      }
+      if (openBatch == null) {
+        Batch batch = new Batch();
+        openBatch = batch;
+        windowTimer.schedule(() -> closeAndRead(batch), windowMicros, TimeUnit.MICROSECONDS);
+      }
+      entries = openBatch.add(query);
+      if (openBatch.queries.size() == maxBatchSize) {
+        fullBatch = openBatch;
+        openBatch = null;
+      }
+    }
+    if (fullBatch != null) {
+      startRead(fullBatch);
+    }
+    return await(entries);
+  }
+
+  /** Reads the batch if it is still open when its window ends. */
+  private void closeAndRead(Batch batch) {
+    synchronized (this) {
+      if (openBatch != batch) {
+        return; // Read when it became full.
+      }
+      openBatch = null;
+    }
+    startRead(batch);
+  }
+
+  /** Hands the batch to a query thread, or fails it if the batcher was closed in the meantime. */
+  private void startRead(Batch batch) {
+    try {
+      queryExecutor.execute(() -> read(batch));
+    } catch (RejectedExecutionException e) {
+      batch.fail(
+          Status.UNAVAILABLE.withDescription("History reads are shutting down").asException());
+    }
+  }
+
+  /** Reads the queries of the batch whose calls are still waiting, if there are any. */
+  private void read(Batch batch) {
+    List<HistoryQuery> queries = new ArrayList<>();
+    List<CompletableFuture<ImmutableList<TransactionEntry>>> results = new ArrayList<>();
+    for (int i = 0; i < batch.queries.size(); i++) {
+      if (batch.contexts.get(i).isCancelled()) {
+        batch
+            .results
+            .get(i)
+            .completeExceptionally(
+                Status.CANCELLED.withDescription("Call cancelled before its batch").asException());
+      } else {
+        queries.add(batch.queries.get(i));
+        results.add(batch.results.get(i));
+      }
+    }
+    if (queries.isEmpty()) {
+      return;
+    }
+    batchSizeCounts.incrementAndGet(queries.size());
+    try {
+      ImmutableList<ImmutableList<TransactionEntry>> entries =
+          batchReader.read(ImmutableList.copyOf(queries));
+      for (int i = 0; i < results.size(); i++) {
+        results.get(i).complete(entries.get(i));
+      }
+    } catch (StatusException | RuntimeException e) {
+      for (CompletableFuture<ImmutableList<TransactionEntry>> result : results) {
+        result.completeExceptionally(e);
+      }
+    }
+  }
+
+  private static ImmutableList<TransactionEntry> await(
+      CompletableFuture<ImmutableList<TransactionEntry>> entries) throws StatusException {
+    Deadline deadline = Context.current().getDeadline();
+    try {
+      return deadline == null
+          ? entries.get()
+          : entries.get(deadline.timeRemaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    } catch (ExecutionException e) {
+      throw Status.fromThrowable(e.getCause()).asException();
+    } catch (TimeoutException e) {
+      throw Status.DEADLINE_EXCEEDED
+          .withDescription("Deadline exceeded waiting for a batched history read")
+          .asException();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Status.CANCELLED.withCause(e).asException();
+    }
+  }
+
+  /**
+   * Stops the batch threads. Reads of the open batch and later reads fail with UNAVAILABLE; batches
+   * already handed to a query thread are still read.
+   */
+  @Override
+  public void close() {
+    Batch batch;
+    synchronized (this) {
+      closed = true;
+      batch = openBatch;
+      openBatch = null;
+    }
+    windowTimer.shutdownNow();
+    queryExecutor.shutdown();
+    if (batch != null) {
+      batch.fail(
+          Status.UNAVAILABLE.withDescription("History reads are shutting down").asException());
+    }
+  }
+
+  /** Returns the number of batches read so far keyed by their number of reads, without zeros. */
+  ImmutableSortedMap<Integer, Long> getBatchSizeCounts() {
+    ImmutableSortedMap.Builder<Integer, Long> counts = ImmutableSortedMap.naturalOrder();
+    for (int size = 1; size < batchSizeCounts.length(); size++) {
+      long count = batchSizeCounts.get(size);
+      if (count > 0) {
+        counts.put(size, count);
+      }
+    }
+    return counts.build();
+  }
+
+  private static ThreadFactory daemonThreads(String name) {
+    return runnable -> {
+      Thread thread = new Thread(runnable, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static final class Batch {
+    final List<HistoryQuery> queries = new ArrayList<>();
+    // Context of the call of each query, to leave out queries of cancelled calls.
+    final List<Context> contexts = new ArrayList<>();
+    final List<CompletableFuture<ImmutableList<TransactionEntry>>> results = new ArrayList<>();
+
+    CompletableFuture<ImmutableList<TransactionEntry>> add(HistoryQuery query) {
+      CompletableFuture<ImmutableList<TransactionEntry>> result = new CompletableFuture<>();
+      queries.add(query);
+      contexts.add(Context.current());
+      results.add(result);
+      return result;
+    }
+
+    void fail(StatusException e) {
+      for (CompletableFuture<ImmutableList<TransactionEntry>> result : results) {
+        result.completeExceptionally(e);
+      }
+    }
+  }
+}
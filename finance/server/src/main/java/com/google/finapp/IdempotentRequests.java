@@ -0,0 +1,128 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.cloud.ByteArray;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the balances returned by a money-moving request to and from the columns of the
+ * IdempotentRequest table, shared by the DAOs. Balances are stored as decimal strings so that the
+ * table is the same in both dialects. Each row also records which request its id was used for, as a
+ * {@link Payload}, so that an id reused for a different request is rejected instead of answered
+ * with balances that belong to another request.
+ */
+final class IdempotentRequests {
+
+  private IdempotentRequests() {}
+
+  static ImmutableList<ByteArray> accountIds(Map<ByteArray, BigDecimal> balances) {
+    return ImmutableList.copyOf(balances.keySet());
+  }
+
+  static ImmutableList<String> balances(Map<ByteArray, BigDecimal> balances) {
+    ImmutableList.Builder<String> values = ImmutableList.builder();
+    for (BigDecimal balance : balances.values()) {
+      values.add(balance.toString());
+    }
+    return values.build();
+  }
+
+  /** Returns the balances stored by {@link #accountIds} and {@link #balances}, keyed by id. */
+  static ImmutableMap<ByteArray, BigDecimal> toBalances(
+      List<ByteArray> accountIds, List<String> balances) {
+    ImmutableMap.Builder<ByteArray, BigDecimal> result = ImmutableMap.builder();
+    for (int i = 0; i < accountIds.size(); i++) {
+      result.put(accountIds.get(i), new BigDecimal(balances.get(i)));
+    }
+    return result.build();
+  }
+
+  /** Returns the balance of a single account as a map, empty if the balance is not known. */
+  static ImmutableMap<ByteArray, BigDecimal> balanceOf(ByteArray accountId, BigDecimal balance) {
+    return balance == null ? ImmutableMap.of() : ImmutableMap.of(accountId, balance);
+  }
+
+  /**
+   * The RPC a request id was used for, and a SHA-256 fingerprint of its accounts, amount and
+   * direction. Amounts that only differ in trailing zeros have the same fingerprint.
+   */
+  static final class Payload {
+    final String method;
+    final String fingerprint;
+
+    Payload(String method, String fingerprint) {
+      this.method = method;
+      this.fingerprint = fingerprint;
+    }
+
+    static Payload moveAccountBalance(
+        ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) {
+      Hasher hasher = Hashing.sha256().newHasher();
+      putAccountId(hasher, fromAccountId);
+      putAccountId(hasher, toAccountId);
+      putAmount(hasher, amount);
+      return new Payload("MoveAccountBalance", hasher.hash().toString());
+    }
+
+    static Payload createTransactionForAccount(
+        ByteArray accountId, BigDecimal amount, boolean isCredit) {
+      Hasher hasher = Hashing.sha256().newHasher();
+      putAccountId(hasher, accountId);
+      putAmount(hasher, amount);
+      hasher.putBoolean(isCredit);
+      return new Payload("CreateTransactionForAccount", hasher.hash().toString());
+    }
+
+    /** Throws INVALID_ARGUMENT if requestId was recorded for a request other than this one. */
+    void checkSameAs(String requestId, Payload recorded) throws StatusException {
+      if (!method.equals(recorded.method)) {
+        throw Status.INVALID_ARGUMENT
+            .withDescription(
+                String.format(
+                    "Request ID %s was already used for %s, not %s",
+                    requestId, recorded.method, method))
+            .asException();
+      }
+      if (!fingerprint.equals(recorded.fingerprint)) {
+        throw Status.INVALID_ARGUMENT
+            .withDescription(
+                String.format(
+                    "Request ID %s was already used for a %s request with different arguments",
+                    requestId, method))
+            .asException();
+      }
+    }
+
+    // Ids are prefixed with their length so that the boundary between two ids is unambiguous.
+    private static void putAccountId(Hasher hasher, ByteArray accountId) {
+      hasher.putInt(accountId.length()).putBytes(accountId.toByteArray());
+    }
+
+    private static void putAmount(Hasher hasher, BigDecimal amount) {
+      BigDecimal normalized = amount.signum() == 0 ? BigDecimal.ZERO : amount.stripTrailingZeros();
+      hasher.putString(normalized.toPlainString(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -19,48 +19,244 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SessionPoolOptions;
 import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
+import com.google.cloud.spanner.Statement;
+import com.google.common.collect.ImmutableSet;
+import io.grpc.ServerInterceptor;
+import io.opencensus.metrics.LabelKey;
+import io.opencensus.metrics.LabelValue;
+import io.opencensus.metrics.Metrics;
+import io.opencensus.metrics.export.Metric;
+import io.opencensus.metrics.export.MetricProducer;
+import io.opencensus.metrics.export.Point;
+import io.opencensus.metrics.export.TimeSeries;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public final class ServerMain {
+  private static final Logger logger = Logger.getLogger(ServerMain.class.getName());
+  private static final String SPANNER_METRIC_PREFIX = "cloud.google.com/java/spanner/";
+  // Labels that identify the client rather than what is counted; values are summed over them.
+  private static final ImmutableSet<String> CLIENT_LABELS =
+      ImmutableSet.of("client_id", "database", "instance_id", "library_version");
+
   private ServerMain() {}
 
   public static void main(String[] argv) throws Exception {
     Args args = new Args();
     JCommander.newBuilder().addObject(args).build().parse(argv);
 
-    SpannerDaoInterface spannerDao =
-        getSpannerDao(
-            args.spannerUseJdbc,
-            args.spannerUsePg,
-            args.spannerProjectId,
-            args.spannerInstanceId,
-            args.spannerDatabaseId);
-    FinAppServer server = new FinAppServer(args.port, new FinAppService(spannerDao));
+    SpannerDaoInterface spannerDao = getSpannerDao(args);
+    if (spannerDao instanceof SpannerDaoImpl && args.balanceShardFoldSeconds > 0) {
+      scheduleBalanceShardFolding((SpannerDaoImpl) spannerDao, args.balanceShardFoldSeconds);
+    }
+    HistoryReadBatcher historyReadBatcher = null;
+    if (spannerDao instanceof SpannerDaoImpl && args.historyBatchWindowMicros > 0) {
+      historyReadBatcher =
+          new HistoryReadBatcher(
+              ((SpannerDaoImpl) spannerDao)::getRecentTransactionsForAccounts,
+              args.historyBatchWindowMicros,
+              args.historyBatchMaxSize,
+              args.historyBatchQueryThreads);
+    }
+    CoalescingSpannerDao coalescingSpannerDao =
+        new CoalescingSpannerDao(spannerDao, historyReadBatcher);
+    if (args.spannerSessionMetricsSeconds > 0) {
+      scheduleSessionPoolMetricsLogging(
+          coalescingSpannerDao, historyReadBatcher, args.spannerSessionMetricsSeconds);
+    }
+    // The last interceptor sees a call first.
+    List<ServerInterceptor> interceptors = new ArrayList<>();
+    interceptors.add(new DeadlinePropagationInterceptor());
+    if (args.concurrencyLimit) {
+      interceptors.add(
+          new ConcurrencyLimitInterceptor(
+              new AdaptiveConcurrencyLimiter(
+                  args.concurrencyLimitInitial, 1, args.concurrencyLimitMaxReads),
+              new AdaptiveConcurrencyLimiter(
+                  args.concurrencyLimitInitial, 1, args.concurrencyLimitMaxWrites)));
+    }
+    FinAppServer server =
+        new FinAppServer(
+            args.port,
+            new FinAppService(coalescingSpannerDao, args.dedupCacheSize, args.dedupCacheSeconds),
+            interceptors.toArray(new ServerInterceptor[0]));
     server.start();
-    server.blockUntilShutdown();
+    try {
+      server.blockUntilShutdown();
+    } finally {
+      if (historyReadBatcher != null) {
+        historyReadBatcher.close();
+      }
+    }
   }
 
-  private static SpannerDaoInterface getSpannerDao(
-      boolean spannerUseJdbc,
-      boolean spannerUsePg,
-      String spannerProjectId,
-      String spannerInstanceId,
-      String spannerDatabaseId) {
-    if (spannerUseJdbc) {
-      return new SpannerDaoJDBCImpl(spannerProjectId, spannerInstanceId, spannerDatabaseId);
+  private static SpannerDaoInterface getSpannerDao(Args args) {
+    if (args.spannerUseJdbc) {
+      return new SpannerDaoJDBCImpl(
+          args.spannerProjectId, args.spannerInstanceId, args.spannerDatabaseId);
     }
 
-    SpannerOptions spannerOptions = SpannerOptions.getDefaultInstance();
-    Spanner spanner = spannerOptions.toBuilder().build().getService();
+    SpannerOptions spannerOptions =
+        SpannerOptions.getDefaultInstance()
+            .toBuilder()
+            .setNumChannels(args.spannerNumChannels)
+            .setSessionPoolOption(
+                SessionPoolOptions.newBuilder()
+                    .setMinSessions(args.spannerMinSessions)
+                    .setMaxSessions(args.spannerMaxSessions)
+                    .setWriteSessionsFraction(args.spannerWriteSessionsFraction)
+                    .build())
+            .build();
+    Spanner spanner = spannerOptions.getService();
     DatabaseClient client =
         spanner.getDatabaseClient(
-            DatabaseId.of(spannerProjectId, spannerInstanceId, spannerDatabaseId));
+            DatabaseId.of(args.spannerProjectId, args.spannerInstanceId, args.spannerDatabaseId));
+    if (args.spannerWarmUp) {
+      warmUp(client, args.spannerMinSessions);
+    }
+
+    if (args.spannerUsePg) {
+      return new SpannerDaoPGImpl(client, args.spannerUseDmlReturning);
+    }
+    return new SpannerDaoImpl(client, args.spannerUseDmlReturning);
+  }
 
-    if (spannerUsePg) {
-      return new SpannerDaoPGImpl(client);
+  /**
+   * Runs a query on each of the given number of sessions at once, so that the pool has created them
+   * and the channels are connected before the server takes its first requests.
+   */
+  private static void warmUp(DatabaseClient client, int sessions) {
+    long start = System.nanoTime();
+    List<ResultSet> resultSets = new ArrayList<>();
+    try {
+      for (int i = 0; i < sessions; i++) {
+        // An open result set keeps its session checked out, so every query takes another one.
+        ResultSet resultSet = client.singleUse().executeQuery(Statement.of("SELECT 1"));
+        resultSets.add(resultSet);
+        resultSet.next();
+      }
+    } finally {
+      for (ResultSet resultSet : resultSets) {
+        resultSet.close();
+      }
     }
-    return new SpannerDaoImpl(client);
+    logger.info(
+        String.format(
+            "Warmed up %d sessions in %d ms",
+            sessions, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+  }
+
+  /**
+   * Periodically logs the session pool metrics of the Spanner client: sessions in the pool and in
+   * use, how many the pool allows, and how often getting a session timed out. Also logs the work
+   * skipped for cancelled calls, the number of coalesced history reads and, if history reads are
+   * batched, the number of batches by size.
+   */
+  private static void scheduleSessionPoolMetricsLogging(
+      CoalescingSpannerDao spannerDao, HistoryReadBatcher historyReadBatcher, long periodSeconds) {
+    newDaemonScheduledExecutor("session-pool-metrics")
+        .scheduleWithFixedDelay(
+            () ->
+                logger.info(
+                    String.format(
+                        "Session pool: %s, skipped for cancelled calls: %d calls,"
+                            + " %d transaction attempts, coalesced history reads: %d%s",
+                        sessionPoolMetrics(),
+                        DeadlinePropagationInterceptor.getSkippedCalls(),
+                        DeadlinePropagationInterceptor.getSkippedTransactionAttempts(),
+                        spannerDao.getCoalescedHistoryReads(),
+                        historyReadBatcher == null
+                            ? ""
+                            : ", history read batches by size: "
+                                + historyReadBatcher.getBatchSizeCounts())),
+            periodSeconds,
+            periodSeconds,
+            TimeUnit.SECONDS);
+  }
+
+  private static String sessionPoolMetrics() {
+    List<Metric> metrics = new ArrayList<>();
+    for (MetricProducer producer :
+        Metrics.getExportComponent().getMetricProducerManager().getAllMetricProducer()) {
+      metrics.addAll(producer.getMetrics());
+    }
+    return sessionPoolMetrics(metrics).toString();
+  }
+
+  /**
+   * Returns the value of every time series of the Spanner metrics, keyed by the metric name and its
+   * label values, e.g. num_sessions_in_pool{type=num_in_use_sessions}. Time series that only differ
+   * in the client labels are summed.
+   */
+  static Map<String, Long> sessionPoolMetrics(Iterable<Metric> metrics) {
+    Map<String, Long> values = new TreeMap<>();
+    for (Metric metric : metrics) {
+      String name = metric.getMetricDescriptor().getName();
+      if (!name.startsWith(SPANNER_METRIC_PREFIX)) {
+        continue;
+      }
+      List<LabelKey> labelKeys = metric.getMetricDescriptor().getLabelKeys();
+      for (TimeSeries timeSeries : metric.getTimeSeriesList()) {
+        StringBuilder key = new StringBuilder(name.substring(SPANNER_METRIC_PREFIX.length()));
+        List<String> labels = new ArrayList<>();
+        for (int i = 0; i < labelKeys.size(); i++) {
+          String labelKey = labelKeys.get(i).getKey();
+          LabelValue labelValue = timeSeries.getLabelValues().get(i);
+          if (!CLIENT_LABELS.contains(labelKey) && labelValue.getValue() != null) {
+            labels.add(labelKey + "=" + labelValue.getValue());
+          }
+        }
+        if (!labels.isEmpty()) {
+          key.append('{').append(String.join(",", labels)).append('}');
+        }
+        for (Point point : timeSeries.getPoints()) {
+          // The session pool only records long values
+          long value = point.getValue().match(Math::round, l -> l, d -> 0L, s -> 0L, v -> 0L);
+          values.merge(key.toString(), value, Long::sum);
+        }
+      }
+    }
+    return values;
+  }
+
+  private static ScheduledExecutorService newDaemonScheduledExecutor(String threadName) {
+    return Executors.newSingleThreadScheduledExecutor(
+        runnable -> {
+          Thread thread = new Thread(runnable, threadName);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /** Periodically folds balance shards back into the account balances, see schema.sdl. */
+  private static void scheduleBalanceShardFolding(SpannerDaoImpl spannerDao, long periodSeconds) {
+    newDaemonScheduledExecutor("balance-shard-folder")
+        .scheduleWithFixedDelay(
+            () -> {
+              try {
+                int accounts = spannerDao.foldAllBalanceShards();
+                if (accounts > 0) {
+                  logger.info("Folded balance shards of " + accounts + " accounts");
+                }
+              } catch (Exception e) {
+                // Keep the schedule; the next run folds what this one missed.
+                logger.log(Level.WARNING, "Failed to fold balance shards", e);
+              }
+            },
+            periodSeconds,
+            periodSeconds,
+            TimeUnit.SECONDS);
   }
 
   @Parameters(separators = "=")
@@ -86,5 +282,77 @@ public final class ServerMain {
         names = {"--spanner_use_pg"},
         arity = 0)
     boolean spannerUsePg = false;
+
+    // Not supported with --spanner_use_jdbc.
+    @Parameter(
+        names = {"--spanner_use_dml_returning"},
+        arity = 0)
+    boolean spannerUseDmlReturning = false;
+
+    // Only used with the default Java client DAO. Set it when some account has BalanceShards > 0;
+    // 0 disables folding.
+    @Parameter(names = {"--balance_shard_fold_seconds"})
+    long balanceShardFoldSeconds = 0;
+
+    // The session pool and channel settings only apply to the Java client DAOs; the defaults are
+    // those of the client library.
+    @Parameter(names = {"--spanner_min_sessions"})
+    int spannerMinSessions = 100;
+
+    @Parameter(names = {"--spanner_max_sessions"})
+    int spannerMaxSessions = 400;
+
+    // Fraction of the pooled sessions that are prepared with a read-write transaction.
+    @Parameter(names = {"--spanner_write_sessions_fraction"})
+    float spannerWriteSessionsFraction = 0.2f;
+
+    @Parameter(names = {"--spanner_num_channels"})
+    int spannerNumChannels = 4;
+
+    // Check out --spanner_min_sessions sessions once before the server starts.
+    @Parameter(
+        names = {"--spanner_warm_up"},
+        arity = 0)
+    boolean spannerWarmUp = false;
+
+    // 0 disables logging of the session pool metrics and the server counters.
+    @Parameter(names = {"--spanner_session_metrics_seconds"})
+    long spannerSessionMetricsSeconds = 0;
+
+    // Rejects calls beyond an adaptive limit with RESOURCE_EXHAUSTED; reads and writes are limited
+    // separately.
+    @Parameter(
+        names = {"--concurrency_limit"},
+        arity = 0)
+    boolean concurrencyLimit = false;
+
+    @Parameter(names = {"--concurrency_limit_initial"})
+    int concurrencyLimitInitial = 20;
+
+    @Parameter(names = {"--concurrency_limit_max_reads"})
+    int concurrencyLimitMaxReads = 400;
+
+    @Parameter(names = {"--concurrency_limit_max_writes"})
+    int concurrencyLimitMaxWrites = 400;
+
+    // Responses to requests with a request id that are kept in memory to answer retries.
+    @Parameter(names = {"--dedup_cache_size"})
+    long dedupCacheSize = FinAppService.DEFAULT_DEDUP_CACHE_SIZE;
+
+    @Parameter(names = {"--dedup_cache_seconds"})
+    long dedupCacheSeconds = FinAppService.DEFAULT_DEDUP_CACHE_SECONDS;
+
+    // Only used with the default Java client DAO, 0 reads every history on its own. Otherwise
+    // concurrent history reads are collected for this long, or until there are
+    // --history_batch_max_size of them, and read with one query.
+    @Parameter(names = {"--history_batch_window_micros"})
+    long historyBatchWindowMicros = 0;
+
+    @Parameter(names = {"--history_batch_max_size"})
+    int historyBatchMaxSize = 32;
+
+    // Number of batched history queries that run at once.
+    @Parameter(names = {"--history_batch_query_threads"})
+    int historyBatchQueryThreads = 8;
   }
 }
@@ -23,21 +23,52 @@ import com.google.cloud.spanner.Mutation;
 import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.SpannerException;
 import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
 import com.google.cloud.spanner.TransactionContext;
+import com.google.cloud.spanner.TransactionRunner.TransactionCallable;
 import com.google.cloud.spanner.Value;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 final class SpannerDaoImpl implements SpannerDaoInterface {
 
+  // Checks and updates both balances in one statement; an account that is missing, not active or
+  // short of funds is not updated and so not returned. Neither account is updated if either has
+  // balance shards.
+  private static final String MOVE_ACCOUNT_BALANCE_DML =
+      "UPDATE Account "
+          + "SET Balance = IF(AccountId = @fromAccountId, Balance - @amount, Balance + @amount) "
+          + "WHERE AccountId IN (@fromAccountId, @toAccountId) "
+          + "AND AccountStatus = @activeStatus "
+          + "AND (AccountId != @fromAccountId OR Balance >= @amount) "
+          + "AND NOT EXISTS (SELECT 1 FROM Account "
+          + "WHERE AccountId IN (@fromAccountId, @toAccountId) AND BalanceShards > 0) "
+          + "THEN RETURN AccountId, Balance";
+
   private final DatabaseClient databaseClient;
+  private final boolean useDmlReturning;
 
   SpannerDaoImpl(DatabaseClient databaseClient) {
+    this(databaseClient, /* useDmlReturning= */ false);
+  }
+
+  /**
+   * @param useDmlReturning if true, transfers check and update balances with a single guarded DML
+   *     statement instead of reading the accounts first
+   */
+  SpannerDaoImpl(DatabaseClient databaseClient, boolean useDmlReturning) {
     this.databaseClient = databaseClient;
+    this.useDmlReturning = useDmlReturning;
   }
 
   @Override
@@ -104,49 +135,121 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
 
   @Override
   public ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
-      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) throws StatusException {
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
+    if (useDmlReturning) {
+      return moveAccountBalanceWithDml(fromAccountId, toAccountId, amount, requestId);
+    }
     try {
-      return databaseClient
-          .readWriteTransaction()
-          .run(
-              transaction -> {
-                // Note that the transaction can run multiple times, we create
-                // accountBalancesBuilder inside the transaction to avoid
-                // setting the same key twice below.
-                ImmutableMap.Builder<ByteArray, BigDecimal> accountBalancesBuilder =
-                    ImmutableMap.builder();
-                // Get account balances.
-                ImmutableMap<ByteArray, AccountData> accountData =
-                    readAccountDataForTransfer(
-                        ImmutableList.of(fromAccountId, toAccountId), transaction);
-
-                BigDecimal newSourceAmount =
-                    accountData.get(fromAccountId).balance.subtract(amount);
-                BigDecimal newDestAmount = accountData.get(toAccountId).balance.add(amount);
-
-                if (newSourceAmount.signum() == -1) {
-                  throw Status.INVALID_ARGUMENT
-                      .withDescription(
-                          String.format(
-                              "Account balance cannot be negative. Original account balance: %s,"
-                                  + " amount to be removed: %s",
-                              accountData.get(fromAccountId).balance.toString(), amount.toString()))
-                      .asException();
-                }
+      ImmutableMap<ByteArray, BigDecimal> accountBalances =
+          runIdempotentTransaction(
+              requestId,
+              IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount),
+              transaction -> moveAccountBalance(fromAccountId, toAccountId, amount, transaction));
+      return withShardedBalances(accountBalances, ImmutableList.of(fromAccountId, toAccountId));
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
 
-                transaction.buffer(
-                    ImmutableList.of(
-                        buildUpdateAccountMutation(fromAccountId, newSourceAmount),
-                        buildUpdateAccountMutation(toAccountId, newDestAmount),
-                        buildInsertTransactionHistoryMutation(
-                            fromAccountId, amount, /* isCredit= */ true),
-                        buildInsertTransactionHistoryMutation(
-                            toAccountId, amount, /* isCredit= */ false)));
+  /**
+   * Reads both accounts and moves the amount in the given transaction.
+   *
+   * @return balances after the transfer, keyed by id; a sharded destination is left out as its
+   *     balance is only known after commit
+   */
+  private ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
+      ByteArray fromAccountId,
+      ByteArray toAccountId,
+      BigDecimal amount,
+      TransactionContext transaction)
+      throws StatusException {
+    // Note that the transaction can run multiple times, we create
+    // accountBalancesBuilder inside the transaction to avoid
+    // setting the same key twice below.
+    ImmutableMap.Builder<ByteArray, BigDecimal> accountBalancesBuilder = ImmutableMap.builder();
+    ImmutableList.Builder<Mutation> mutations = ImmutableList.builder();
+    // Get account balances.
+    ImmutableMap<ByteArray, AccountData> accountData =
+        readAccountDataForTransfer(ImmutableList.of(fromAccountId, toAccountId), transaction);
 
-                accountBalancesBuilder.put(fromAccountId, newSourceAmount);
-                accountBalancesBuilder.put(toAccountId, newDestAmount);
-                return accountBalancesBuilder.build();
-              });
+    BigDecimal sourceAmount = accountData.get(fromAccountId).balance;
+    if (accountData.get(fromAccountId).balanceShards > 0) {
+      sourceAmount = sourceAmount.add(foldBalanceShards(fromAccountId, transaction, mutations));
+    }
+    BigDecimal newSourceAmount = sourceAmount.subtract(amount);
+    if (newSourceAmount.signum() == -1) {
+      throw negativeBalanceError(sourceAmount, amount);
+    }
+    mutations.add(buildUpdateAccountMutation(fromAccountId, newSourceAmount));
+    accountBalancesBuilder.put(fromAccountId, newSourceAmount);
+
+    AccountData destData = accountData.get(toAccountId);
+    if (destData.balanceShards > 0) {
+      // Different sources credit different shards, so they do not wait for each other.
+      creditBalanceShard(
+          toAccountId,
+          Math.floorMod(fromAccountId.hashCode(), destData.balanceShards),
+          amount,
+          transaction);
+    } else {
+      BigDecimal newDestAmount = destData.balance.add(amount);
+      mutations.add(buildUpdateAccountMutation(toAccountId, newDestAmount));
+      accountBalancesBuilder.put(toAccountId, newDestAmount);
+    }
+
+    mutations.add(
+        buildInsertTransactionHistoryMutation(fromAccountId, amount, /* isCredit= */ true));
+    mutations.add(
+        buildInsertTransactionHistoryMutation(toAccountId, amount, /* isCredit= */ false));
+    transaction.buffer(mutations.build());
+    return accountBalancesBuilder.build();
+  }
+
+  @Override
+  public ImmutableList<ImmutableMap<ByteArray, BigDecimal>> moveAccountBalances(
+      ImmutableList<TransferLeg> legs) throws StatusException {
+    ImmutableSet<ByteArray> accountIds = TransferLegs.accountIds(legs);
+    try {
+      return runReadWriteTransaction(
+          transaction -> {
+            ImmutableList.Builder<Mutation> mutations = ImmutableList.builder();
+            ImmutableMap<ByteArray, AccountData> accountData =
+                readAccountDataForTransfer(accountIds, transaction);
+            Map<ByteArray, BigDecimal> initialBalances = new HashMap<>();
+            for (ByteArray accountId : accountIds) {
+              BigDecimal balance = accountData.get(accountId).balance;
+              if (accountData.get(accountId).balanceShards > 0) {
+                balance = balance.add(foldBalanceShards(accountId, transaction, mutations));
+              }
+              initialBalances.put(accountId, balance);
+            }
+            Map<ByteArray, BigDecimal> balances = new HashMap<>(initialBalances);
+            ImmutableList<ImmutableMap<ByteArray, BigDecimal>> legBalances =
+                TransferLegs.apply(legs, balances);
+
+            // Write every account at most once. TransactionHistory is keyed by commit timestamp,
+            // so each account gets a single entry for its net change, and none if that is zero.
+            // An account whose shards were folded is still updated to its folded balance.
+            for (ByteArray accountId : accountIds) {
+              BigDecimal change = balances.get(accountId).subtract(initialBalances.get(accountId));
+              if (balances.get(accountId).compareTo(accountData.get(accountId).balance) != 0) {
+                mutations.add(buildUpdateAccountMutation(accountId, balances.get(accountId)));
+              }
+              if (change.signum() != 0) {
+                mutations.add(
+                    buildInsertTransactionHistoryMutation(
+                        accountId, change.abs(), /* isCredit= */ change.signum() == -1));
+              }
+            }
+            transaction.buffer(mutations.build());
+            return legBalances;
+          });
     } catch (SpannerException e) {
       // filter for StatusException thrown in lambda function above
       Throwable cause = e.getCause();
@@ -159,37 +262,126 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
 
   @Override
   public BigDecimal createTransactionForAccount(
-      ByteArray accountId, BigDecimal amount, boolean isCredit) throws StatusException {
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
+    if (useDmlReturning) {
+      return createTransactionForAccountWithDml(accountId, amount, isCredit, requestId);
+    }
     try {
-      return databaseClient
-          .readWriteTransaction()
-          .run(
+      BigDecimal newBalance =
+          runIdempotentTransaction(
+                  requestId,
+                  IdempotentRequests.Payload.createTransactionForAccount(
+                      accountId, amount, isCredit),
+                  transaction ->
+                      IdempotentRequests.balanceOf(
+                          accountId,
+                          createTransactionForAccount(accountId, amount, isCredit, transaction)))
+              .get(accountId);
+      return newBalance != null
+          ? newBalance
+          : readBalances(ImmutableList.of(accountId)).get(accountId);
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  /**
+   * Reads the account and applies the transaction in the given transaction.
+   *
+   * @return new balance of the account, or null if the amount was added to a balance shard, as the
+   *     balance is then only known after commit
+   */
+  private BigDecimal createTransactionForAccount(
+      ByteArray accountId, BigDecimal amount, boolean isCredit, TransactionContext transaction)
+      throws StatusException {
+    ImmutableList.Builder<Mutation> mutations = ImmutableList.builder();
+    AccountData accountData =
+        readAccountDataForTransfer(ImmutableList.of(accountId), transaction).get(accountId);
+    mutations.add(buildInsertTransactionHistoryMutation(accountId, amount, isCredit));
+    if (!isCredit && accountData.balanceShards > 0) {
+      creditBalanceShard(
+          accountId,
+          ThreadLocalRandom.current().nextInt(accountData.balanceShards),
+          amount,
+          transaction);
+      transaction.buffer(mutations.build());
+      return null;
+    }
+
+    BigDecimal oldBalance = accountData.balance;
+    if (accountData.balanceShards > 0) {
+      oldBalance = oldBalance.add(foldBalanceShards(accountId, transaction, mutations));
+    }
+    BigDecimal newBalance;
+    if (isCredit) {
+      newBalance = oldBalance.subtract(amount);
+    } else {
+      newBalance = oldBalance.add(amount);
+    }
+
+    if (newBalance.signum() == -1) {
+      throw negativeBalanceError(oldBalance, amount);
+    }
+    mutations.add(buildUpdateAccountMutation(accountId, newBalance));
+    transaction.buffer(mutations.build());
+    return newBalance;
+  }
+
+  private ImmutableMap<ByteArray, BigDecimal> moveAccountBalanceWithDml(
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
+    Statement statement =
+        Statement.newBuilder(MOVE_ACCOUNT_BALANCE_DML)
+            .bind("fromAccountId")
+            .to(fromAccountId)
+            .bind("toAccountId")
+            .to(toAccountId)
+            .bind("amount")
+            .to(amount)
+            .bind("activeStatus")
+            .to(AccountStatus.ACTIVE.getNumber())
+            .build();
+    try {
+      ImmutableMap<ByteArray, BigDecimal> accountBalances =
+          runIdempotentTransaction(
+              requestId,
+              IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount),
               transaction -> {
-                AccountData accountData =
-                    readAccountDataForTransfer(ImmutableList.of(accountId), transaction)
-                        .get(accountId);
-                BigDecimal newBalance;
-                if (isCredit) {
-                  newBalance = accountData.balance.subtract(amount);
-                } else {
-                  newBalance = accountData.balance.add(amount);
+                Map<ByteArray, BigDecimal> balances = new HashMap<>();
+                try (ResultSet resultSet = transaction.executeQuery(statement)) {
+                  while (resultSet.next()) {
+                    balances.put(
+                        resultSet.getBytes("AccountId"), resultSet.getBigDecimal("Balance"));
+                  }
                 }
-
-                if (newBalance.signum() == -1) {
-                  throw Status.INVALID_ARGUMENT
-                      .withDescription(
-                          String.format(
-                              "Account balance cannot be negative. original account balance:"
-                                  + " %s, amount to be removed: %s",
-                              accountData.balance, amount))
-                      .asException();
+                if (balances.size() < 2) {
+                  ImmutableList<ByteArray> accountIds =
+                      ImmutableList.of(fromAccountId, toAccountId);
+                  ImmutableMap<ByteArray, AccountData> accountData =
+                      readAccountDataForTransfer(accountIds, transaction);
+                  if (accountData.get(fromAccountId).balanceShards > 0
+                      || accountData.get(toAccountId).balanceShards > 0) {
+                    // The update skipped both accounts; transfer after reading them.
+                    return moveAccountBalance(fromAccountId, toAccountId, amount, transaction);
+                  }
+                  // Throwing rolls back the update of the account that did match.
+                  throw negativeBalanceError(accountData.get(fromAccountId).balance, amount);
                 }
                 transaction.buffer(
                     ImmutableList.of(
-                        buildUpdateAccountMutation(accountId, newBalance),
-                        buildInsertTransactionHistoryMutation(accountId, amount, isCredit)));
-                return newBalance;
+                        buildInsertTransactionHistoryMutation(
+                            fromAccountId, amount, /* isCredit= */ true),
+                        buildInsertTransactionHistoryMutation(
+                            toAccountId, amount, /* isCredit= */ false)));
+                return ImmutableMap.copyOf(balances);
               });
+      return withShardedBalances(accountBalances, ImmutableList.of(fromAccountId, toAccountId));
     } catch (SpannerException e) {
       // filter for StatusException thrown in lambda function above
       Throwable cause = e.getCause();
@@ -200,6 +392,106 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
     }
   }
 
+  private BigDecimal createTransactionForAccountWithDml(
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
+    Statement statement =
+        Statement.newBuilder(
+                "UPDATE Account "
+                    + (isCredit
+                        ? "SET Balance = Balance - @amount "
+                        : "SET Balance = Balance + @amount ")
+                    + "WHERE AccountId = @accountId AND AccountStatus = @activeStatus "
+                    + "AND IFNULL(BalanceShards, 0) = 0 "
+                    + (isCredit ? "AND Balance >= @amount " : "")
+                    + "THEN RETURN Balance")
+            .bind("accountId")
+            .to(accountId)
+            .bind("amount")
+            .to(amount)
+            .bind("activeStatus")
+            .to(AccountStatus.ACTIVE.getNumber())
+            .build();
+    try {
+      BigDecimal newBalance =
+          runIdempotentTransaction(
+                  requestId,
+                  IdempotentRequests.Payload.createTransactionForAccount(
+                      accountId, amount, isCredit),
+                  transaction -> {
+                    try (ResultSet resultSet = transaction.executeQuery(statement)) {
+                      if (resultSet.next()) {
+                        transaction.buffer(
+                            buildInsertTransactionHistoryMutation(accountId, amount, isCredit));
+                        return IdempotentRequests.balanceOf(
+                            accountId, resultSet.getBigDecimal("Balance"));
+                      }
+                    }
+                    AccountData accountData =
+                        readAccountDataForTransfer(ImmutableList.of(accountId), transaction)
+                            .get(accountId);
+                    if (accountData.balanceShards > 0) {
+                      // The update skipped the account; apply the transaction after reading it.
+                      return IdempotentRequests.balanceOf(
+                          accountId,
+                          createTransactionForAccount(accountId, amount, isCredit, transaction));
+                    }
+                    throw negativeBalanceError(accountData.balance, amount);
+                  })
+              .get(accountId);
+      return newBalance != null
+          ? newBalance
+          : readBalances(ImmutableList.of(accountId)).get(accountId);
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  /**
+   * Folds the balance shards of every account that has any back into Account.Balance, one
+   * transaction per account, so that balance reads and debits of sharded accounts stay cheap.
+   *
+   * @return number of accounts whose shards were folded
+   */
+  int foldAllBalanceShards() throws StatusException {
+    ImmutableList.Builder<ByteArray> accountIdsBuilder = ImmutableList.builder();
+    try (ResultSet resultSet =
+        databaseClient
+            .singleUse()
+            .executeQuery(Statement.of("SELECT DISTINCT AccountId FROM AccountBalanceShard"))) {
+      while (resultSet.next()) {
+        accountIdsBuilder.add(resultSet.getBytes("AccountId"));
+      }
+    } catch (SpannerException e) {
+      throw Status.fromThrowable(e).asException();
+    }
+    ImmutableList<ByteArray> accountIds = accountIdsBuilder.build();
+    for (ByteArray accountId : accountIds) {
+      try {
+        runReadWriteTransaction(
+            transaction -> {
+              ImmutableList.Builder<Mutation> mutations = ImmutableList.builder();
+              BigDecimal balance =
+                  transaction
+                      .readRow("Account", Key.of(accountId), ImmutableList.of("Balance"))
+                      .getBigDecimal("Balance");
+              balance = balance.add(foldBalanceShards(accountId, transaction, mutations));
+              mutations.add(buildUpdateAccountMutation(accountId, balance));
+              transaction.buffer(mutations.build());
+              return null;
+            });
+      } catch (SpannerException e) {
+        throw Status.fromThrowable(e).asException();
+      }
+    }
+    return accountIds.size();
+  }
+
   @Override
   public ImmutableList<TransactionEntry> getRecentTransactionsForAccount(
       ByteArray accountId, Timestamp beginTimestamp, Timestamp endTimestamp, int maxEntryCount)
@@ -223,13 +515,7 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
     try (ResultSet resultSet = databaseClient.singleUse().executeQuery(statement)) {
       ImmutableList.Builder<TransactionEntry> transactionHistoriesBuilder = ImmutableList.builder();
       while (resultSet.next()) {
-        transactionHistoriesBuilder.add(
-            TransactionEntry.newBuilder()
-                .setAccountId(ByteString.copyFrom(resultSet.getBytes("AccountId").toByteArray()))
-                .setEventTimestamp(resultSet.getTimestamp("EventTimestamp").toProto())
-                .setIsCredit(resultSet.getBoolean("IsCredit"))
-                .setAmount(resultSet.getBigDecimal("Amount").toString())
-                .build());
+        transactionHistoriesBuilder.add(toTransactionEntry(resultSet));
       }
       return transactionHistoriesBuilder.build();
     } catch (SpannerException e) {
@@ -237,6 +523,74 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
     }
   }
 
+  /**
+   * Runs several history reads with one query, used by {@link HistoryReadBatcher}. Each read is a
+   * branch of a UNION ALL with its own account, time window and LIMIT, so every read still only
+   * scans its newest entries, and the rows carry the index of their read.
+   *
+   * @return the entries of each read, in the order of queries
+   */
+  ImmutableList<ImmutableList<TransactionEntry>> getRecentTransactionsForAccounts(
+      ImmutableList<HistoryQuery> queries) throws StatusException {
+    StringBuilder sql = new StringBuilder("SELECT * FROM (");
+    for (int i = 0; i < queries.size(); i++) {
+      sql.append(i == 0 ? "" : " UNION ALL ")
+          .append("(SELECT ")
+          .append(i)
+          .append(" AS Idx, AccountId, EventTimestamp, IsCredit, Amount ")
+          .append("FROM TransactionHistory ")
+          .append("WHERE AccountId = @accountId")
+          .append(i)
+          .append(" AND EventTimestamp >= @beginTimestamp")
+          .append(i)
+          .append(" AND EventTimestamp < @endTimestamp")
+          .append(i)
+          .append(" ORDER BY EventTimestamp DESC")
+          .append(queries.get(i).maxEntryCount > 0 ? " LIMIT @limit" + i : "")
+          .append(")");
+    }
+    sql.append(") ORDER BY Idx, EventTimestamp DESC");
+    Statement.Builder statement = Statement.newBuilder(sql.toString());
+    for (int i = 0; i < queries.size(); i++) {
+      HistoryQuery query = queries.get(i);
+      statement
+          .bind("accountId" + i)
+          .to(query.accountId)
+          .bind("beginTimestamp" + i)
+          .to(query.beginTimestamp)
+          .bind("endTimestamp" + i)
+          .to(query.endTimestamp);
+      if (query.maxEntryCount > 0) {
+        statement.bind("limit" + i).to(query.maxEntryCount);
+      }
+    }
+    List<ImmutableList.Builder<TransactionEntry>> entries = new ArrayList<>();
+    for (int i = 0; i < queries.size(); i++) {
+      entries.add(ImmutableList.builder());
+    }
+    try (ResultSet resultSet = databaseClient.singleUse().executeQuery(statement.build())) {
+      while (resultSet.next()) {
+        entries.get((int) resultSet.getLong("Idx")).add(toTransactionEntry(resultSet));
+      }
+    } catch (SpannerException e) {
+      throw Status.fromThrowable(e).asException();
+    }
+    ImmutableList.Builder<ImmutableList<TransactionEntry>> result = ImmutableList.builder();
+    for (ImmutableList.Builder<TransactionEntry> builder : entries) {
+      result.add(builder.build());
+    }
+    return result.build();
+  }
+
+  private static TransactionEntry toTransactionEntry(ResultSet resultSet) {
+    return TransactionEntry.newBuilder()
+        .setAccountId(ByteString.copyFrom(resultSet.getBytes("AccountId").toByteArray()))
+        .setEventTimestamp(resultSet.getTimestamp("EventTimestamp").toProto())
+        .setIsCredit(resultSet.getBoolean("IsCredit"))
+        .setAmount(resultSet.getBigDecimal("Amount").toString())
+        .build();
+  }
+
   /**
    * Returns an ImmutableMap of all requested AccountData keyed by account ids.
    *
@@ -256,12 +610,14 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
         transaction.read(
             "Account",
             keySetBuilder.build(),
-            ImmutableList.of("AccountId", "AccountStatus", "Balance"));
+            ImmutableList.of("AccountId", "AccountStatus", "Balance", "BalanceShards"));
 
     ImmutableMap.Builder<ByteArray, AccountData> accountDataBuilder = ImmutableMap.builder();
     while (resultSet.next()) {
       AccountData accountData = new AccountData();
       accountData.balance = resultSet.getBigDecimal("Balance");
+      accountData.balanceShards =
+          resultSet.isNull("BalanceShards") ? 0 : (int) resultSet.getLong("BalanceShards");
       accountData.status = AccountStatus.forNumber((int) resultSet.getLong("AccountStatus"));
       accountDataBuilder.put(resultSet.getBytes("AccountId"), accountData);
     }
@@ -282,6 +638,113 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
     return accountData;
   }
 
+  /**
+   * Returns the sum of the balance shards of an account and adds a mutation deleting them to
+   * mutations, so that the caller can move the sum into Account.Balance.
+   */
+  private BigDecimal foldBalanceShards(
+      ByteArray accountId,
+      TransactionContext transaction,
+      ImmutableList.Builder<Mutation> mutations) {
+    BigDecimal sum = BigDecimal.ZERO;
+    KeySet shards = KeySet.prefixRange(Key.of(accountId));
+    try (ResultSet resultSet =
+        transaction.read("AccountBalanceShard", shards, ImmutableList.of("Balance"))) {
+      while (resultSet.next()) {
+        sum = sum.add(resultSet.getBigDecimal("Balance"));
+      }
+    }
+    mutations.add(Mutation.delete("AccountBalanceShard", shards));
+    return sum;
+  }
+
+  /**
+   * Adds the amount to one balance shard of an account without reading or writing Account.Balance,
+   * so that credits to different shards do not conflict.
+   */
+  private void creditBalanceShard(
+      ByteArray accountId, long shard, BigDecimal amount, TransactionContext transaction) {
+    long rowCount =
+        transaction.executeUpdate(
+            Statement.newBuilder(
+                    "UPDATE AccountBalanceShard SET Balance = Balance + @amount "
+                        + "WHERE AccountId = @accountId AND Shard = @shard")
+                .bind("amount")
+                .to(amount)
+                .bind("accountId")
+                .to(accountId)
+                .bind("shard")
+                .to(shard)
+                .build());
+    if (rowCount == 0) {
+      // Shards are created on first use and deleted when folded.
+      transaction.buffer(
+          Mutation.newInsertBuilder("AccountBalanceShard")
+              .set("AccountId")
+              .to(accountId)
+              .set("Shard")
+              .to(shard)
+              .set("Balance")
+              .to(amount)
+              .build());
+    }
+  }
+
+  /**
+   * Returns balances with the current balance of every account in accountIds that it is missing,
+   * read after commit as Account.Balance plus the balance shards.
+   */
+  private ImmutableMap<ByteArray, BigDecimal> withShardedBalances(
+      ImmutableMap<ByteArray, BigDecimal> balances, ImmutableList<ByteArray> accountIds)
+      throws StatusException {
+    ImmutableList.Builder<ByteArray> missing = ImmutableList.builder();
+    for (ByteArray accountId : accountIds) {
+      if (!balances.containsKey(accountId)) {
+        missing.add(accountId);
+      }
+    }
+    ImmutableList<ByteArray> missingIds = missing.build();
+    if (missingIds.isEmpty()) {
+      return balances;
+    }
+    return ImmutableMap.<ByteArray, BigDecimal>builder()
+        .putAll(balances)
+        .putAll(readBalances(missingIds))
+        .build();
+  }
+
+  /** Reads the balances of the accounts, including their balance shards, keyed by id. */
+  private ImmutableMap<ByteArray, BigDecimal> readBalances(ImmutableList<ByteArray> accountIds)
+      throws StatusException {
+    Statement statement =
+        Statement.newBuilder(
+                "SELECT a.AccountId, a.Balance + IFNULL((SELECT SUM(s.Balance) "
+                    + "FROM AccountBalanceShard s WHERE s.AccountId = a.AccountId), 0) AS Balance "
+                    + "FROM Account a WHERE a.AccountId IN UNNEST(@accountIds)")
+            .bind("accountIds")
+            .toBytesArray(accountIds)
+            .build();
+    ImmutableMap.Builder<ByteArray, BigDecimal> balances = ImmutableMap.builder();
+    try (ResultSet resultSet = databaseClient.singleUse().executeQuery(statement)) {
+      while (resultSet.next()) {
+        balances.put(resultSet.getBytes("AccountId"), resultSet.getBigDecimal("Balance"));
+      }
+    } catch (SpannerException e) {
+      throw Status.fromThrowable(e).asException();
+    }
+    return balances.build();
+  }
+
+  private static StatusException negativeBalanceError(BigDecimal balance, BigDecimal amount) {
+    return Status.INVALID_ARGUMENT
+        .withDescription(
+            String.format(
+                "Account balance cannot be negative. Original account balance: %s,"
+                    + " amount to be removed: %s",
+                balance, amount))
+        .asException();
+  }
+
   private Mutation buildUpdateAccountMutation(ByteArray accountId, BigDecimal newBalance) {
     return Mutation.newUpdateBuilder("Account")
         .set("AccountId")
@@ -304,4 +767,66 @@ final class SpannerDaoImpl implements SpannerDaoInterface {
         .to(Value.COMMIT_TIMESTAMP)
         .build();
   }
+
+  /**
+   * Runs the callable in a read-write transaction that also records the balances it returns under
+   * requestId, with the payload of the request, unless requestId is empty. If a transaction already
+   * recorded balances under requestId for the same payload, returns those instead, without running
+   * the callable; if it recorded them for another payload, fails with INVALID_ARGUMENT.
+   */
+  private ImmutableMap<ByteArray, BigDecimal> runIdempotentTransaction(
+      String requestId,
+      IdempotentRequests.Payload payload,
+      TransactionCallable<ImmutableMap<ByteArray, BigDecimal>> callable) {
+    if (requestId.isEmpty()) {
+      return runReadWriteTransaction(callable);
+    }
+    return runReadWriteTransaction(
+        transaction -> {
+          Struct recorded =
+              transaction.readRow(
+                  "IdempotentRequest",
+                  Key.of(requestId),
+                  ImmutableList.of("Method", "Fingerprint", "AccountIds", "Balances"));
+          if (recorded != null) {
+            payload.checkSameAs(
+                requestId,
+                new IdempotentRequests.Payload(
+                    recorded.getString("Method"), recorded.getString("Fingerprint")));
+            return IdempotentRequests.toBalances(
+                recorded.getBytesList("AccountIds"), recorded.getStringList("Balances"));
+          }
+          ImmutableMap<ByteArray, BigDecimal> balances = callable.run(transaction);
+          transaction.buffer(
+              Mutation.newInsertBuilder("IdempotentRequest")
+                  .set("RequestId")
+                  .to(requestId)
+                  .set("CreationTimestamp")
+                  .to(Value.COMMIT_TIMESTAMP)
+                  .set("Method")
+                  .to(payload.method)
+                  .set("Fingerprint")
+                  .to(payload.fingerprint)
+                  .set("AccountIds")
+                  .toBytesArray(IdempotentRequests.accountIds(balances))
+                  .set("Balances")
+                  .toStringArray(IdempotentRequests.balances(balances))
+                  .build());
+          return balances;
+        });
+  }
+
+  /**
+   * Runs the callable in a read-write transaction, without attempting it again once the call being
+   * served has been cancelled.
+   */
+  private <T> T runReadWriteTransaction(TransactionCallable<T> callable) {
+    return databaseClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              DeadlinePropagationInterceptor.checkNotCancelled();
+              return callable.run(transaction);
+            });
+  }
 }
@@ -50,10 +50,28 @@ public interface SpannerDaoInterface {
    * @param toAccountId unique account id where amount will be transferred to
    * @param amount amount transferred from fromAccountId to toAccountId, must be less than or equal
    *     to fromAccountId's account balance, must be non-negative
+   * @param requestId if not empty, the transfer is recorded under this id in the same transaction,
+   *     and a later call with the same id returns the recorded balances instead of moving the
+   *     amount again; a later call that reuses the id for other arguments or for another method
+   *     fails with INVALID_ARGUMENT
    * @return mapping of both accounts' balances after the transfer was made, keyed by id
    */
   ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
-      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) throws StatusException;
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException;
+
+  /**
+   * Applies a list of transfer legs in order in a single transaction: every involved account is
+   * read once and gets one row in the TransactionHistory table for its net change. Accounts whose
+   * net change is zero are not written. Either all legs are applied or none.
+   *
+   * @param legs legs to apply, each between two different accounts with a non-negative amount
+   * @return for each leg, the balances of its two accounts right after it, keyed by id
+   * @throws StatusException if an account is missing or not active, or a leg would make a balance
+   *     negative
+   */
+  ImmutableList<ImmutableMap<ByteArray, BigDecimal>> moveAccountBalances(
+      ImmutableList<TransferLeg> legs) throws StatusException;
 
   /**
    * Modifies the account's balance in the Account table, subtracting the amount if isCredit and
@@ -62,9 +80,14 @@ public interface SpannerDaoInterface {
    * @param amount amount added to or removed from the account, must be less than or equal to the
    *     account's balance if isCredit, must be non-negative
    * @param isCredit boolean for if the amount should be removed from the account
+   * @param requestId if not empty, the transaction is recorded under this id, and a later call with
+   *     the same id returns the recorded balance instead of applying the transaction again; a later
+   *     call that reuses the id for other arguments or for another method fails with
+   *     INVALID_ARGUMENT
    * @return new balance of the account after the transaction
    */
-  BigDecimal createTransactionForAccount(ByteArray accountId, BigDecimal amount, boolean isCredit)
+  BigDecimal createTransactionForAccount(
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
       throws StatusException;
 
   /**
@@ -83,5 +106,37 @@ public interface SpannerDaoInterface {
   class AccountData {
     AccountStatus status;
     BigDecimal balance;
+    // Number of balance shards, 0 if credits go to balance. Only SpannerDaoImpl credits shards,
+    // SpannerDaoJDBCImpl folds them into balance when it reads the account.
+    int balanceShards;
+  }
+
+  /** Helper data class for one leg of {@link #moveAccountBalances}. */
+  class TransferLeg {
+    final ByteArray fromAccountId;
+    final ByteArray toAccountId;
+    final BigDecimal amount;
+
+    TransferLeg(ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) {
+      this.fromAccountId = fromAccountId;
+      this.toAccountId = toAccountId;
+      this.amount = amount;
+    }
+  }
+
+  /** Helper data class for the arguments of one {@link #getRecentTransactionsForAccount} call. */
+  class HistoryQuery {
+    final ByteArray accountId;
+    final Timestamp beginTimestamp;
+    final Timestamp endTimestamp;
+    final int maxEntryCount;
+
+    HistoryQuery(
+        ByteArray accountId, Timestamp beginTimestamp, Timestamp endTimestamp, int maxEntryCount) {
+      this.accountId = accountId;
+      this.beginTimestamp = beginTimestamp;
+      this.endTimestamp = endTimestamp;
+      this.maxEntryCount = maxEntryCount;
+    }
   }
 }
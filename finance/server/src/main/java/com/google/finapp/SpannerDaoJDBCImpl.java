@@ -18,6 +18,7 @@ import com.google.cloud.ByteArray;
 import com.google.cloud.Timestamp;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.StatusException;
@@ -27,8 +28,12 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
 
@@ -108,9 +113,20 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
   }
 
   public ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
-      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) throws StatusException {
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
     try (Connection connection = DriverManager.getConnection(this.connectionUrl)) {
       connection.setAutoCommit(false);
+      IdempotentRequests.Payload payload =
+          IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount);
+      if (!requestId.isEmpty()) {
+        ImmutableMap<ByteArray, BigDecimal> recorded =
+            readRecordedBalances(requestId, payload, connection);
+        if (recorded != null) {
+          connection.commit();
+          return recorded;
+        }
+      }
       ImmutableMap<ByteArray, AccountData> accountData =
           readAccountDataForTransfer(ImmutableList.of(fromAccountId, toAccountId), connection);
       byte[] fromAccountIdArray = fromAccountId.toByteArray();
@@ -128,20 +144,78 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
                     sourceAmount, amount))
             .asException();
       }
-      updateAccount(fromAccountId.toByteArray(), newSourceAmount, connection);
-      updateAccount(toAccountIdArray, newDestAmount, connection);
-      insertTransferTransactions(fromAccountIdArray, toAccountIdArray, amount, connection);
+      ImmutableMap<ByteArray, BigDecimal> balances =
+          ImmutableMap.of(fromAccountId, newSourceAmount, toAccountId, newDestAmount);
+      // Buffer the statements and send them in one round trip.
+      try (Statement batch = connection.createStatement()) {
+        batch.execute("START BATCH DML");
+        updateAccount(fromAccountIdArray, newSourceAmount, connection);
+        updateAccount(toAccountIdArray, newDestAmount, connection);
+        insertTransferTransactions(fromAccountIdArray, toAccountIdArray, amount, connection);
+        if (!requestId.isEmpty()) {
+          insertIdempotentRequest(requestId, payload, balances, connection);
+        }
+        batch.execute("RUN BATCH");
+      }
       connection.commit();
-      return ImmutableMap.of(fromAccountId, newSourceAmount, toAccountId, newDestAmount);
+      return balances;
+    } catch (SQLException e) {
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  public ImmutableList<ImmutableMap<ByteArray, BigDecimal>> moveAccountBalances(
+      ImmutableList<TransferLeg> legs) throws StatusException {
+    ImmutableSet<ByteArray> accountIds = TransferLegs.accountIds(legs);
+    try (Connection connection = DriverManager.getConnection(this.connectionUrl)) {
+      connection.setAutoCommit(false);
+      ImmutableMap<ByteArray, AccountData> accountData =
+          readAccountDataForTransfer(accountIds, connection);
+      Map<ByteArray, BigDecimal> balances = new HashMap<>();
+      for (ByteArray accountId : accountIds) {
+        balances.put(accountId, accountData.get(accountId).balance);
+      }
+      ImmutableList<ImmutableMap<ByteArray, BigDecimal>> legBalances =
+          TransferLegs.apply(legs, balances);
+
+      // Write every account at most once. TransactionHistory is keyed by commit timestamp, so each
+      // account gets a single entry for its net change, and none if that is zero.
+      try (Statement batch = connection.createStatement()) {
+        batch.execute("START BATCH DML");
+        for (ByteArray accountId : accountIds) {
+          BigDecimal change = balances.get(accountId).subtract(accountData.get(accountId).balance);
+          if (change.signum() == 0) {
+            continue;
+          }
+          byte[] accountIdArray = accountId.toByteArray();
+          updateAccount(accountIdArray, balances.get(accountId), connection);
+          insertTransaction(
+              accountIdArray, change.abs(), /* isCredit= */ change.signum() == -1, connection);
+        }
+        batch.execute("RUN BATCH");
+      }
+      connection.commit();
+      return legBalances;
     } catch (SQLException e) {
       throw Status.fromThrowable(e).asException();
     }
   }
 
   public BigDecimal createTransactionForAccount(
-      ByteArray accountId, BigDecimal amount, boolean isCredit) throws StatusException {
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
     try (Connection connection = DriverManager.getConnection(this.connectionUrl)) {
       connection.setAutoCommit(false);
+      IdempotentRequests.Payload payload =
+          IdempotentRequests.Payload.createTransactionForAccount(accountId, amount, isCredit);
+      if (!requestId.isEmpty()) {
+        ImmutableMap<ByteArray, BigDecimal> recorded =
+            readRecordedBalances(requestId, payload, connection);
+        if (recorded != null) {
+          connection.commit();
+          return recorded.get(accountId);
+        }
+      }
       byte[] accountIdArray = accountId.toByteArray();
       BigDecimal oldBalance =
           readAccountDataForTransfer(ImmutableList.of(accountId), connection)
@@ -162,8 +236,16 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
                     oldBalance, amount))
             .asException();
       }
-      updateAccount(accountIdArray, newBalance, connection);
-      insertTransaction(accountIdArray, amount, isCredit, connection);
+      try (Statement batch = connection.createStatement()) {
+        batch.execute("START BATCH DML");
+        updateAccount(accountIdArray, newBalance, connection);
+        insertTransaction(accountIdArray, amount, isCredit, connection);
+        if (!requestId.isEmpty()) {
+          insertIdempotentRequest(
+              requestId, payload, ImmutableMap.of(accountId, newBalance), connection);
+        }
+        batch.execute("RUN BATCH");
+      }
       connection.commit();
       return newBalance;
     } catch (SQLException e) {
@@ -205,7 +287,9 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
   }
 
   /**
-   * Returns an ImmutableMap of all requested AccountData keyed by account ids.
+   * Returns an ImmutableMap of all requested AccountData keyed by account ids. The balance shards
+   * that SpannerDaoImpl credits are folded into Account.Balance first, in the same transaction, so
+   * the returned balance is the full balance and is already stored.
    *
    * @param accountIds account ids for which to return AccountData
    * @param connection used for queries
@@ -218,7 +302,8 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
     ImmutableMap<ByteArray, AccountData> accountDataMap;
     try (PreparedStatement readStatement =
         connection.prepareStatement(
-            "SELECT AccountId, AccountStatus, Balance FROM Account WHERE AccountId IN UNNEST(?)")) {
+            "SELECT AccountId, AccountStatus, Balance, BalanceShards FROM Account"
+                + " WHERE AccountId IN UNNEST(?)")) {
       List<byte[]> accountIdArrays = new ArrayList<>();
       for (ByteArray accountId : accountIds) {
         accountIdArrays.add(accountId.toByteArray());
@@ -230,6 +315,8 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
         AccountData accountData = new AccountData();
         accountData.balance = resultSet.getBigDecimal("Balance");
         accountData.status = AccountStatus.forNumber((int) resultSet.getLong("AccountStatus"));
+        // getLong returns 0 for NULL
+        accountData.balanceShards = (int) resultSet.getLong("BalanceShards");
         accountDataBuilder.put(ByteArray.copyFrom(resultSet.getBytes("AccountId")), accountData);
       }
       accountDataMap = accountDataBuilder.build();
@@ -249,9 +336,106 @@ final class SpannerDaoJDBCImpl implements SpannerDaoInterface {
             .asException();
       }
     }
+    try {
+      for (Map.Entry<ByteArray, AccountData> entry : accountDataMap.entrySet()) {
+        if (entry.getValue().balanceShards > 0) {
+          foldBalanceShards(entry.getKey().toByteArray(), entry.getValue(), connection);
+        }
+      }
+    } catch (SQLException e) {
+      throw Status.fromThrowable(e).asException();
+    }
     return accountDataMap;
   }
 
+  /**
+   * Moves the sum of the balance shards of an account into Account.Balance and deletes the shards,
+   * updating accountData to the folded balance.
+   */
+  private void foldBalanceShards(byte[] accountId, AccountData accountData, Connection connection)
+      throws SQLException {
+    BigDecimal sum;
+    try (PreparedStatement readStatement =
+        connection.prepareStatement(
+            "SELECT COUNT(*) AS Shards, SUM(Balance) AS Balance FROM AccountBalanceShard"
+                + " WHERE AccountId = ?")) {
+      readStatement.setBytes(1, accountId);
+      try (java.sql.ResultSet resultSet = readStatement.executeQuery()) {
+        resultSet.next();
+        if (resultSet.getLong("Shards") == 0) {
+          return;
+        }
+        sum = resultSet.getBigDecimal("Balance");
+      }
+    }
+    try (PreparedStatement preparedStatement =
+        connection.prepareStatement("DELETE FROM AccountBalanceShard WHERE AccountId = ?")) {
+      preparedStatement.setBytes(1, accountId);
+      preparedStatement.executeUpdate();
+    }
+    accountData.balance = accountData.balance.add(sum);
+    updateAccount(accountId, accountData.balance, connection);
+  }
+
+  /**
+   * Returns the balances recorded under requestId by an earlier transaction, or null if there is
+   * none.
+   *
+   * @throws StatusException with INVALID_ARGUMENT if requestId was recorded for another payload
+   */
+  private ImmutableMap<ByteArray, BigDecimal> readRecordedBalances(
+      String requestId, IdempotentRequests.Payload payload, Connection connection)
+      throws SQLException, StatusException {
+    try (PreparedStatement readStatement =
+        connection.prepareStatement(
+            "SELECT Method, Fingerprint, AccountIds, Balances FROM IdempotentRequest"
+                + " WHERE RequestId = ?")) {
+      readStatement.setString(1, requestId);
+      try (java.sql.ResultSet resultSet = readStatement.executeQuery()) {
+        if (!resultSet.next()) {
+          return null;
+        }
+        payload.checkSameAs(
+            requestId,
+            new IdempotentRequests.Payload(
+                resultSet.getString("Method"), resultSet.getString("Fingerprint")));
+        List<ByteArray> accountIds = new ArrayList<>();
+        for (byte[] accountId : (byte[][]) resultSet.getArray("AccountIds").getArray()) {
+          accountIds.add(ByteArray.copyFrom(accountId));
+        }
+        return IdempotentRequests.toBalances(
+            accountIds, Arrays.asList((String[]) resultSet.getArray("Balances").getArray()));
+      }
+    }
+  }
+
+  private void insertIdempotentRequest(
+      String requestId,
+      IdempotentRequests.Payload payload,
+      ImmutableMap<ByteArray, BigDecimal> balances,
+      Connection connection)
+      throws SQLException {
+    List<byte[]> accountIds = new ArrayList<>();
+    for (ByteArray accountId : balances.keySet()) {
+      accountIds.add(accountId.toByteArray());
+    }
+    try (PreparedStatement preparedStatement =
+        connection.prepareStatement(
+            "INSERT INTO IdempotentRequest"
+                + " (RequestId, CreationTimestamp, Method, Fingerprint, AccountIds, Balances)"
+                + " VALUES (?, PENDING_COMMIT_TIMESTAMP(), ?, ?, ?, ?)")) {
+      preparedStatement.setString(1, requestId);
+      preparedStatement.setString(2, payload.method);
+      preparedStatement.setString(3, payload.fingerprint);
+      preparedStatement.setArray(4, connection.createArrayOf("BYTES", accountIds.toArray()));
+      preparedStatement.setArray(
+          5,
+          connection.createArrayOf(
+              "STRING", IdempotentRequests.balances(balances).toArray(new String[0])));
+      preparedStatement.executeUpdate();
+    }
+  }
+
   private void updateAccount(byte[] accountId, BigDecimal newBalance, Connection connection)
       throws SQLException {
     try (PreparedStatement preparedStatement =
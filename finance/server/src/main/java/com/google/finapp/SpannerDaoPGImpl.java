@@ -23,46 +23,68 @@ import com.google.cloud.spanner.ResultSet;
 import com.google.cloud.spanner.SpannerException;
 import com.google.cloud.spanner.Statement;
 import com.google.cloud.spanner.TransactionContext;
+import com.google.cloud.spanner.TransactionRunner.TransactionCallable;
 import com.google.cloud.spanner.Value;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
 
 final class SpannerDaoPGImpl implements SpannerDaoInterface {
 
+  // Checks and updates both balances in one statement; an account that is missing, not active or
+  // short of funds is not updated and so not returned.
+  private static final String MOVE_ACCOUNT_BALANCE_DML =
+      "UPDATE Account "
+          + "SET Balance = CASE WHEN AccountId = $1 THEN Balance - $3 ELSE Balance + $3 END "
+          + "WHERE AccountId IN ($1, $2) "
+          + "AND AccountStatus = $4 "
+          + "AND (AccountId <> $1 OR Balance >= $3) "
+          + "RETURNING AccountId, Balance";
+
   private final DatabaseClient databaseClient;
+  private final boolean useDmlReturning;
 
   SpannerDaoPGImpl(DatabaseClient databaseClient) {
+    this(databaseClient, /* useDmlReturning= */ false);
+  }
+
+  /**
+   * @param useDmlReturning if true, transfers check and update balances with a single guarded DML
+   *     statement instead of reading the accounts first
+   */
+  SpannerDaoPGImpl(DatabaseClient databaseClient, boolean useDmlReturning) {
     this.databaseClient = databaseClient;
+    this.useDmlReturning = useDmlReturning;
   }
 
   @Override
   public void createCustomer(ByteArray customerId, String name, String address)
       throws StatusException {
     try {
-      databaseClient
-          .readWriteTransaction()
-          .run(
-              transaction -> {
-                Statement statement =
-                    Statement.newBuilder(
-                            "INSERT INTO Customer\n"
-                                + "(CustomerId, Name, Address)\n"
-                                + "VALUES\n"
-                                + "($1, $2, $3)")
-                        .bind("p1")
-                        .to(customerId)
-                        .bind("p2")
-                        .to(name)
-                        .bind("p3")
-                        .to(address)
-                        .build();
-                transaction.executeUpdate(statement);
-                return null;
-              });
+      runReadWriteTransaction(
+          transaction -> {
+            Statement statement =
+                Statement.newBuilder(
+                        "INSERT INTO Customer\n"
+                            + "(CustomerId, Name, Address)\n"
+                            + "VALUES\n"
+                            + "($1, $2, $3)")
+                    .bind("p1")
+                    .to(customerId)
+                    .bind("p2")
+                    .to(name)
+                    .bind("p3")
+                    .to(address)
+                    .build();
+            transaction.executeUpdate(statement);
+            return null;
+          });
     } catch (SpannerException e) {
       throw Status.fromThrowable(e).asException();
     }
@@ -72,29 +94,25 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
   public void createAccount(ByteArray accountId, AccountStatus accountStatus, BigDecimal balance)
       throws StatusException {
     try {
-      databaseClient
-          .readWriteTransaction()
-          .run(
-              transaction -> {
-                Statement statement =
-                    Statement.newBuilder(
-                            "INSERT INTO Account\n"
-                                + "(AccountId, AccountStatus, Balance, CreationTimestamp)\n"
-                                + "VALUES\n"
-                                + "($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP())")
-                        .bind("p1")
-                        .to(accountId)
-                        .bind("p2")
-                        .to(accountStatus.getNumber())
-                        .bind("p3")
-                        .to(
-                            Value.pgNumeric(
-                                balance.toString())) // Numeric requires special handling
-                        .build();
-                transaction.executeUpdate(statement);
-
-                return null;
-              });
+      runReadWriteTransaction(
+          transaction -> {
+            Statement statement =
+                Statement.newBuilder(
+                        "INSERT INTO Account\n"
+                            + "(AccountId, AccountStatus, Balance, CreationTimestamp)\n"
+                            + "VALUES\n"
+                            + "($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP())")
+                    .bind("p1")
+                    .to(accountId)
+                    .bind("p2")
+                    .to(accountStatus.getNumber())
+                    .bind("p3")
+                    .to(Value.pgNumeric(balance.toString())) // Numeric requires special handling
+                    .build();
+            transaction.executeUpdate(statement);
+
+            return null;
+          });
     } catch (SpannerException e) {
       throw Status.fromThrowable(e).asException();
     }
@@ -105,29 +123,27 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
       ByteArray customerId, ByteArray accountId, ByteArray roleId, String roleName)
       throws StatusException {
     try {
-      databaseClient
-          .readWriteTransaction()
-          .run(
-              transaction -> {
-                Statement statement =
-                    Statement.newBuilder(
-                            "INSERT INTO CustomerRole\n"
-                                + "(CustomerId, AccountId, RoleId, Role)\n"
-                                + "VALUES\n"
-                                + "($1, $2, $3, $4)")
-                        .bind("p1")
-                        .to(customerId)
-                        .bind("p2")
-                        .to(accountId)
-                        .bind("p3")
-                        .to(roleId)
-                        .bind("p4")
-                        .to(roleName)
-                        .build();
-                transaction.executeUpdate(statement);
-
-                return null;
-              });
+      runReadWriteTransaction(
+          transaction -> {
+            Statement statement =
+                Statement.newBuilder(
+                        "INSERT INTO CustomerRole\n"
+                            + "(CustomerId, AccountId, RoleId, Role)\n"
+                            + "VALUES\n"
+                            + "($1, $2, $3, $4)")
+                    .bind("p1")
+                    .to(customerId)
+                    .bind("p2")
+                    .to(accountId)
+                    .bind("p3")
+                    .to(roleId)
+                    .bind("p4")
+                    .to(roleName)
+                    .build();
+            transaction.executeUpdate(statement);
+
+            return null;
+          });
     } catch (SpannerException e) {
       throw Status.fromThrowable(e).asException();
     }
@@ -135,36 +151,90 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
 
   @Override
   public ImmutableMap<ByteArray, BigDecimal> moveAccountBalance(
-      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) throws StatusException {
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
+    if (useDmlReturning) {
+      return moveAccountBalanceWithDml(fromAccountId, toAccountId, amount, requestId);
+    }
     try {
-      return databaseClient
-          .readWriteTransaction()
-          .run(
-              transaction -> {
-                // Get account balances.
-                ImmutableMap<ByteArray, AccountData> accountData =
-                    readAccountDataForTransfer(
-                        ImmutableList.of(fromAccountId, toAccountId), transaction);
-                BigDecimal sourceAmount = accountData.get(fromAccountId).balance;
-                BigDecimal newSourceAmount = sourceAmount.subtract(amount);
-                BigDecimal destAmount = accountData.get(toAccountId).balance;
-                BigDecimal newDestAmount = destAmount.add(amount);
-
-                if (newSourceAmount.signum() == -1) {
-                  throw Status.INVALID_ARGUMENT
-                      .withDescription(
-                          String.format(
-                              "Account balance cannot be negative. original account balance: %s, amount to be"
-                                  + " removed: %s",
-                              sourceAmount, amount))
-                      .asException();
-                }
+      return runIdempotentTransaction(
+          requestId,
+          IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount),
+          transaction -> {
+            // Get account balances.
+            ImmutableMap<ByteArray, AccountData> accountData =
+                readAccountDataForTransfer(
+                    ImmutableList.of(fromAccountId, toAccountId), transaction);
+            BigDecimal sourceAmount = accountData.get(fromAccountId).balance;
+            BigDecimal newSourceAmount = sourceAmount.subtract(amount);
+            BigDecimal destAmount = accountData.get(toAccountId).balance;
+            BigDecimal newDestAmount = destAmount.add(amount);
+
+            if (newSourceAmount.signum() == -1) {
+              throw Status.INVALID_ARGUMENT
+                  .withDescription(
+                      String.format(
+                          "Account balance cannot be negative. original account balance: %s, amount to be"
+                              + " removed: %s",
+                          sourceAmount, amount))
+                  .asException();
+            }
+
+            // Send all statements in one round trip.
+            transaction.batchUpdate(
+                ImmutableList.of(
+                    buildUpdateAccountStatement(fromAccountId, newSourceAmount),
+                    buildUpdateAccountStatement(toAccountId, newDestAmount),
+                    buildInsertTransferTransactionsStatement(fromAccountId, toAccountId, amount)));
+            return ImmutableMap.of(fromAccountId, newSourceAmount, toAccountId, newDestAmount);
+          });
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  @Override
+  public ImmutableList<ImmutableMap<ByteArray, BigDecimal>> moveAccountBalances(
+      ImmutableList<TransferLeg> legs) throws StatusException {
+    ImmutableSet<ByteArray> accountIds = TransferLegs.accountIds(legs);
+    try {
+      return runReadWriteTransaction(
+          transaction -> {
+            ImmutableMap<ByteArray, AccountData> accountData =
+                readAccountDataForTransfer(accountIds, transaction);
+            Map<ByteArray, BigDecimal> balances = new HashMap<>();
+            for (ByteArray accountId : accountIds) {
+              balances.put(accountId, accountData.get(accountId).balance);
+            }
+            ImmutableList<ImmutableMap<ByteArray, BigDecimal>> legBalances =
+                TransferLegs.apply(legs, balances);
 
-                updateAccount(fromAccountId, newSourceAmount, transaction);
-                updateAccount(toAccountId, newDestAmount, transaction);
-                insertTransferTransactions(fromAccountId, toAccountId, amount, transaction);
-                return ImmutableMap.of(fromAccountId, newSourceAmount, toAccountId, newDestAmount);
-              });
+            // Write every account at most once. TransactionHistory is keyed by commit timestamp,
+            // so each account gets a single entry for its net change, and none if that is zero.
+            ImmutableList.Builder<Statement> statements = ImmutableList.builder();
+            for (ByteArray accountId : accountIds) {
+              BigDecimal change =
+                  balances.get(accountId).subtract(accountData.get(accountId).balance);
+              if (change.signum() == 0) {
+                continue;
+              }
+              statements.add(buildUpdateAccountStatement(accountId, balances.get(accountId)));
+              statements.add(
+                  buildInsertTransactionStatement(
+                      accountId, change.abs(), /* isCredit= */ change.signum() == -1));
+            }
+            // Batch DML rejects an empty batch, which legs that cancel out would produce
+            ImmutableList<Statement> batch = statements.build();
+            if (!batch.isEmpty()) {
+              transaction.batchUpdate(batch);
+            }
+            return legBalances;
+          });
     } catch (SpannerException e) {
       // filter for StatusException thrown in lambda function above
       Throwable cause = e.getCause();
@@ -177,11 +247,15 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
 
   @Override
   public BigDecimal createTransactionForAccount(
-      ByteArray accountId, BigDecimal amount, boolean isCredit) throws StatusException {
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
+    if (useDmlReturning) {
+      return createTransactionForAccountWithDml(accountId, amount, isCredit, requestId);
+    }
     try {
-      return databaseClient
-          .readWriteTransaction()
-          .run(
+      return runIdempotentTransaction(
+              requestId,
+              IdempotentRequests.Payload.createTransactionForAccount(accountId, amount, isCredit),
               transaction -> {
                 BigDecimal oldBalance =
                     readAccountDataForTransfer(ImmutableList.of(accountId), transaction)
@@ -202,10 +276,108 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
                               oldBalance, amount))
                       .asException();
                 }
-                updateAccount(accountId, newBalance, transaction);
-                insertTransaction(accountId, amount, isCredit, transaction);
-                return newBalance;
-              });
+                transaction.batchUpdate(
+                    ImmutableList.of(
+                        buildUpdateAccountStatement(accountId, newBalance),
+                        buildInsertTransactionStatement(accountId, amount, isCredit)));
+                return ImmutableMap.of(accountId, newBalance);
+              })
+          .get(accountId);
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  private ImmutableMap<ByteArray, BigDecimal> moveAccountBalanceWithDml(
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount, String requestId)
+      throws StatusException {
+    Statement statement =
+        Statement.newBuilder(MOVE_ACCOUNT_BALANCE_DML)
+            .bind("p1")
+            .to(fromAccountId)
+            .bind("p2")
+            .to(toAccountId)
+            .bind("p3")
+            .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
+            .bind("p4")
+            .to(AccountStatus.ACTIVE.getNumber())
+            .build();
+    try {
+      return runIdempotentTransaction(
+          requestId,
+          IdempotentRequests.Payload.moveAccountBalance(fromAccountId, toAccountId, amount),
+          transaction -> {
+            Map<ByteArray, BigDecimal> balances = new HashMap<>();
+            try (ResultSet resultSet = transaction.executeQuery(statement)) {
+              while (resultSet.next()) {
+                balances.put(
+                    resultSet.getBytes("accountid"),
+                    new BigDecimal(String.valueOf(resultSet.getValue("balance"))));
+              }
+            }
+            if (balances.size() < 2) {
+              // Throwing rolls back the update of the account that did match.
+              throw guardedUpdateError(
+                  ImmutableList.of(fromAccountId, toAccountId), fromAccountId, amount, transaction);
+            }
+            transaction.executeUpdate(
+                buildInsertTransferTransactionsStatement(fromAccountId, toAccountId, amount));
+            return ImmutableMap.of(
+                fromAccountId, balances.get(fromAccountId),
+                toAccountId, balances.get(toAccountId));
+          });
+    } catch (SpannerException e) {
+      // filter for StatusException thrown in lambda function above
+      Throwable cause = e.getCause();
+      if (cause instanceof StatusException) {
+        throw (StatusException) cause;
+      }
+      throw Status.fromThrowable(e).asException();
+    }
+  }
+
+  private BigDecimal createTransactionForAccountWithDml(
+      ByteArray accountId, BigDecimal amount, boolean isCredit, String requestId)
+      throws StatusException {
+    Statement statement =
+        Statement.newBuilder(
+                "UPDATE Account "
+                    + (isCredit ? "SET Balance = Balance - $2 " : "SET Balance = Balance + $2 ")
+                    + "WHERE AccountId = $1 AND AccountStatus = $3 "
+                    + (isCredit ? "AND Balance >= $2 " : "")
+                    + "RETURNING Balance")
+            .bind("p1")
+            .to(accountId)
+            .bind("p2")
+            .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
+            .bind("p3")
+            .to(AccountStatus.ACTIVE.getNumber())
+            .build();
+    try {
+      return runIdempotentTransaction(
+              requestId,
+              IdempotentRequests.Payload.createTransactionForAccount(accountId, amount, isCredit),
+              transaction -> {
+                BigDecimal newBalance = null;
+                try (ResultSet resultSet = transaction.executeQuery(statement)) {
+                  if (resultSet.next()) {
+                    newBalance = new BigDecimal(String.valueOf(resultSet.getValue("balance")));
+                  }
+                }
+                if (newBalance == null) {
+                  throw guardedUpdateError(
+                      ImmutableList.of(accountId), accountId, amount, transaction);
+                }
+                transaction.executeUpdate(
+                    buildInsertTransactionStatement(accountId, amount, isCredit));
+                return ImmutableMap.of(accountId, newBalance);
+              })
+          .get(accountId);
     } catch (SpannerException e) {
       // filter for StatusException thrown in lambda function above
       Throwable cause = e.getCause();
@@ -309,72 +481,139 @@ final class SpannerDaoPGImpl implements SpannerDaoInterface {
     return accountData;
   }
 
-  private void updateAccount(
-      ByteArray accountId, BigDecimal newBalance, TransactionContext transaction)
-      throws SpannerException {
-    try {
-      Statement statement =
-          Statement.newBuilder("UPDATE Account SET Balance = $1 WHERE AccountId = $2")
-              .bind("p1")
-              .to(Value.pgNumeric(newBalance.toString())) // Numeric requires special handling
-              .bind("p2")
-              .to(accountId)
-              .build();
-      transaction.executeUpdate(statement);
-    } catch (SpannerException e) {
-      throw e;
-    }
-  }
-
-  private void insertTransferTransactions(
-      ByteArray fromAccountId,
-      ByteArray toAccountId,
+  /**
+   * Returns the error for a guarded balance update that did not match all accounts. Only runs on
+   * the failure path, so successful transfers never read the accounts.
+   *
+   * @param accountIds accounts that the update should have matched
+   * @param debitedAccountId account whose balance was checked against amount
+   * @throws StatusException if any of accountIds is not found or not ACTIVE
+   */
+  private StatusException guardedUpdateError(
+      Iterable<ByteArray> accountIds,
+      ByteArray debitedAccountId,
       BigDecimal amount,
       TransactionContext transaction)
-      throws SpannerException {
-    try {
-      Statement statement =
-          Statement.newBuilder(
-                  "INSERT INTO TransactionHistory (AccountId, Amount, IsCredit, EventTimestamp)"
-                      + "VALUES ($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP()),"
-                      + "($4, $5, $6, SPANNER.PENDING_COMMIT_TIMESTAMP())")
-              .bind("p1")
-              .to(fromAccountId)
-              .bind("p2")
-              .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
-              .bind("p3")
-              .to(/* isCredit = */ true)
-              .bind("p4")
-              .to(toAccountId)
-              .bind("p5")
-              .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
-              .bind("p6")
-              .to(/* isCredit = */ false)
-              .build();
-      transaction.executeUpdate(statement);
-    } catch (SpannerException e) {
-      throw e;
-    }
+      throws StatusException {
+    BigDecimal balance =
+        readAccountDataForTransfer(accountIds, transaction).get(debitedAccountId).balance;
+    return Status.INVALID_ARGUMENT
+        .withDescription(
+            String.format(
+                "Account balance cannot be negative. original account balance: %s, amount to be"
+                    + " removed: %s",
+                balance, amount))
+        .asException();
   }
 
-  private void insertTransaction(
-      ByteArray accountId, BigDecimal amount, boolean isCredit, TransactionContext transaction)
-      throws SpannerException {
-    try {
-      Statement statement =
-          Statement.newBuilder(
-                  "INSERT INTO TransactionHistory (AccountId, Amount, IsCredit, EventTimestamp)"
-                      + "VALUES ($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP())")
-              .bind("p1")
-              .to(accountId)
-              .bind("p2")
-              .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
-              .bind("p3")
-              .to(isCredit)
-              .build();
-      transaction.executeUpdate(statement);
-    } catch (SpannerException e) {
-      throw e;
+  private Statement buildUpdateAccountStatement(ByteArray accountId, BigDecimal newBalance) {
+    return Statement.newBuilder("UPDATE Account SET Balance = $1 WHERE AccountId = $2")
+        .bind("p1")
+        .to(Value.pgNumeric(newBalance.toString())) // Numeric requires special handling
+        .bind("p2")
+        .to(accountId)
+        .build();
+  }
+
+  private Statement buildInsertTransferTransactionsStatement(
+      ByteArray fromAccountId, ByteArray toAccountId, BigDecimal amount) {
+    return Statement.newBuilder(
+            "INSERT INTO TransactionHistory (AccountId, Amount, IsCredit, EventTimestamp)"
+                + "VALUES ($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP()),"
+                + "($4, $5, $6, SPANNER.PENDING_COMMIT_TIMESTAMP())")
+        .bind("p1")
+        .to(fromAccountId)
+        .bind("p2")
+        .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
+        .bind("p3")
+        .to(/* isCredit = */ true)
+        .bind("p4")
+        .to(toAccountId)
+        .bind("p5")
+        .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
+        .bind("p6")
+        .to(/* isCredit = */ false)
+        .build();
+  }
+
+  private Statement buildInsertTransactionStatement(
+      ByteArray accountId, BigDecimal amount, boolean isCredit) {
+    return Statement.newBuilder(
+            "INSERT INTO TransactionHistory (AccountId, Amount, IsCredit, EventTimestamp)"
+                + "VALUES ($1, $2, $3, SPANNER.PENDING_COMMIT_TIMESTAMP())")
+        .bind("p1")
+        .to(accountId)
+        .bind("p2")
+        .to(Value.pgNumeric(amount.toString())) // Numeric requires special handling
+        .bind("p3")
+        .to(isCredit)
+        .build();
+  }
+
+  /**
+   * Runs the callable in a read-write transaction that also records the balances it returns under
+   * requestId, with the payload of the request, unless requestId is empty. If a transaction already
+   * recorded balances under requestId for the same payload, returns those instead, without running
+   * the callable; if it recorded them for another payload, fails with INVALID_ARGUMENT.
+   */
+  private ImmutableMap<ByteArray, BigDecimal> runIdempotentTransaction(
+      String requestId,
+      IdempotentRequests.Payload payload,
+      TransactionCallable<ImmutableMap<ByteArray, BigDecimal>> callable) {
+    if (requestId.isEmpty()) {
+      return runReadWriteTransaction(callable);
     }
+    return runReadWriteTransaction(
+        transaction -> {
+          try (ResultSet resultSet =
+              transaction.executeQuery(
+                  Statement.newBuilder(
+                          "SELECT Method, Fingerprint, AccountIds, Balances FROM IdempotentRequest"
+                              + " WHERE RequestId = $1")
+                      .bind("p1")
+                      .to(requestId)
+                      .build())) {
+            if (resultSet.next()) {
+              payload.checkSameAs(
+                  requestId,
+                  new IdempotentRequests.Payload(
+                      resultSet.getString("method"), resultSet.getString("fingerprint")));
+              return IdempotentRequests.toBalances(
+                  resultSet.getBytesList("accountids"), resultSet.getStringList("balances"));
+            }
+          }
+          ImmutableMap<ByteArray, BigDecimal> balances = callable.run(transaction);
+          transaction.executeUpdate(
+              Statement.newBuilder(
+                      "INSERT INTO IdempotentRequest"
+                          + " (RequestId, CreationTimestamp, Method, Fingerprint, AccountIds, Balances)"
+                          + " VALUES ($1, SPANNER.PENDING_COMMIT_TIMESTAMP(), $2, $3, $4, $5)")
+                  .bind("p1")
+                  .to(requestId)
+                  .bind("p2")
+                  .to(payload.method)
+                  .bind("p3")
+                  .to(payload.fingerprint)
+                  .bind("p4")
+                  .toBytesArray(IdempotentRequests.accountIds(balances))
+                  .bind("p5")
+                  .toStringArray(IdempotentRequests.balances(balances))
+                  .build());
+          return balances;
+        });
+  }
+
+  /**
+   * Runs the callable in a read-write transaction, without attempting it again once the call being
+   * served has been cancelled.
+   */
+  private <T> T runReadWriteTransaction(TransactionCallable<T> callable) {
+    return databaseClient
+        .readWriteTransaction()
+        .run(
+            transaction -> {
+              DeadlinePropagationInterceptor.checkNotCancelled();
+              return callable.run(transaction);
+            });
   }
 }
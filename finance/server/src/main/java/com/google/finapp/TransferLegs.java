@@ -0,0 +1,73 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.finapp;
+
+import com.google.cloud.ByteArray;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.finapp.SpannerDaoInterface.TransferLeg;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+/** Computes the effect of multi-leg transfers on account balances, shared by the DAOs. */
+final class TransferLegs {
+
+  private TransferLegs() {}
+
+  /** Returns the distinct accounts involved in the legs, in order of first use. */
+  static ImmutableSet<ByteArray> accountIds(Iterable<TransferLeg> legs) {
+    ImmutableSet.Builder<ByteArray> accountIds = ImmutableSet.builder();
+    for (TransferLeg leg : legs) {
+      accountIds.add(leg.fromAccountId, leg.toAccountId);
+    }
+    return accountIds.build();
+  }
+
+  /**
+   * Applies the legs in order to balances, which must hold the current balance of every involved
+   * account and holds the final balances afterwards.
+   *
+   * @return for each leg, the balances of its two accounts right after it, keyed by id
+   * @throws StatusException if a leg would make a balance negative
+   */
+  static ImmutableList<ImmutableMap<ByteArray, BigDecimal>> apply(
+      ImmutableList<TransferLeg> legs, Map<ByteArray, BigDecimal> balances) throws StatusException {
+    ImmutableList.Builder<ImmutableMap<ByteArray, BigDecimal>> legBalances =
+        ImmutableList.builder();
+    for (int i = 0; i < legs.size(); i++) {
+      TransferLeg leg = legs.get(i);
+      BigDecimal sourceAmount = balances.get(leg.fromAccountId);
+      BigDecimal newSourceAmount = sourceAmount.subtract(leg.amount);
+      if (newSourceAmount.signum() == -1) {
+        throw Status.INVALID_ARGUMENT
+            .withDescription(
+                String.format(
+                    "Leg %d: Account balance cannot be negative. Original account balance: %s,"
+                        + " amount to be removed: %s",
+                    i, sourceAmount, leg.amount))
+            .asException();
+      }
+      BigDecimal newDestAmount = balances.get(leg.toAccountId).add(leg.amount);
+      balances.put(leg.fromAccountId, newSourceAmount);
+      balances.put(leg.toAccountId, newDestAmount);
+      legBalances.add(
+          ImmutableMap.of(leg.fromAccountId, newSourceAmount, leg.toAccountId, newDestAmount));
+    }
+    return legBalances.build();
+  }
+}
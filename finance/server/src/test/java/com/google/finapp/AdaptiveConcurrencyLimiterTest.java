@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class AdaptiveConcurrencyLimiterTest {
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+  @Test
+  public void tryAcquire_atLimit_rejects() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10);
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isFalse();
+    limiter.release(FAST, /* dropped= */ false);
+    assertThat(limiter.tryAcquire()).isTrue();
+  }
+
+  @Test
+  public void release_steadyLatencyAtLimit_growsLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+    for (int i = 0; i < 20; i++) {
+      fillAndRelease(limiter, FAST);
+    }
+    assertThat(limiter.getLimit()).isGreaterThan(10);
+    assertThat(limiter.getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void release_risingLatency_shrinksLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(50, 1, 100);
+    fillAndRelease(limiter, FAST);
+    int limit = limiter.getLimit();
+    for (int i = 0; i < 5; i++) {
+      fillAndRelease(limiter, SLOW);
+    }
+    assertThat(limiter.getLimit()).isLessThan(limit);
+  }
+
+  @Test
+  public void release_dropped_shrinksLimitDownToMin() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 2, 100);
+    for (int i = 0; i < 20; i++) {
+      assertThat(limiter.tryAcquire()).isTrue();
+      limiter.release(FAST, /* dropped= */ true);
+    }
+    assertThat(limiter.getLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void release_fewCallsInFlight_keepsLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100);
+    for (int i = 0; i < 20; i++) {
+      assertThat(limiter.tryAcquire()).isTrue();
+      limiter.release(FAST, /* dropped= */ false);
+    }
+    assertThat(limiter.getLimit()).isEqualTo(10);
+  }
+
+  // Starts as many calls as the limit allows and ends all of them with the given latency.
+  private static void fillAndRelease(AdaptiveConcurrencyLimiter limiter, long rttNanos) {
+    int calls = 0;
+    while (limiter.tryAcquire()) {
+      calls++;
+    }
+    for (int i = 0; i < calls; i++) {
+      limiter.release(rttNanos, /* dropped= */ false);
+    }
+  }
+}
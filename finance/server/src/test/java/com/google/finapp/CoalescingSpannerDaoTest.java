@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.ByteArray;
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class CoalescingSpannerDaoTest {
+  private static final ByteArray ACCOUNT_ID = ByteArray.copyFrom("account");
+  private static final ImmutableList<TransactionEntry> ENTRIES =
+      ImmutableList.of(TransactionEntry.newBuilder().setAmount("1").build());
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger queries = new AtomicInteger();
+  private final CountDownLatch queryStarted = new CountDownLatch(1);
+  private final CountDownLatch finishQuery = new CountDownLatch(1);
+
+  @After
+  public void shutDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void getRecentTransactionsForAccount_concurrentIdenticalReads_shareOneQuery()
+      throws Exception {
+    CoalescingSpannerDao spannerDao = new CoalescingSpannerDao(blockingDao(null));
+
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(spannerDao, 4);
+    finishQuery.countDown();
+
+    for (Future<ImmutableList<TransactionEntry>> read : reads) {
+      assertThat(read.get()).isEqualTo(ENTRIES);
+    }
+    assertThat(queries.get()).isEqualTo(1);
+    assertThat(spannerDao.getCoalescedHistoryReads()).isEqualTo(3);
+  }
+
+  @Test
+  public void getRecentTransactionsForAccount_sharedQueryFails_failsAllReads() throws Exception {
+    CoalescingSpannerDao spannerDao =
+        new CoalescingSpannerDao(blockingDao(Status.INVALID_ARGUMENT.asException()));
+
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(spannerDao, 3);
+    finishQuery.countDown();
+
+    for (Future<ImmutableList<TransactionEntry>> read : reads) {
+      ExecutionException e = assertThrows(ExecutionException.class, read::get);
+      assertThat(Status.fromThrowable(e.getCause()).getCode())
+          .isEqualTo(Status.Code.INVALID_ARGUMENT);
+    }
+    assertThat(queries.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void getRecentTransactionsForAccount_differentWindows_queryEach() throws Exception {
+    CoalescingSpannerDao spannerDao = new CoalescingSpannerDao(blockingDao(null));
+    finishQuery.countDown();
+
+    spannerDao.getRecentTransactionsForAccount(
+        ACCOUNT_ID, Timestamp.MIN_VALUE, Timestamp.now(), 10);
+    spannerDao.getRecentTransactionsForAccount(ACCOUNT_ID, Timestamp.MIN_VALUE, Timestamp.now(), 5);
+
+    assertThat(queries.get()).isEqualTo(2);
+    assertThat(spannerDao.getCoalescedHistoryReads()).isEqualTo(0);
+  }
+
+  /**
+   * Starts one read, waits for its query to start, then starts the others and waits until they wait
+   * for it.
+   */
+  private List<Future<ImmutableList<TransactionEntry>>> startReads(
+      CoalescingSpannerDao spannerDao, int count) throws InterruptedException {
+    List<Future<ImmutableList<TransactionEntry>>> reads = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      reads.add(
+          executor.submit(
+              () ->
+                  spannerDao.getRecentTransactionsForAccount(
+                      ACCOUNT_ID, Timestamp.MIN_VALUE, Timestamp.MAX_VALUE, 10)));
+      if (i == 0) {
+        queryStarted.await();
+      }
+    }
+    while (spannerDao.getCoalescedHistoryReads() < count - 1) {
+      Thread.sleep(1);
+    }
+    return reads;
+  }
+
+  /**
+   * Returns a DAO whose history reads count themselves and block until finishQuery, then return
+   * ENTRIES or throw error if not null.
+   */
+  private SpannerDaoInterface blockingDao(StatusException error) {
+    return (SpannerDaoInterface)
+        Proxy.newProxyInstance(
+            SpannerDaoInterface.class.getClassLoader(),
+            new Class<?>[] {SpannerDaoInterface.class},
+            (proxy, method, args) -> {
+              if (!method.getName().equals("getRecentTransactionsForAccount")) {
+                throw new UnsupportedOperationException(method.getName());
+              }
+              queries.incrementAndGet();
+              queryStarted.countDown();
+              finishQuery.await();
+              if (error != null) {
+                throw error;
+              }
+              return ENTRIES;
+            });
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import io.grpc.Context;
+import io.grpc.ManagedChannel;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ConcurrencyLimitInterceptorTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+  private final AdaptiveConcurrencyLimiter readLimiter = new AdaptiveConcurrencyLimiter(1, 1, 10);
+  private final AdaptiveConcurrencyLimiter writeLimiter =
+      new AdaptiveConcurrencyLimiter(10, 1, 100);
+  // Handlers wait for this before answering, so that calls stay in flight.
+  private final CountDownLatch answer = new CountDownLatch(1);
+  private final Semaphore started = new Semaphore(0);
+  private volatile Status writeStatus = Status.OK;
+  private FinAppGrpc.FinAppFutureStub stub;
+
+  @Before
+  public void setUp() throws Exception {
+    String serverName = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(serverName)
+            .executor(serverExecutor)
+            .addService(
+                ServerInterceptors.intercept(
+                    new BlockingService(),
+                    new ConcurrencyLimitInterceptor(readLimiter, writeLimiter)))
+            .build()
+            .start());
+    ManagedChannel channel =
+        grpcCleanup.register(InProcessChannelBuilder.forName(serverName).build());
+    stub = FinAppGrpc.newFutureStub(channel);
+  }
+
+  @After
+  public void shutDown() {
+    answer.countDown();
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void interceptCall_readLimitReached_rejectsReadsOnly() throws Exception {
+    ListenableFuture<GetRecentTransactionsForAccountResponse> read = read();
+    started.acquire();
+
+    ExecutionException rejected = assertThrows(ExecutionException.class, () -> read().get());
+    assertThat(Status.fromThrowable(rejected.getCause()).getCode())
+        .isEqualTo(Status.Code.RESOURCE_EXHAUSTED);
+    assertThat(stub.ping(Empty.getDefaultInstance()).get().getPong()).isEqualTo("pong");
+    ListenableFuture<CreateCustomerResponse> write = write();
+    started.acquire();
+    assertThat(readLimiter.getInFlight()).isEqualTo(1);
+    assertThat(writeLimiter.getInFlight()).isEqualTo(1);
+
+    answer.countDown();
+    read.get();
+    write.get();
+    assertThat(readLimiter.getInFlight()).isEqualTo(0);
+    assertThat(writeLimiter.getInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void interceptCall_clientCancels_releasesWithoutDrop() throws Exception {
+    ListenableFuture<CreateCustomerResponse> write = write();
+    started.acquire();
+    assertThat(writeLimiter.getInFlight()).isEqualTo(1);
+
+    write.cancel(true);
+
+    awaitNoneInFlight(writeLimiter);
+    assertThat(writeLimiter.getLimit()).isEqualTo(10);
+  }
+
+  @Test
+  public void interceptCall_handlerFailsWithCancelled_isNotDrop() throws Exception {
+    writeStatus = Status.CANCELLED;
+    answer.countDown();
+
+    assertThrows(ExecutionException.class, () -> write().get());
+
+    assertThat(writeLimiter.getInFlight()).isEqualTo(0);
+    assertThat(writeLimiter.getLimit()).isEqualTo(10);
+  }
+
+  @Test
+  public void interceptCall_handlerFailsWithUnavailable_isDrop() throws Exception {
+    writeStatus = Status.UNAVAILABLE;
+    answer.countDown();
+
+    ExecutionException failed = assertThrows(ExecutionException.class, () -> write().get());
+
+    assertThat(Status.fromThrowable(failed.getCause()).getCode())
+        .isEqualTo(Status.Code.UNAVAILABLE);
+    assertThat(writeLimiter.getInFlight()).isEqualTo(0);
+    assertThat(writeLimiter.getLimit()).isLessThan(10);
+  }
+
+  private ListenableFuture<GetRecentTransactionsForAccountResponse> read() {
+    return stub.getRecentTransactionsForAccount(
+        GetRecentTransactionsForAccountRequest.getDefaultInstance());
+  }
+
+  private ListenableFuture<CreateCustomerResponse> write() {
+    return stub.createCustomer(CreateCustomerRequest.getDefaultInstance());
+  }
+
+  // The server learns about a cancellation asynchronously.
+  private static void awaitNoneInFlight(AdaptiveConcurrencyLimiter limiter)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (limiter.getInFlight() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(limiter.getInFlight()).isEqualTo(0);
+  }
+
+  private class BlockingService extends FinAppGrpc.FinAppImplBase {
+    @Override
+    public void ping(Empty request, StreamObserver<PingResponse> responseObserver) {
+      responseObserver.onNext(PingResponse.newBuilder().setPong("pong").build());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void getRecentTransactionsForAccount(
+        GetRecentTransactionsForAccountRequest request,
+        StreamObserver<GetRecentTransactionsForAccountResponse> responseObserver) {
+      if (!awaitAnswer()) {
+        responseObserver.onError(Status.CANCELLED.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(GetRecentTransactionsForAccountResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    @Override
+    public void createCustomer(
+        CreateCustomerRequest request, StreamObserver<CreateCustomerResponse> responseObserver) {
+      if (!awaitAnswer()) {
+        responseObserver.onError(Status.CANCELLED.asRuntimeException());
+        return;
+      }
+      if (!writeStatus.isOk()) {
+        responseObserver.onError(writeStatus.asRuntimeException());
+        return;
+      }
+      responseObserver.onNext(CreateCustomerResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    }
+
+    // Returns false if the call was cancelled first; listener callbacks such as onCancel only
+    // run once the handler returns, so a handler has to notice the cancellation itself.
+    private boolean awaitAnswer() {
+      started.release();
+      try {
+        while (!answer.await(10, TimeUnit.MILLISECONDS)) {
+          if (Context.current().isCancelled()) {
+            return false;
+          }
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+  }
+}
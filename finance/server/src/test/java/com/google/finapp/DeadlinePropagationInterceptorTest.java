@@ -0,0 +1,204 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ErrorCode;
+import com.google.cloud.spanner.SpannerException;
+import com.google.cloud.spanner.SpannerExceptionFactory;
+import com.google.cloud.spanner.TransactionContext;
+import com.google.cloud.spanner.TransactionRunner;
+import com.google.cloud.spanner.TransactionRunner.TransactionCallable;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import io.grpc.BindableService;
+import io.grpc.Context;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcCleanupRule;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class DeadlinePropagationInterceptorTest {
+  @Rule public final GrpcCleanupRule grpcCleanup = new GrpcCleanupRule();
+
+  private final ExecutorService serverExecutor = Executors.newCachedThreadPool();
+  private final CountDownLatch callStarted = new CountDownLatch(1);
+  private final AtomicInteger handlerRuns = new AtomicInteger();
+
+  @After
+  public void shutDown() {
+    serverExecutor.shutdownNow();
+  }
+
+  @Test
+  public void interceptCall_cancelledBeforeHandler_skipsHandler() throws Exception {
+    CountDownLatch runHandler = new CountDownLatch(1);
+    // Holds the call before DeadlinePropagationInterceptor sees it, like a busy server would.
+    ServerInterceptor waitForServerThread =
+        new ServerInterceptor() {
+          @Override
+          public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(
+              ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+            return new SimpleForwardingServerCallListener<ReqT>(next.startCall(call, headers)) {
+              @Override
+              public void onHalfClose() {
+                callStarted.countDown();
+                awaitCancelled();
+                super.onHalfClose();
+              }
+            };
+          }
+        };
+    FinAppGrpc.FinAppFutureStub stub =
+        startServer(
+            new FinAppGrpc.FinAppImplBase() {
+              @Override
+              public void ping(Empty request, StreamObserver<PingResponse> responseObserver) {
+                handlerRuns.incrementAndGet();
+                responseObserver.onNext(PingResponse.getDefaultInstance());
+                responseObserver.onCompleted();
+              }
+            },
+            waitForServerThread);
+    long skippedCalls = DeadlinePropagationInterceptor.getSkippedCalls();
+
+    ListenableFuture<PingResponse> ping = stub.ping(Empty.getDefaultInstance());
+    callStarted.await();
+    ping.cancel(true);
+
+    awaitEquals(skippedCalls + 1, DeadlinePropagationInterceptor::getSkippedCalls);
+    assertThat(handlerRuns.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void runReadWriteTransaction_cancelledDuringAttempt_isNotRetried() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    AtomicInteger transactionCalls = new AtomicInteger();
+    // Every transaction aborts, once the call has been cancelled.
+    TransactionContext abortingTransaction =
+        proxy(
+            TransactionContext.class,
+            args -> {
+              transactionCalls.incrementAndGet();
+              callStarted.countDown();
+              awaitCancelled();
+              throw SpannerExceptionFactory.newSpannerException(ErrorCode.ABORTED, "aborted");
+            });
+    // Retries aborted attempts up to 3 times, as the client library does until its timeout.
+    TransactionRunner runner =
+        proxy(
+            TransactionRunner.class,
+            args -> {
+              TransactionCallable<?> callable = (TransactionCallable<?>) args[0];
+              for (int attempt = 0; ; attempt++) {
+                attempts.incrementAndGet();
+                try {
+                  return callable.run(abortingTransaction);
+                } catch (SpannerException e) {
+                  if (e.getErrorCode() != ErrorCode.ABORTED || attempt == 2) {
+                    throw e;
+                  }
+                } catch (Exception e) {
+                  throw SpannerExceptionFactory.newSpannerException(e);
+                }
+              }
+            });
+    DatabaseClient databaseClient = proxy(DatabaseClient.class, args -> runner);
+    FinAppGrpc.FinAppFutureStub stub =
+        startServer(new FinAppService(new SpannerDaoImpl(databaseClient)));
+    long skippedAttempts = DeadlinePropagationInterceptor.getSkippedTransactionAttempts();
+
+    ListenableFuture<MoveAccountBalanceResponse> move =
+        stub.moveAccountBalance(
+            MoveAccountBalanceRequest.newBuilder()
+                .setFromAccountId(ByteString.copyFromUtf8("from"))
+                .setToAccountId(ByteString.copyFromUtf8("to"))
+                .setAmount("1")
+                .build());
+    callStarted.await();
+    move.cancel(true);
+
+    awaitEquals(skippedAttempts + 1, DeadlinePropagationInterceptor::getSkippedTransactionAttempts);
+    assertThat(attempts.get()).isEqualTo(2);
+    assertThat(transactionCalls.get()).isEqualTo(1);
+  }
+
+  private FinAppGrpc.FinAppFutureStub startServer(
+      BindableService service, ServerInterceptor... outerInterceptors) throws Exception {
+    String serverName = InProcessServerBuilder.generateName();
+    grpcCleanup.register(
+        InProcessServerBuilder.forName(serverName)
+            .executor(serverExecutor)
+            .addService(
+                ServerInterceptors.intercept(
+                    ServerInterceptors.intercept(service, new DeadlinePropagationInterceptor()),
+                    outerInterceptors))
+            .build()
+            .start());
+    return FinAppGrpc.newFutureStub(
+        grpcCleanup.register(InProcessChannelBuilder.forName(serverName).build()));
+  }
+
+  // Waits until the call being served has been cancelled by its client.
+  private static void awaitCancelled() {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    Context.current().addListener(context -> cancelled.countDown(), Runnable::run);
+    try {
+      cancelled.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // The counters are updated on server threads after the client sees the cancellation.
+  private static void awaitEquals(long expected, LongSupplier actual) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (actual.getAsLong() != expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(actual.getAsLong()).isEqualTo(expected);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, ProxyMethod method) {
+    return (T)
+        Proxy.newProxyInstance(
+            type.getClassLoader(), new Class<?>[] {type}, (proxy, m, args) -> method.invoke(args));
+  }
+
+  private interface ProxyMethod {
+    Object invoke(Object[] args) throws Exception;
+  }
+}
@@ -18,6 +18,7 @@ package com.google.finapp;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assume.assumeTrue;
 
 import com.google.cloud.ByteArray;
 import com.google.cloud.Timestamp;
@@ -30,9 +31,11 @@ import com.google.cloud.spanner.KeySet;
 import com.google.cloud.spanner.Mutation;
 import com.google.cloud.spanner.ReadOnlyTransaction;
 import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Struct;
 import com.google.cloud.spanner.testing.RemoteSpannerHelper;
 import com.google.common.collect.ImmutableList;
 import com.google.protobuf.ByteString;
+import io.grpc.ServerInterceptors;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.testing.GrpcCleanupRule;
@@ -75,7 +78,7 @@ public class FinAppIT {
     SpannerDaoInterface spannerDao =
         (System.getProperty("SPANNER_USE_JDBC") == null
                 || System.getProperty("SPANNER_USE_JDBC").equalsIgnoreCase("false"))
-            ? new SpannerDaoImpl(databaseClient)
+            ? new SpannerDaoImpl(databaseClient, Boolean.getBoolean("SPANNER_USE_DML_RETURNING"))
             : new SpannerDaoJDBCImpl(
                 testHelper.getOptions().getProjectId(),
                 testHelper.getInstanceId().getInstance(),
@@ -87,7 +90,9 @@ public class FinAppIT {
     grpcCleanup.register(
         InProcessServerBuilder.forName(serverName)
             .directExecutor()
-            .addService(new FinAppService(spannerDao))
+            .addService(
+                ServerInterceptors.intercept(
+                    new FinAppService(spannerDao), new DeadlinePropagationInterceptor()))
             .build()
             .start());
 
@@ -379,6 +384,134 @@ public class FinAppIT {
     assertThat(e.getMessage()).contains("Non-active accounts are not eligible for transfers");
   }
 
+  @Test
+  public void moveAccountBalance_shardedAccount_foldsShardsOnDebit() {
+    // Balance shards are only implemented by the Java client DAO.
+    assumeTrue(!Boolean.parseBoolean(System.getProperty("SPANNER_USE_JDBC")));
+    ByteArray fromAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray shardedAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(fromAccountId, new BigDecimal(20), Timestamp.now());
+    addActiveAccountRow(shardedAccountId, new BigDecimal(5), Timestamp.now());
+    databaseClient.write(
+        ImmutableList.of(
+            Mutation.newUpdateBuilder("Account")
+                .set("AccountId")
+                .to(shardedAccountId)
+                .set("BalanceShards")
+                .to(4)
+                .build()));
+
+    MoveAccountBalanceResponse credit =
+        finAppService.moveAccountBalance(
+            MoveAccountBalanceRequest.newBuilder()
+                .setFromAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+                .setToAccountId(ByteString.copyFrom(shardedAccountId.toByteArray()))
+                .setAmount("10")
+                .build());
+    assertThat(credit.getToAccountIdBalance()).isEqualTo("15");
+    // The credit went to a shard.
+    assertThat(readBalance(shardedAccountId)).isEqualTo(new BigDecimal(5));
+
+    // Only succeeds with the shard folded back into the balance.
+    MoveAccountBalanceResponse debit =
+        finAppService.moveAccountBalance(
+            MoveAccountBalanceRequest.newBuilder()
+                .setFromAccountId(ByteString.copyFrom(shardedAccountId.toByteArray()))
+                .setToAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+                .setAmount("12")
+                .build());
+    assertThat(debit.getFromAccountIdBalance()).isEqualTo("3");
+    assertThat(readBalance(shardedAccountId)).isEqualTo(new BigDecimal(3));
+  }
+
+  private static MoveAccountBalancesRequest.Leg leg(
+      ByteArray fromAccountId, ByteArray toAccountId, String amount) {
+    return MoveAccountBalancesRequest.Leg.newBuilder()
+        .setFromAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+        .setToAccountId(ByteString.copyFrom(toAccountId.toByteArray()))
+        .setAmount(amount)
+        .build();
+  }
+
+  private BigDecimal readBalance(ByteArray accountId) {
+    return databaseClient
+        .singleUse()
+        .readRow("Account", Key.of(accountId), Arrays.asList("Balance"))
+        .getBigDecimal(0);
+  }
+
+  @Test
+  public void moveAccountBalances_validLegs() {
+    ByteArray sourceAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray firstAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray secondAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(sourceAccountId, new BigDecimal(100), Timestamp.now());
+    addActiveAccountRow(firstAccountId, new BigDecimal(0), Timestamp.now());
+    addActiveAccountRow(secondAccountId, new BigDecimal(5), Timestamp.now());
+
+    MoveAccountBalancesResponse response =
+        finAppService.moveAccountBalances(
+            MoveAccountBalancesRequest.newBuilder()
+                .addLegs(leg(sourceAccountId, firstAccountId, "10"))
+                .addLegs(leg(sourceAccountId, secondAccountId, "20"))
+                .addLegs(leg(firstAccountId, secondAccountId, "3"))
+                .build());
+
+    assertThat(response.getResultsCount()).isEqualTo(3);
+    assertThat(response.getResults(0).getCommitted()).isTrue();
+    assertThat(response.getResults(0).getFromAccountIdBalance()).isEqualTo("90");
+    assertThat(response.getResults(0).getToAccountIdBalance()).isEqualTo("10");
+    assertThat(response.getResults(1).getFromAccountIdBalance()).isEqualTo("70");
+    assertThat(response.getResults(1).getToAccountIdBalance()).isEqualTo("25");
+    assertThat(response.getResults(2).getFromAccountIdBalance()).isEqualTo("7");
+    assertThat(response.getResults(2).getToAccountIdBalance()).isEqualTo("28");
+    assertThat(readBalance(sourceAccountId)).isEqualTo(new BigDecimal(70));
+    assertThat(readBalance(firstAccountId)).isEqualTo(new BigDecimal(7));
+    assertThat(readBalance(secondAccountId)).isEqualTo(new BigDecimal(28));
+  }
+
+  @Test
+  public void moveAccountBalances_tooLargeAmount_appliesNoLeg() {
+    ByteArray sourceAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray firstAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray secondAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(sourceAccountId, new BigDecimal(25), Timestamp.now());
+    addActiveAccountRow(firstAccountId, new BigDecimal(0), Timestamp.now());
+    addActiveAccountRow(secondAccountId, new BigDecimal(0), Timestamp.now());
+
+    MoveAccountBalancesResponse response =
+        finAppService.moveAccountBalances(
+            MoveAccountBalancesRequest.newBuilder()
+                .addLegs(leg(sourceAccountId, firstAccountId, "20"))
+                .addLegs(leg(sourceAccountId, secondAccountId, "20"))
+                .build());
+
+    assertThat(response.getResultsCount()).isEqualTo(2);
+    assertThat(response.getResults(0).getCommitted()).isFalse();
+    assertThat(response.getResults(1).getCommitted()).isFalse();
+    assertThat(response.getResults(1).getError())
+        .contains("Leg 1: Account balance cannot be negative");
+    assertThat(readBalance(sourceAccountId)).isEqualTo(new BigDecimal(25));
+    assertThat(readBalance(firstAccountId)).isEqualTo(new BigDecimal(0));
+  }
+
+  @Test
+  public void moveAccountBalances_sameAccount_throwsException() {
+    ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray otherAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+
+    Exception e =
+        assertThrows(
+            io.grpc.StatusRuntimeException.class,
+            () ->
+                finAppService.moveAccountBalances(
+                    MoveAccountBalancesRequest.newBuilder()
+                        .addLegs(leg(accountId, otherAccountId, "1"))
+                        .addLegs(leg(accountId, accountId, "1"))
+                        .build()));
+    assertThat(e.getMessage()).contains("Leg 1: \"To\" and \"from\" account IDs must be different");
+  }
+
   @Test
   public void createTransactionForAccount_isCredit_subtractsFromAccountBalance() {
     ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
@@ -475,6 +608,114 @@ public class FinAppIT {
     }
   }
 
+  @Test
+  public void createTransactionForAccount_sameRequestId_appliesOnce() {
+    ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(accountId, new BigDecimal(20), Timestamp.now());
+    CreateTransactionForAccountRequest request =
+        CreateTransactionForAccountRequest.newBuilder()
+            .setAccountId(ByteString.copyFrom(accountId.toByteArray()))
+            .setAmount("5")
+            .setIsCredit(true)
+            .setRequestId(UUID.randomUUID().toString())
+            .build();
+
+    CreateTransactionForAccountResponse first = finAppService.createTransactionForAccount(request);
+    CreateTransactionForAccountResponse retry = finAppService.createTransactionForAccount(request);
+
+    assertThat(first.getNewBalance()).isEqualTo("15");
+    assertThat(retry).isEqualTo(first);
+    assertThat(readBalance(accountId)).isEqualTo(new BigDecimal(15));
+    Struct recorded =
+        databaseClient
+            .singleUse()
+            .readRow(
+                "IdempotentRequest",
+                Key.of(request.getRequestId()),
+                Arrays.asList("AccountIds", "Balances"));
+    assertThat(recorded.getBytesList("AccountIds")).containsExactly(accountId);
+    assertThat(recorded.getStringList("Balances")).containsExactly("15");
+  }
+
+  @Test
+  public void moveAccountBalance_sameRequestId_appliesOnce() {
+    ByteArray fromAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray toAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(fromAccountId, new BigDecimal(20), Timestamp.now());
+    addActiveAccountRow(toAccountId, new BigDecimal(0), Timestamp.now());
+    MoveAccountBalanceRequest request =
+        MoveAccountBalanceRequest.newBuilder()
+            .setFromAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+            .setToAccountId(ByteString.copyFrom(toAccountId.toByteArray()))
+            .setAmount("8")
+            .setRequestId(UUID.randomUUID().toString())
+            .build();
+
+    MoveAccountBalanceResponse first = finAppService.moveAccountBalance(request);
+    MoveAccountBalanceResponse retry = finAppService.moveAccountBalance(request);
+
+    assertThat(retry).isEqualTo(first);
+    assertThat(readBalance(fromAccountId)).isEqualTo(new BigDecimal(12));
+    assertThat(readBalance(toAccountId)).isEqualTo(new BigDecimal(8));
+  }
+
+  @Test
+  public void moveAccountBalance_sameRequestIdDifferentAmount_throwsException() {
+    ByteArray fromAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray toAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(fromAccountId, new BigDecimal(20), Timestamp.now());
+    addActiveAccountRow(toAccountId, new BigDecimal(0), Timestamp.now());
+    MoveAccountBalanceRequest request =
+        MoveAccountBalanceRequest.newBuilder()
+            .setFromAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+            .setToAccountId(ByteString.copyFrom(toAccountId.toByteArray()))
+            .setAmount("8")
+            .setRequestId(UUID.randomUUID().toString())
+            .build();
+    finAppService.moveAccountBalance(request);
+
+    io.grpc.StatusRuntimeException e =
+        assertThrows(
+            io.grpc.StatusRuntimeException.class,
+            () -> finAppService.moveAccountBalance(request.toBuilder().setAmount("3").build()));
+
+    assertThat(e.getStatus().getCode()).isEqualTo(io.grpc.Status.Code.INVALID_ARGUMENT);
+    assertThat(readBalance(fromAccountId)).isEqualTo(new BigDecimal(12));
+    assertThat(readBalance(toAccountId)).isEqualTo(new BigDecimal(8));
+  }
+
+  @Test
+  public void createTransactionForAccount_requestIdOfMoveAccountBalance_throwsException() {
+    ByteArray fromAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    ByteArray toAccountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    addActiveAccountRow(fromAccountId, new BigDecimal(20), Timestamp.now());
+    addActiveAccountRow(toAccountId, new BigDecimal(0), Timestamp.now());
+    String requestId = UUID.randomUUID().toString();
+    finAppService.moveAccountBalance(
+        MoveAccountBalanceRequest.newBuilder()
+            .setFromAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+            .setToAccountId(ByteString.copyFrom(toAccountId.toByteArray()))
+            .setAmount("8")
+            .setRequestId(requestId)
+            .build());
+
+    io.grpc.StatusRuntimeException e =
+        assertThrows(
+            io.grpc.StatusRuntimeException.class,
+            () ->
+                finAppService.createTransactionForAccount(
+                    CreateTransactionForAccountRequest.newBuilder()
+                        .setAccountId(ByteString.copyFrom(fromAccountId.toByteArray()))
+                        .setAmount("8")
+                        .setIsCredit(true)
+                        .setRequestId(requestId)
+                        .build()));
+
+    assertThat(e.getStatus().getCode()).isEqualTo(io.grpc.Status.Code.INVALID_ARGUMENT);
+    assertThat(e.getMessage()).contains("MoveAccountBalance");
+    assertThat(readBalance(fromAccountId)).isEqualTo(new BigDecimal(12));
+  }
+
   @Test
   public void createTransactionForAccount_negativeAmount_throwsException() {
     ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.ByteArray;
+import com.google.cloud.Timestamp;
+import com.google.cloud.spanner.Database;
+import com.google.cloud.spanner.IntegrationTest;
+import com.google.cloud.spanner.IntegrationTestEnv;
+import com.google.cloud.spanner.testing.RemoteSpannerHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.finapp.SpannerDaoInterface.HistoryQuery;
+import io.grpc.StatusException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Compares history reads with one query per read against reads batched by {@link
+ * HistoryReadBatcher}: every thread reads the recent history of randomly chosen accounts out of
+ * -DHISTORY_BENCHMARK_ACCOUNTS (default 64) back to back. Prints the latency percentiles and, for
+ * the batched reads, the number of batches by size.
+ */
+@Category(IntegrationTest.class)
+public class HistoryBatchBenchmarkIT {
+  private static final int ACCOUNTS = Integer.getInteger("HISTORY_BENCHMARK_ACCOUNTS", 64);
+  private static final int THREADS = Integer.getInteger("HISTORY_BENCHMARK_THREADS", 64);
+  private static final int READS_PER_THREAD = Integer.getInteger("HISTORY_BENCHMARK_READS", 50);
+  private static final int ENTRIES_PER_ACCOUNT = 20;
+  private static final int MAX_ENTRY_COUNT = 10;
+
+  private static Database db;
+  private static SpannerDaoImpl spannerDao;
+  private static List<ByteArray> accountIds;
+
+  @ClassRule public static IntegrationTestEnv env = new IntegrationTestEnv();
+
+  @BeforeClass
+  public static void setup() throws IOException, StatusException {
+    RemoteSpannerHelper testHelper = env.getTestHelper();
+    db = testHelper.createTestDatabase(extractStatementsFromSDLFile("schema.sdl"));
+    spannerDao = new SpannerDaoImpl(testHelper.getDatabaseClient(db));
+    ImmutableList.Builder<ByteArray> accountIdsBuilder = ImmutableList.builder();
+    for (int i = 0; i < ACCOUNTS; i++) {
+      ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+      spannerDao.createAccount(accountId, AccountStatus.ACTIVE, BigDecimal.ZERO);
+      for (int j = 0; j < ENTRIES_PER_ACCOUNT; j++) {
+        spannerDao.createTransactionForAccount(
+            accountId, BigDecimal.ONE, /* isCredit= */ true, /* requestId= */ "");
+      }
+      accountIdsBuilder.add(accountId);
+    }
+    accountIds = accountIdsBuilder.build();
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    db.drop();
+  }
+
+  private static String[] extractStatementsFromSDLFile(String name) throws FileNotFoundException {
+    File file = new File("src/main/java/com/google/finapp/" + name);
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    StringBuilder builder = new StringBuilder();
+    try (Scanner scanner = new Scanner(reader)) {
+      while (scanner.hasNextLine()) {
+        String line = scanner.nextLine();
+        if (!line.startsWith("--")) { // ignore comments
+          builder.append(line);
+        }
+      }
+    }
+    return builder.toString().split(";"); // separate into individual statements
+  }
+
+  @Test
+  public void getRecentTransactionsForAccounts_matchesOneQueryPerRead() throws Exception {
+    Timestamp now = Timestamp.now();
+    ImmutableList.Builder<HistoryQuery> queries = ImmutableList.builder();
+    for (int maxEntryCount : new int[] {0, 1, MAX_ENTRY_COUNT}) {
+      for (ByteArray accountId : accountIds.subList(0, 4)) {
+        queries.add(new HistoryQuery(accountId, Timestamp.MIN_VALUE, now, maxEntryCount));
+      }
+    }
+    // The same account twice, and a window without entries.
+    queries.add(new HistoryQuery(accountIds.get(0), Timestamp.MIN_VALUE, now, 5));
+    queries.add(new HistoryQuery(accountIds.get(1), now, Timestamp.MAX_VALUE, 5));
+
+    ImmutableList<HistoryQuery> allQueries = queries.build();
+    ImmutableList<ImmutableList<TransactionEntry>> batched =
+        spannerDao.getRecentTransactionsForAccounts(allQueries);
+
+    assertThat(batched).hasSize(allQueries.size());
+    for (int i = 0; i < allQueries.size(); i++) {
+      HistoryQuery query = allQueries.get(i);
+      assertThat(batched.get(i))
+          .containsExactlyElementsIn(
+              spannerDao.getRecentTransactionsForAccount(
+                  query.accountId, query.beginTimestamp, query.endTimestamp, query.maxEntryCount))
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void getRecentTransactionsForAccount_oneQueryPerRead() throws Exception {
+    run("one query per read", spannerDao::getRecentTransactionsForAccount);
+  }
+
+  @Test
+  public void getRecentTransactionsForAccount_batched() throws Exception {
+    for (long windowMicros : new long[] {200, 1000}) {
+      try (HistoryReadBatcher batcher =
+          new HistoryReadBatcher(
+              spannerDao::getRecentTransactionsForAccounts, windowMicros, 32, THREADS)) {
+        run(
+            "batched, " + windowMicros + "us window",
+            (accountId, beginTimestamp, endTimestamp, maxEntryCount) ->
+                batcher.read(
+                    new HistoryQuery(accountId, beginTimestamp, endTimestamp, maxEntryCount)));
+        System.out.printf("  batches by size: %s%n", batcher.getBatchSizeCounts());
+      }
+    }
+  }
+
+  /** Reads the history of one account, like {@link SpannerDaoInterface}. */
+  private interface HistoryReader {
+    ImmutableList<TransactionEntry> read(
+        ByteArray accountId, Timestamp beginTimestamp, Timestamp endTimestamp, int maxEntryCount)
+        throws StatusException;
+  }
+
+  /** Runs the reads from all threads at once and prints their latency. */
+  private void run(String name, HistoryReader reader) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<long[]>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      Random random = new Random(t);
+      futures.add(
+          executor.submit(
+              () -> {
+                long[] latencies = new long[READS_PER_THREAD];
+                for (int i = 0; i < READS_PER_THREAD; i++) {
+                  ByteArray accountId = accountIds.get(random.nextInt(ACCOUNTS));
+                  long readStart = System.nanoTime();
+                  ImmutableList<TransactionEntry> entries =
+                      reader.read(
+                          accountId, Timestamp.MIN_VALUE, Timestamp.MAX_VALUE, MAX_ENTRY_COUNT);
+                  latencies[i] = System.nanoTime() - readStart;
+                  assertThat(entries).hasSize(MAX_ENTRY_COUNT);
+                }
+                return latencies;
+              }));
+    }
+    long[] latencies = new long[THREADS * READS_PER_THREAD];
+    int n = 0;
+    for (Future<long[]> future : futures) {
+      for (long latency : future.get()) {
+        latencies[n++] = latency;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    Arrays.sort(latencies);
+    System.out.printf(
+        "%s: %d reads from %d threads, %.1f/s, p50 %d ms, p99 %d ms%n",
+        name,
+        latencies.length,
+        THREADS,
+        latencies.length / seconds,
+        TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]),
+        TimeUnit.NANOSECONDS.toMillis(latencies[(int) Math.ceil(latencies.length * 0.99) - 1]));
+  }
+}
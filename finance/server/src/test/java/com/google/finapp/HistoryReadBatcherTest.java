@@ -0,0 +1,187 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.ByteArray;
+import com.google.cloud.Timestamp;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.finapp.SpannerDaoInterface.HistoryQuery;
+import io.grpc.Context;
+import io.grpc.Context.CancellableContext;
+import io.grpc.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+public class HistoryReadBatcherTest {
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger batches = new AtomicInteger();
+  private final List<ImmutableList<HistoryQuery>> batchQueries = new CopyOnWriteArrayList<>();
+  private HistoryReadBatcher batcher;
+
+  @After
+  public void shutDown() {
+    if (batcher != null) {
+      batcher.close();
+    }
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void read_concurrentReads_shareOneBatch() throws Exception {
+    batcher = new HistoryReadBatcher(this::readAccountNames, TimeUnit.SECONDS.toMicros(1), 32, 2);
+
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(4);
+
+    for (int i = 0; i < reads.size(); i++) {
+      assertThat(reads.get(i).get()).containsExactly(entry("account" + i));
+    }
+    assertThat(batches.get()).isEqualTo(1);
+    assertThat(batcher.getBatchSizeCounts()).isEqualTo(ImmutableMap.of(4, 1L));
+  }
+
+  @Test
+  public void read_fullBatch_readsBeforeWindowEnds() throws Exception {
+    batcher = new HistoryReadBatcher(this::readAccountNames, TimeUnit.MINUTES.toMicros(1), 2, 2);
+
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(4);
+
+    for (int i = 0; i < reads.size(); i++) {
+      assertThat(reads.get(i).get(10, TimeUnit.SECONDS)).containsExactly(entry("account" + i));
+    }
+    assertThat(batches.get()).isEqualTo(2);
+    assertThat(batcher.getBatchSizeCounts()).isEqualTo(ImmutableMap.of(2, 2L));
+  }
+
+  @Test
+  public void read_batchFails_failsAllReads() throws Exception {
+    batcher =
+        new HistoryReadBatcher(
+            queries -> {
+              throw Status.UNAVAILABLE.asException();
+            },
+            1000,
+            32,
+            2);
+
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(3);
+
+    for (Future<ImmutableList<TransactionEntry>> read : reads) {
+      assertThat(statusCode(read)).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+  }
+
+  @Test
+  public void read_cancelledCall_leftOutOfBatch() throws Exception {
+    batcher =
+        new HistoryReadBatcher(this::readAccountNames, TimeUnit.MILLISECONDS.toMicros(200), 32, 2);
+    CancellableContext cancelled = Context.current().withCancellation();
+    cancelled.cancel(null);
+
+    Future<ImmutableList<TransactionEntry>> cancelledRead = startRead(0, cancelled);
+    Future<ImmutableList<TransactionEntry>> read = startRead(1, Context.current());
+
+    assertThat(read.get(10, TimeUnit.SECONDS)).containsExactly(entry("account1"));
+    assertThat(statusCode(cancelledRead)).isEqualTo(Status.Code.CANCELLED);
+    assertThat(batchQueries).hasSize(1);
+    assertThat(batchQueries.get(0).get(0).accountId).isEqualTo(ByteArray.copyFrom("account1"));
+    assertThat(batcher.getBatchSizeCounts()).isEqualTo(ImmutableMap.of(1, 1L));
+  }
+
+  @Test
+  public void read_allCallsCancelled_skipsBatch() throws Exception {
+    batcher =
+        new HistoryReadBatcher(this::readAccountNames, TimeUnit.MILLISECONDS.toMicros(200), 32, 2);
+    CancellableContext cancelled = Context.current().withCancellation();
+    cancelled.cancel(null);
+
+    Future<ImmutableList<TransactionEntry>> first = startRead(0, cancelled);
+    Future<ImmutableList<TransactionEntry>> second = startRead(1, cancelled);
+
+    assertThat(statusCode(first)).isEqualTo(Status.Code.CANCELLED);
+    assertThat(statusCode(second)).isEqualTo(Status.Code.CANCELLED);
+    assertThat(batches.get()).isEqualTo(0);
+    assertThat(batcher.getBatchSizeCounts()).isEmpty();
+  }
+
+  @Test
+  public void close_failsOpenBatchAndLaterReads() throws Exception {
+    batcher = new HistoryReadBatcher(this::readAccountNames, TimeUnit.MINUTES.toMicros(1), 32, 2);
+    // Reads that reach the batcher after close fail the same way as those in the open batch.
+    List<Future<ImmutableList<TransactionEntry>>> reads = startReads(2);
+
+    batcher.close();
+
+    for (Future<ImmutableList<TransactionEntry>> read : reads) {
+      assertThat(statusCode(read)).isEqualTo(Status.Code.UNAVAILABLE);
+    }
+    assertThat(statusCode(startRead(2, Context.current()))).isEqualTo(Status.Code.UNAVAILABLE);
+    assertThat(batches.get()).isEqualTo(0);
+  }
+
+  /** Starts reads for accounts "account0", "account1", ... one after the other. */
+  private List<Future<ImmutableList<TransactionEntry>>> startReads(int count) {
+    List<Future<ImmutableList<TransactionEntry>>> reads = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      reads.add(startRead(i, Context.current()));
+    }
+    return reads;
+  }
+
+  /** Starts a read for account "account<i>" within the given call context. */
+  private Future<ImmutableList<TransactionEntry>> startRead(int i, Context context) {
+    HistoryQuery query =
+        new HistoryQuery(
+            ByteArray.copyFrom("account" + i), Timestamp.MIN_VALUE, Timestamp.MAX_VALUE, 10);
+    return executor.submit(context.wrap(() -> batcher.read(query)));
+  }
+
+  /** Waits for the read to fail and returns the code of its status. */
+  private static Status.Code statusCode(Future<ImmutableList<TransactionEntry>> read) {
+    ExecutionException e =
+        assertThrows(ExecutionException.class, () -> read.get(10, TimeUnit.SECONDS));
+    return Status.fromThrowable(e.getCause()).getCode();
+  }
+
+  /** Answers every query with one entry whose amount is the name of its account. */
+  private ImmutableList<ImmutableList<TransactionEntry>> readAccountNames(
+      ImmutableList<HistoryQuery> queries) {
+    batches.incrementAndGet();
+    batchQueries.add(queries);
+    ImmutableList.Builder<ImmutableList<TransactionEntry>> entries = ImmutableList.builder();
+    for (HistoryQuery query : queries) {
+      entries.add(ImmutableList.of(entry(query.accountId.toStringUtf8())));
+    }
+    return entries.build();
+  }
+
+  private static TransactionEntry entry(String amount) {
+    return TransactionEntry.newBuilder().setAmount(amount).build();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.opencensus.common.Timestamp;
+import io.opencensus.metrics.LabelKey;
+import io.opencensus.metrics.LabelValue;
+import io.opencensus.metrics.export.Metric;
+import io.opencensus.metrics.export.MetricDescriptor;
+import io.opencensus.metrics.export.Point;
+import io.opencensus.metrics.export.TimeSeries;
+import io.opencensus.metrics.export.Value;
+import org.junit.Test;
+
+public class ServerMainTest {
+  private static final ImmutableList<LabelKey> LABEL_KEYS =
+      ImmutableList.of(
+          LabelKey.create("client_id", ""),
+          LabelKey.create("database", ""),
+          LabelKey.create("type", ""));
+
+  @Test
+  public void sessionPoolMetrics_keysByLabelValues_sumsOverClients() {
+    Metric sessions =
+        Metric.create(
+            MetricDescriptor.create(
+                "cloud.google.com/java/spanner/num_sessions_in_pool",
+                "",
+                "1",
+                MetricDescriptor.Type.GAUGE_INT64,
+                LABEL_KEYS),
+            ImmutableList.of(
+                timeSeries("client-1", "num_in_use_sessions", 3),
+                timeSeries("client-2", "num_in_use_sessions", 2),
+                timeSeries("client-1", "num_read_sessions", 10)));
+    Metric other =
+        Metric.create(
+            MetricDescriptor.create(
+                "grpc.io/client/roundtrip_latency",
+                "",
+                "ms",
+                MetricDescriptor.Type.GAUGE_INT64,
+                LABEL_KEYS),
+            ImmutableList.of(timeSeries("client-1", "x", 7)));
+
+    assertThat(ServerMain.sessionPoolMetrics(ImmutableList.of(sessions, other)))
+        .isEqualTo(
+            ImmutableMap.of(
+                "num_sessions_in_pool{type=num_in_use_sessions}", 5L,
+                "num_sessions_in_pool{type=num_read_sessions}", 10L));
+  }
+
+  private static TimeSeries timeSeries(String clientId, String type, long value) {
+    return TimeSeries.createWithOnePoint(
+        ImmutableList.of(
+            LabelValue.create(clientId), LabelValue.create("db"), LabelValue.create(type)),
+        Point.create(Value.longValue(value), Timestamp.create(0, 0)),
+        null);
+  }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2020 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.finapp;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.cloud.ByteArray;
+import com.google.cloud.spanner.Database;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.Dialect;
+import com.google.cloud.spanner.IntegrationTest;
+import com.google.cloud.spanner.IntegrationTestEnv;
+import com.google.cloud.spanner.Key;
+import com.google.cloud.spanner.KeySet;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.TransactionContext;
+import com.google.cloud.spanner.TransactionRunner;
+import com.google.cloud.spanner.TransactionRunner.TransactionCallable;
+import com.google.cloud.spanner.testing.RemoteSpannerHelper;
+import com.google.common.collect.ImmutableList;
+import io.grpc.StatusException;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * Compares the DAOs and transfer strategies on a few hot accounts: every thread moves small amounts
+ * between randomly chosen accounts out of -DTRANSFER_BENCHMARK_ACCOUNTS (default 4), so most
+ * transactions conflict. Prints the latency percentiles per DAO and, for the Java client DAOs, how
+ * many transaction attempts Spanner aborted and the client retried. The PostgreSQL DAO needs a
+ * Spanner instance and only runs with -DTRANSFER_BENCHMARK_PG=true. A separate run moves money from
+ * every thread into one hot account with 0, 1, 4 and 16 balance shards.
+ */
+@Category(IntegrationTest.class)
+public class TransferBenchmarkIT {
+  private static final int ACCOUNTS = Integer.getInteger("TRANSFER_BENCHMARK_ACCOUNTS", 4);
+  private static final int THREADS = Integer.getInteger("TRANSFER_BENCHMARK_THREADS", 16);
+  private static final int TRANSFERS_PER_THREAD =
+      Integer.getInteger("TRANSFER_BENCHMARK_TRANSFERS", 50);
+  private static final BigDecimal INITIAL_BALANCE = new BigDecimal(1000000);
+
+  private static Database db;
+  private static Database pgDb;
+  private static DatabaseClient databaseClient;
+
+  @ClassRule public static IntegrationTestEnv env = new IntegrationTestEnv();
+
+  @BeforeClass
+  public static void setup() throws IOException {
+    RemoteSpannerHelper testHelper = env.getTestHelper();
+    db = testHelper.createTestDatabase(extractStatementsFromSDLFile("schema.sdl"));
+    databaseClient = testHelper.getDatabaseClient(db);
+    if (Boolean.getBoolean("TRANSFER_BENCHMARK_PG")) {
+      pgDb =
+          testHelper.createTestDatabase(
+              Dialect.POSTGRESQL, Arrays.asList(extractStatementsFromSDLFile("schema_pg.sdl")));
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    db.drop();
+    if (pgDb != null) {
+      pgDb.drop();
+    }
+  }
+
+  private static String[] extractStatementsFromSDLFile(String name) throws FileNotFoundException {
+    File file = new File("src/main/java/com/google/finapp/" + name);
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    StringBuilder builder = new StringBuilder();
+    try (Scanner scanner = new Scanner(reader)) {
+      while (scanner.hasNextLine()) {
+        String line = scanner.nextLine();
+        if (!line.startsWith("--")) { // ignore comments
+          builder.append(line);
+        }
+      }
+    }
+    return builder.toString().split(";"); // separate into individual statements
+  }
+
+  @Test
+  public void moveAccountBalance_readWrite() throws Exception {
+    AtomicLong attempts = new AtomicLong();
+    run(
+        "java read-write",
+        new SpannerDaoImpl(countingAttempts(databaseClient, attempts)),
+        attempts,
+        /* checkTotal= */ true);
+  }
+
+  @Test
+  public void moveAccountBalance_dmlReturning() throws Exception {
+    AtomicLong attempts = new AtomicLong();
+    run(
+        "java dml-returning",
+        new SpannerDaoImpl(countingAttempts(databaseClient, attempts), /* useDmlReturning= */ true),
+        attempts,
+        /* checkTotal= */ true);
+  }
+
+  @Test
+  public void moveAccountBalance_jdbc() throws Exception {
+    RemoteSpannerHelper testHelper = env.getTestHelper();
+    run(
+        "jdbc batch-dml",
+        new SpannerDaoJDBCImpl(
+            testHelper.getOptions().getProjectId(),
+            testHelper.getInstanceId().getInstance(),
+            db.getId().getDatabase()),
+        /* attempts= */ null,
+        /* checkTotal= */ true);
+  }
+
+  @Test
+  public void moveAccountBalance_pg() throws Exception {
+    assumeTrue(pgDb != null);
+    DatabaseClient pgClient = env.getTestHelper().getDatabaseClient(pgDb);
+    AtomicLong attempts = new AtomicLong();
+    run(
+        "pg batch-dml",
+        new SpannerDaoPGImpl(countingAttempts(pgClient, attempts)),
+        attempts,
+        /* checkTotal= */ false);
+    attempts.set(0);
+    run(
+        "pg dml-returning",
+        new SpannerDaoPGImpl(countingAttempts(pgClient, attempts), /* useDmlReturning= */ true),
+        attempts,
+        /* checkTotal= */ false);
+  }
+
+  @Test
+  public void moveAccountBalance_hotDestination() throws Exception {
+    SpannerDaoImpl spannerDao = new SpannerDaoImpl(databaseClient);
+    for (int shards : new int[] {0, 1, 4, 16}) {
+      runHotDestination(spannerDao, shards);
+    }
+  }
+
+  /**
+   * Every thread moves small amounts from its own account into one destination account with the
+   * given number of balance shards, and prints the transfers per second.
+   */
+  private void runHotDestination(SpannerDaoImpl spannerDao, int shards) throws Exception {
+    List<ByteArray> sourceIds = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      sourceIds.add(createAccount(spannerDao));
+    }
+    ByteArray destinationId = createAccount(spannerDao);
+    databaseClient.write(
+        ImmutableList.of(
+            Mutation.newUpdateBuilder("Account")
+                .set("AccountId")
+                .to(destinationId)
+                .set("BalanceShards")
+                .to(shards)
+                .build()));
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<?>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (ByteArray sourceId : sourceIds) {
+      futures.add(
+          executor.submit(
+              () -> {
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                  transfer(spannerDao, sourceId, destinationId);
+                }
+              }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    int transfers = THREADS * TRANSFERS_PER_THREAD;
+    System.out.printf(
+        "hot destination, %d shards: %d transfers, %.1f/s%n",
+        shards, transfers, transfers / seconds);
+
+    // Once folded, the destination holds everything that was moved into it.
+    spannerDao.foldAllBalanceShards();
+    assertThat(totalBalance(ImmutableList.of(destinationId)))
+        .isEqualTo(INITIAL_BALANCE.add(new BigDecimal(transfers)));
+  }
+
+  /**
+   * Runs the transfers and prints their latency.
+   *
+   * @param attempts transaction attempts counted by {@link #countingAttempts}, or null if the DAO
+   *     does not use a DatabaseClient
+   * @param checkTotal whether to check that the accounts still hold the initial total, which reads
+   *     them from the GoogleSQL database
+   */
+  private void run(
+      String name, SpannerDaoInterface spannerDao, AtomicLong attempts, boolean checkTotal)
+      throws Exception {
+    List<ByteArray> accountIds = createAccounts(spannerDao);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<long[]>> futures = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < THREADS; t++) {
+      Random random = new Random(t);
+      futures.add(
+          executor.submit(
+              () -> {
+                long[] latencies = new long[TRANSFERS_PER_THREAD];
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                  int from = random.nextInt(ACCOUNTS);
+                  int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                  long transferStart = System.nanoTime();
+                  transfer(spannerDao, accountIds.get(from), accountIds.get(to));
+                  latencies[i] = System.nanoTime() - transferStart;
+                }
+                return latencies;
+              }));
+    }
+    long[] latencies = new long[THREADS * TRANSFERS_PER_THREAD];
+    int n = 0;
+    for (Future<long[]> future : futures) {
+      for (long latency : future.get()) {
+        latencies[n++] = latency;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    Arrays.sort(latencies);
+    System.out.printf(
+        "%s: %d transfers over %d accounts, %.1f/s, p50 %d ms, p99 %d ms, %s aborted attempts%n",
+        name,
+        latencies.length,
+        ACCOUNTS,
+        latencies.length / seconds,
+        TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length / 2]),
+        TimeUnit.NANOSECONDS.toMillis(latencies[(int) Math.ceil(latencies.length * 0.99) - 1]),
+        attempts == null ? "n/a" : String.valueOf(attempts.get() - latencies.length));
+
+    if (checkTotal) {
+      // Transfers only move money around.
+      assertThat(totalBalance(accountIds))
+          .isEqualTo(INITIAL_BALANCE.multiply(new BigDecimal(ACCOUNTS)));
+    }
+  }
+
+  private static void transfer(SpannerDaoInterface spannerDao, ByteArray from, ByteArray to) {
+    try {
+      spannerDao.moveAccountBalance(from, to, BigDecimal.ONE, /* requestId= */ "");
+    } catch (StatusException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private List<ByteArray> createAccounts(SpannerDaoInterface spannerDao) throws StatusException {
+    ImmutableList.Builder<ByteArray> accountIds = ImmutableList.builder();
+    for (int i = 0; i < ACCOUNTS; i++) {
+      accountIds.add(createAccount(spannerDao));
+    }
+    return accountIds.build();
+  }
+
+  private static ByteArray createAccount(SpannerDaoInterface spannerDao) throws StatusException {
+    ByteArray accountId = UuidConverter.getBytesFromUuid(UUID.randomUUID());
+    spannerDao.createAccount(accountId, AccountStatus.ACTIVE, INITIAL_BALANCE);
+    return accountId;
+  }
+
+  private BigDecimal totalBalance(List<ByteArray> accountIds) {
+    KeySet.Builder keySet = KeySet.newBuilder();
+    for (ByteArray accountId : accountIds) {
+      keySet.addKey(Key.of(accountId));
+    }
+    BigDecimal total = BigDecimal.ZERO;
+    try (ResultSet resultSet =
+        databaseClient.singleUse().read("Account", keySet.build(), Arrays.asList("Balance"))) {
+      while (resultSet.next()) {
+        total = total.add(resultSet.getBigDecimal("Balance"));
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Wraps a DatabaseClient so that every run of a read-write transaction callable is counted. The
+   * client runs a callable again after an abort, so attempts beyond one per transaction are aborts.
+   */
+  static DatabaseClient countingAttempts(DatabaseClient client, AtomicLong attempts) {
+    return (DatabaseClient)
+        Proxy.newProxyInstance(
+            DatabaseClient.class.getClassLoader(),
+            new Class<?>[] {DatabaseClient.class},
+            (proxy, method, args) -> {
+              Object result = invoke(client, method, args);
+              if (!method.getName().equals("readWriteTransaction")) {
+                return result;
+              }
+              TransactionRunner runner = (TransactionRunner) result;
+              return Proxy.newProxyInstance(
+                  TransactionRunner.class.getClassLoader(),
+                  new Class<?>[] {TransactionRunner.class},
+                  (runnerProxy, runnerMethod, runnerArgs) -> {
+                    if (runnerMethod.getName().equals("run")) {
+                      TransactionCallable<?> callable = (TransactionCallable<?>) runnerArgs[0];
+                      return runner.run(
+                          (TransactionContext transaction) -> {
+                            attempts.incrementAndGet();
+                            return callable.run(transaction);
+                          });
+                    }
+                    return invoke(runner, runnerMethod, runnerArgs);
+                  });
+            });
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+}
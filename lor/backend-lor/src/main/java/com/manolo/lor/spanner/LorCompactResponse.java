@@ -0,0 +1,114 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Columnar form of {@link LorEngineResponse}: the nodes are sent once as parallel id, label and
+ * group arrays, and each edge as a pair of indexes into them, flattened into one array as
+ * [from0, to0, from1, to1, ...]. Graph metrics, once computed, are sent as three more arrays
+ * parallel to the ids, with null for the nodes that have none. Served for Accept:
+ * application/vnd.lor.compact+json.
+ */
+public class LorCompactResponse {
+
+    public static final String MEDIA_TYPE = "application/vnd.lor.compact+json";
+
+    private String query;
+    private String[] ids;
+    private String[] labels;
+    private String[] groups;
+    private int[] edges;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long[] weightedDegrees;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double[] pageRanks;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String[] communities;
+
+    public LorCompactResponse() {
+    }
+
+    public static LorCompactResponse of(LorEngineResponse res) {
+        List<Node> nodes = res.getNodes();
+        LorCompactResponse compact = new LorCompactResponse();
+        compact.query = res.getQuery();
+        compact.ids = new String[nodes.size()];
+        compact.labels = new String[nodes.size()];
+        compact.groups = new String[nodes.size()];
+        Map<String, Integer> index = new HashMap<String, Integer>();
+        for (int i = 0; i < nodes.size(); i++) {
+            Node n = nodes.get(i);
+            compact.ids[i] = n.getId();
+            compact.labels[i] = n.getLabel();
+            compact.groups[i] = n.getGroup();
+            index.put(n.getId(), i);
+            if (n.getPageRank() != null && compact.pageRanks == null) {
+                compact.weightedDegrees = new Long[nodes.size()];
+                compact.pageRanks = new Double[nodes.size()];
+                compact.communities = new String[nodes.size()];
+            }
+            if (compact.pageRanks != null) {
+                compact.weightedDegrees[i] = n.getWeightedDegree();
+                compact.pageRanks[i] = n.getPageRank();
+                compact.communities[i] = n.getCommunity();
+            }
+        }
+        List<Edge> edges = res.getEdges();
+        compact.edges = new int[edges.size() * 2];
+        for (int i = 0; i < edges.size(); i++) {
+            compact.edges[2 * i] = index.get(edges.get(i).getFrom());
+            compact.edges[2 * i + 1] = index.get(edges.get(i).getTo());
+        }
+        return compact;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String[] getIds() {
+        return ids;
+    }
+
+    public String[] getLabels() {
+        return labels;
+    }
+
+    public String[] getGroups() {
+        return groups;
+    }
+
+    public int[] getEdges() {
+        return edges;
+    }
+
+    public Long[] getWeightedDegrees() {
+        return weightedDegrees;
+    }
+
+    public Double[] getPageRanks() {
+        return pageRanks;
+    }
+
+    public String[] getCommunities() {
+        return communities;
+    }
+}
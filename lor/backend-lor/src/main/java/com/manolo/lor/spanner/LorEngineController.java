@@ -15,10 +15,20 @@
 package com.manolo.lor.spanner;
 
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 public class LorEngineController {
@@ -26,9 +36,87 @@ public class LorEngineController {
     @Autowired
     LorEngineService engine;
 
+    @Autowired
+    LorResultCache cache;
+
+    @Autowired
+    LorTraversalService traversal;
+
+    @Autowired
+    LorMetricsJob metricsJob;
+
+    // Anyone who can reach the service could otherwise force every request back to Spanner
+    @Value("${lor.cache.invalidation-enabled:false}")
+    boolean cacheInvalidationEnabled;
+
     @PostMapping(value = "/api/run", produces = "application/json")
 	public LorEngineResponse runPost(@RequestBody Map<String, Object> payload) {
         LorEngineRequest req = new LorEngineRequest(payload);
         return engine.run(req);
 	}
+
+    // Same graph as above, with node ids sent once and edges as index pairs
+    @PostMapping(value = "/api/run", produces = LorCompactResponse.MEDIA_TYPE)
+    public LorCompactResponse runPostCompact(@RequestBody Map<String, Object> payload) {
+        LorEngineRequest req = new LorEngineRequest(payload);
+        return LorCompactResponse.of(engine.run(req));
+    }
+
+    // Same as /api/run without holding a request thread while Spanner runs the query
+    @PostMapping(value = "/api/run/async", produces = "application/json")
+    public CompletableFuture<LorEngineResponse> runPostAsync(@RequestBody Map<String, Object> payload) {
+        LorEngineRequest req = new LorEngineRequest(payload);
+        return engine.runAsync(req);
+    }
+
+    // Same graph as /api/run, written as newline-delimited JSON while the query runs
+    @PostMapping(value = "/api/run/stream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> runStream(@RequestBody Map<String, Object> payload) {
+        LorEngineRequest req = new LorEngineRequest(payload).canonical();
+        return ResponseEntity.ok()
+            .contentType(MediaType.APPLICATION_NDJSON)
+            .body(out -> engine.stream(req, out));
+    }
+
+    @GetMapping(value = "/api/neighborhood", produces = "application/json")
+    public LorEngineResponse neighborhood(@RequestParam String id,
+            @RequestParam(defaultValue = "2") int hops,
+            @RequestParam(defaultValue = "10") int fanOut,
+            @RequestParam(defaultValue = "1") int minStrength) {
+        try {
+            return metricsJob.decorate(traversal.neighborhood(id, hops, fanOut, minStrength));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @GetMapping(value = "/api/path", produces = "application/json")
+    public LorEngineResponse path(@RequestParam String from, @RequestParam String to,
+            @RequestParam(defaultValue = "4") int maxHops,
+            @RequestParam(defaultValue = "25") int fanOut,
+            @RequestParam(defaultValue = "1") int minStrength) {
+        try {
+            return metricsJob.decorate(traversal.shortestPath(from, to, maxHops, fanOut, minStrength));
+        }
+        catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    @GetMapping(value = "/api/admin/cache", produces = "application/json")
+    public Map<String, Object> cacheStats() {
+        return cache.stats();
+    }
+
+    // Call after reloading the graph tables so that stale results are not served until the TTL.
+    // Only exists when lor.cache.invalidation-enabled is set.
+    @DeleteMapping(value = "/api/admin/cache", produces = "application/json")
+    public Map<String, Object> invalidateCache() {
+        if (!cacheInvalidationEnabled) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+        }
+        cache.invalidate();
+        return cache.stats();
+    }
 }
@@ -15,6 +15,7 @@
 package com.manolo.lor.spanner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 public class LorEngineRequest {
@@ -85,6 +86,30 @@ public class LorEngineRequest {
         this.places = places;
     }
 
+    /**
+     * Returns a copy with every id list sorted and without duplicates, so that requests that
+     * select the same graph produce the same query and the same cache key.
+     */
+    public LorEngineRequest canonical() {
+        LorEngineRequest req = new LorEngineRequest();
+        req.setCharacters(sortedDistinct(characters));
+        req.setKinds(sortedDistinct(kinds));
+        req.setPlaces(sortedDistinct(places));
+        req.setMinStrength(minStrength);
+        req.setMaxStrength(maxStrength);
+        return req;
+    }
+
+    /** Cache key of a canonical request. */
+    public String cacheKey() {
+        return "c=" + String.join(",", characters)
+            + "|k=" + String.join(",", kinds)
+            + "|p=" + String.join(",", places)
+            + "|s=" + minStrength + "-" + maxStrength;
+    }
 
+    private static String[] sortedDistinct(String[] values) {
+        return Arrays.stream(values).distinct().sorted().toArray(String[]::new);
+    }
 
 }
@@ -14,16 +14,35 @@
 
 package com.manolo.lor.spanner;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+import org.threeten.bp.Duration;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.cloud.spanner.AsyncResultSet;
+import com.google.cloud.spanner.AsyncResultSet.CallbackResponse;
 import com.google.cloud.spanner.DatabaseClient;
 import com.google.cloud.spanner.DatabaseId;
 import com.google.cloud.spanner.LazySpannerInitializer;
 import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.SessionPoolOptions;
+import com.google.cloud.spanner.Spanner;
 import com.google.cloud.spanner.SpannerOptions;
 import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.StructReader;
 
 @Service
 public class LorEngineService {
@@ -38,131 +57,352 @@ public class LorEngineService {
     private static final String INSTANCE_ID = System.getenv("INSTANCE_ID");
     private static final String DATABASE_ID = System.getenv("DATABASE_ID");
 
-    private static final LazySpannerInitializer SPANNER_INITIALIZER = new LazySpannerInitializer();
+    // Upper bound on how long creating the client waits for the session pool to be filled
+    private static final Duration SESSION_POOL_WAIT = Duration.ofSeconds(30);
 
-    DatabaseClient getClient() throws Throwable {
-        return SPANNER_INITIALIZER.get().getDatabaseClient(DatabaseId.of(SpannerOptions.getDefaultProjectId(), INSTANCE_ID, DATABASE_ID));
+    private static final LazySpannerInitializer SPANNER_INITIALIZER = new LazySpannerInitializer() {
+        @Override
+        protected Spanner initialize() {
+            // Wait for the minimum sessions, so that requests after startup never create one
+            return SpannerOptions.newBuilder()
+                .setSessionPoolOption(SessionPoolOptions.newBuilder()
+                    .setWaitForMinSessions(SESSION_POOL_WAIT)
+                    .build())
+                .build()
+                .getService();
+        }
+    };
+
+    private static volatile DatabaseClient client;
+
+    static boolean isConfigured() {
+        return INSTANCE_ID != null && DATABASE_ID != null;
     }
 
-    public LorEngineResponse run(LorEngineRequest req) {
-        String query = buildQuery(req);
+    static DatabaseClient getClient() throws Throwable {
+        DatabaseClient result = client;
+        if (result == null) {
+            synchronized (LorEngineService.class) {
+                if (client == null) {
+                    client = SPANNER_INITIALIZER.get().getDatabaseClient(DatabaseId.of(SpannerOptions.getDefaultProjectId(), INSTANCE_ID, DATABASE_ID));
+                }
+                result = client;
+            }
+        }
+        return result;
+    }
+
+    @Autowired
+    LorResultCache cache;
+
+    @Autowired
+    LorGraphEngine graphEngine;
+
+    @Autowired
+    LorMetricsJob metricsJob;
+
+    // Completes the async queries; callbacks only copy rows, so a few threads are enough
+    private static final ExecutorService CALLBACK_EXECUTOR = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "lor-query-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-        LorEngineResponse res = new LorEngineResponse();
-        
-        res.setQuery(query);
+    public LorEngineResponse run(LorEngineRequest req) {
+        LorEngineRequest canonical = req.canonical();
+        String key = canonical.cacheKey();
+        LorEngineResponse local = runLocally(canonical, key);
+        if (local != null) {
+            return local;
+        }
+        try {
+            LorEngineResponse res = metricsJob.decorate(query(canonical));
+            cache.put(key, res);
+            return res;
+        }
+        catch (Throwable e) {
+            throw failed(canonical, e);
+        }
+    }
 
-        HashSet<Node> nodeSet = new HashSet<Node>();
-        HashSet<Edge> edgeSet = new HashSet<Edge>();
+    /**
+     * Same as {@link #run} but does not block the calling thread: the query is executed with
+     * executeQueryAsync and the rows are collected by a callback as they arrive.
+     */
+    public CompletableFuture<LorEngineResponse> runAsync(LorEngineRequest req) {
+        LorEngineRequest canonical = req.canonical();
+        String key = canonical.cacheKey();
+        LorEngineResponse local = runLocally(canonical, key);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+        CompletableFuture<LorEngineResponse> future = new CompletableFuture<LorEngineResponse>();
+        Statement query = buildQuery(canonical);
+        GraphCollector collector = new GraphCollector();
         try {
-            DatabaseClient dbClient = getClient();
-            ResultSet resultSet = dbClient.singleUse().executeQuery(Statement.of(query));
+            AsyncResultSet resultSet = getClient().singleUse().executeQueryAsync(query);
+            resultSet.setCallback(CALLBACK_EXECUTOR, rs -> {
+                try {
+                    while (true) {
+                        switch (rs.tryNext()) {
+                            case OK:
+                                collector.add(rs);
+                                break;
+                            case NOT_READY:
+                                return CallbackResponse.CONTINUE;
+                            case DONE:
+                                LorEngineResponse res = metricsJob.decorate(collector.toResponse(query));
+                                cache.put(key, res);
+                                future.complete(res);
+                                return CallbackResponse.DONE;
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    future.completeExceptionally(failed(canonical, e));
+                    return CallbackResponse.DONE;
+                }
+            });
+        }
+        catch (Throwable e) {
+            future.completeExceptionally(failed(canonical, e));
+        }
+        return future;
+    }
+
+    // Answers from the result cache or the in-memory graph, or returns null if Spanner is needed
+    private LorEngineResponse runLocally(LorEngineRequest canonical, String key) {
+        LorEngineResponse cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        LorGraph graph = graphEngine.getGraph();
+        if (graph != null) {
+            LorEngineResponse res = metricsJob.decorate(graph.run(canonical));
+            res.setQuery("-- Answered from the in-memory graph loaded at "
+                + Instant.ofEpochMilli(graph.getLoadedAt()) + "\n" + buildQuery(canonical));
+            cache.put(key, res);
+            return res;
+        }
+        return null;
+    }
+
+    // Failed queries are not cached, the next request tries again. They are answered with 503
+    // rather than an empty graph, which callers could not tell apart from a query without matches.
+    private ResponseStatusException failed(LorEngineRequest canonical, Throwable e) {
+        e.printStackTrace();
+        return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE,
+            "Graph query failed: " + buildQuery(canonical), e);
+    }
+
+    private LorEngineResponse query(LorEngineRequest req) throws Throwable {
+        Statement query = buildQuery(req);
+        GraphCollector collector = new GraphCollector();
+        DatabaseClient dbClient = getClient();
+        try (ResultSet resultSet = dbClient.singleUse().executeQuery(query)) {
             while (resultSet.next()) {
-                String from_id = resultSet.getString(0);
-                String from_label = resultSet.getString(1);
-                String from_subtype = resultSet.getString(2);
-                String to_id = resultSet.getString(3);
-                String to_label = resultSet.getString(4);
-                String to_subtype = resultSet.getString(5);
-                
-                Node n_from = new Node(from_id,from_label, from_subtype);
-                Node n_to = new Node(to_id, to_label, to_subtype);
-                nodeSet.add(n_from);
-                nodeSet.add(n_to);
-
-                Edge edge = new Edge(from_id, to_id);
-                edgeSet.add(edge);
+                collector.add(resultSet);
             }
+        }
+        return collector.toResponse(query);
+    }
+
+    // Distinct nodes and edges of the rows returned by the graph query
+    static class GraphCollector {
+
+        private final HashSet<Node> nodeSet = new HashSet<Node>();
+        private final HashSet<Edge> edgeSet = new HashSet<Edge>();
+
+        void add(StructReader row) {
+            String from_id = row.getString(0);
+            String from_label = row.getString(1);
+            String from_subtype = row.getString(2);
+            String to_id = row.getString(3);
+            String to_label = row.getString(4);
+            String to_subtype = row.getString(5);
+
+            Node n_from = new Node(from_id,from_label, from_subtype);
+            Node n_to = new Node(to_id, to_label, to_subtype);
+            nodeSet.add(n_from);
+            nodeSet.add(n_to);
+
+            Edge edge = new Edge(from_id, to_id);
+            edgeSet.add(edge);
+        }
+
+        LorEngineResponse toResponse(Statement query) {
+            LorEngineResponse res = new LorEngineResponse();
+            res.setQuery(query.toString());
             for(Node n : nodeSet)
                 res.addNode(n);
             for(Edge e : edgeSet)
                 res.addEdge(e);
-        } 
+            return res;
+        }
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    // Rows written before the first flush, so the client sees the graph start arriving early
+    private static final int FIRST_FLUSH_ROWS = 16;
+
+    /**
+     * Writes the result of the graph query as newline-delimited JSON while the result set is
+     * read: a "query" line, then "node" and "edge" lines in the order they are first seen, the
+     * node lines with the latest graph metrics. Only the ids already written are kept in memory,
+     * not the nodes and edges themselves. Errors after the first line are reported as an "error"
+     * line, as the status is already sent.
+     */
+    public void stream(LorEngineRequest req, OutputStream out) throws IOException {
+        Statement query = buildQuery(req);
+        JsonGenerator gen = JSON_FACTORY.createGenerator(out);
+        gen.setRootValueSeparator(new SerializedString("\n"));
+        gen.writeStartObject();
+        gen.writeStringField("type", "query");
+        gen.writeStringField("query", query.toString());
+        gen.writeEndObject();
+        gen.flush();
+
+        LorGraphMetrics metrics = metricsJob.getMetrics();
+        HashSet<String> seenNodes = new HashSet<String>();
+        HashSet<String> seenEdges = new HashSet<String>();
+        int rows = 0;
+        try (ResultSet resultSet = getClient().singleUse().executeQuery(query)) {
+            while (resultSet.next()) {
+                String from_id = resultSet.getString(0);
+                String to_id = resultSet.getString(3);
+                if (seenNodes.add(from_id)) {
+                    writeNode(gen, metrics, new Node(from_id, resultSet.getString(1), resultSet.getString(2)));
+                }
+                if (seenNodes.add(to_id)) {
+                    writeNode(gen, metrics, new Node(to_id, resultSet.getString(4), resultSet.getString(5)));
+                }
+                // The same pair is returned once per shared place when filtering by places
+                if (seenEdges.add(from_id + '\u0000' + to_id)) {
+                    gen.writeStartObject();
+                    gen.writeStringField("type", "edge");
+                    gen.writeStringField("from", from_id);
+                    gen.writeStringField("to", to_id);
+                    gen.writeEndObject();
+                }
+                if (++rows == FIRST_FLUSH_ROWS) {
+                    gen.flush();
+                }
+            }
+        }
+        catch (IOException e) {
+            // The client went away
+            throw e;
+        }
         catch (Throwable e) {
             e.printStackTrace();
+            gen.writeStartObject();
+            gen.writeStringField("type", "error");
+            gen.writeStringField("message", String.valueOf(e.getMessage()));
+            gen.writeEndObject();
         }
-        return res;
+        gen.writeRaw('\n');
+        gen.flush();
     }
-    
-    private String buildQuery(LorEngineRequest req) {
+
+    private static void writeNode(JsonGenerator gen, LorGraphMetrics metrics, Node n)
+            throws IOException {
+        if (metrics != null) {
+            metrics.decorate(n);
+        }
+        gen.writeStartObject();
+        gen.writeStringField("type", "node");
+        gen.writeStringField("id", n.getId());
+        gen.writeStringField("label", n.getLabel());
+        gen.writeStringField("group", n.getGroup());
+        if (n.getPageRank() != null) {
+            gen.writeNumberField("weightedDegree", n.getWeightedDegree());
+            gen.writeNumberField("pageRank", n.getPageRank());
+            gen.writeStringField("community", n.getCommunity());
+        }
+        gen.writeEndObject();
+    }
+
+    // The query text only depends on which filters are active, never on their values, so there
+    // are at most 16 distinct statements and Spanner can reuse their cached query plans.
+    private static final String[] QUERY_SHAPES = new String[16];
+
+    private static final int STRENGTH_FILTER = 1;
+    private static final int CHARACTERS_FILTER = 2;
+    private static final int KINDS_FILTER = 4;
+    private static final int PLACES_FILTER = 8;
+
+    static {
+        for (int shape = 0; shape < QUERY_SHAPES.length; shape++) {
+            QUERY_SHAPES[shape] = buildQueryShape(shape);
+        }
+    }
+
+    Statement buildQuery(LorEngineRequest req) {
+        int shape = 0;
+        if (req.getMinStrength() > MIN_STRENGTH || req.getMaxStrength() < MAX_STRENGTH) {
+            shape |= STRENGTH_FILTER;
+        }
+        if (req.getCharacters().length < TOTAL_CHARACTERS) {
+            shape |= CHARACTERS_FILTER;
+        }
+        if (req.getKinds().length < TOTAL_KINDS) {
+            shape |= KINDS_FILTER;
+        }
+        if (req.getPlaces().length < TOTAL_PLACES) {
+            shape |= PLACES_FILTER;
+        }
+
+        Statement.Builder builder = Statement.newBuilder(QUERY_SHAPES[shape]);
+        if ((shape & STRENGTH_FILTER) != 0) {
+            builder.bind("minStrength").to(req.getMinStrength());
+            builder.bind("maxStrength").to(req.getMaxStrength());
+        }
+        if ((shape & CHARACTERS_FILTER) != 0) {
+            builder.bind("characters").toStringArray(Arrays.asList(req.getCharacters()));
+        }
+        if ((shape & KINDS_FILTER) != 0) {
+            builder.bind("kinds").toStringArray(Arrays.asList(req.getKinds()));
+        }
+        if ((shape & PLACES_FILTER) != 0) {
+            builder.bind("places").toStringArray(Arrays.asList(req.getPlaces()));
+        }
+        return builder.build();
+    }
+
+    private static String buildQueryShape(int shape) {
         StringBuffer res = new StringBuffer();
         res.append("GRAPH LoRGraph \n");
         res.append("MATCH  (p1:Persons)-[ref:Reference]->(p2:Persons) \n");
         boolean isWhere = false;
         // REFERENCES
-        if(req.getMinStrength() > MIN_STRENGTH || req.getMaxStrength() < MAX_STRENGTH){
+        if((shape & STRENGTH_FILTER) != 0){
             isWhere = true;
-            res.append("WHERE ref.times BETWEEN " + req.getMinStrength()  + " and " + req.getMaxStrength()  + "\n");
+            res.append("WHERE ref.times BETWEEN @minStrength and @maxStrength \n");
         }
         // CHARACTERS
-        if(req.getCharacters().length < TOTAL_CHARACTERS){
-            StringBuffer sbP1 = new StringBuffer();
-            StringBuffer sbP2 = new StringBuffer();
-            if(!isWhere){
-                sbP1.append("WHERE ");
-                isWhere = true;
-            }
-            else{
-                sbP1.append("AND ");
-            }
-
-            sbP1.append("(p1.id IN (");
-            sbP2.append("OR p2.id IN (");
-            String characters[] = req.getCharacters();
-            for(int i = 0; i < characters.length; i++){
-                sbP1.append("'" + characters[i] + "'");
-                sbP2.append("'" + characters[i] + "'");
-                if(i < (characters.length-1)){
-                    sbP1.append(", ");
-                    sbP2.append(", ");
-                }
-            }
-            sbP1.append(")");
-            sbP2.append("))");
-            res.append(sbP1.toString() + " \n");
-            res.append(sbP2.toString() + " \n");
+        if((shape & CHARACTERS_FILTER) != 0){
+            res.append(isWhere ? "AND " : "WHERE ");
+            isWhere = true;
+            res.append("(p1.id IN UNNEST(@characters) \n");
+            res.append("OR p2.id IN UNNEST(@characters)) \n");
         }
         // KINDS
-        if(req.getKinds().length < TOTAL_KINDS){
-            StringBuffer sbP1 = new StringBuffer();
-            StringBuffer sbP2 = new StringBuffer();
-            if(!isWhere){
-                sbP1.append("WHERE ");
-                isWhere = true;
-            }
-            else{
-                sbP1.append("AND ");
-            }
-            sbP1.append(" p1.subtype IN (");
-            sbP2.append("AND p2.subtype IN (");
-            String kinds[] = req.getKinds();
-            for(int i = 0; i < kinds.length; i++){
-                sbP1.append("'" + kinds[i] + "'");
-                sbP2.append("'" + kinds[i] + "'");
-                if(i < (kinds.length-1)){
-                    sbP1.append(", ");
-                    sbP2.append(", ");
-                }
-            }
-            sbP1.append(")");
-            sbP2.append(")");
-            res.append(sbP1.toString() + " \n");
-            res.append(sbP2.toString() + " \n");
+        if((shape & KINDS_FILTER) != 0){
+            res.append(isWhere ? "AND " : "WHERE ");
+            isWhere = true;
+            res.append("p1.subtype IN UNNEST(@kinds) \n");
+            res.append("AND p2.subtype IN UNNEST(@kinds) \n");
         }
         // PLACES
-        if(req.getPlaces().length < TOTAL_PLACES){
+        if((shape & PLACES_FILTER) != 0){
             res.append("RETURN p1,p2 \n");
             res.append("NEXT \n");
             res.append("MATCH (p1:Persons)-[:PlacesPersons]->(place:Places) \n");
             res.append("MATCH (p2:Persons)-[:PlacesPersons]->(place:Places) \n");
-            res.append("WHERE place.id IN (");
-            String places[] = req.getPlaces();
-            for(int i = 0; i < places.length; i++){
-                res.append("'" + places[i] + "'");
-                if(i < (places.length-1)){
-                    res.append(", ");
-                }
-            }
-            res.append(") \n");
+            res.append("WHERE place.id IN UNNEST(@places) \n");
         }
         res.append("RETURN \n");
         res.append("p1.id as from_id, p1.label as from_label, p1.subtype as from_subtype,\n");
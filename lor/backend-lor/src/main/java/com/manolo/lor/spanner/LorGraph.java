@@ -0,0 +1,233 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable in-memory copy of LoRGraph. Person, kind and place ids are interned to ints, the
+ * Reference edges are stored as primitive adjacency arrays sorted by source, and the places of
+ * each person as a bitset, so a filter is evaluated with a single pass over the edges.
+ */
+public class LorGraph {
+
+    private final Map<String, Integer> personIndex;
+    private final Map<String, Integer> kindIndex;
+    private final Map<String, Integer> placeIndex;
+
+    private final String[] personIds;
+    private final String[] labels;
+    private final String[] subtypes;
+    // Index into kindIndex of each person's subtype, or -1
+    private final int[] kinds;
+    private final BitSet[] placesOfPerson;
+
+    // Outgoing Reference edges of person i are [edgeStart[i], edgeStart[i + 1])
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final int[] edgeTimes;
+
+    private final long loadedAt;
+
+    private LorGraph(Builder b) {
+        personIndex = b.personIndex;
+        kindIndex = b.kindIndex;
+        placeIndex = b.placeIndex;
+        int n = b.personIds.size();
+        personIds = b.personIds.toArray(new String[0]);
+        labels = b.labels.toArray(new String[0]);
+        subtypes = b.subtypes.toArray(new String[0]);
+        kinds = new int[n];
+        for (int i = 0; i < n; i++) {
+            Integer kind = subtypes[i] == null ? null : kindIndex.get(subtypes[i]);
+            kinds[i] = kind == null ? -1 : kind;
+        }
+        placesOfPerson = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            placesOfPerson[i] = b.placesOfPerson.get(i);
+        }
+
+        // Counting sort of the edges by source
+        int m = b.edgeSources.size();
+        edgeStart = new int[n + 1];
+        for (int i = 0; i < m; i++) {
+            edgeStart[b.edgeSources.get(i) + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            edgeStart[i + 1] += edgeStart[i];
+        }
+        edgeTarget = new int[m];
+        edgeTimes = new int[m];
+        int[] next = edgeStart.clone();
+        for (int i = 0; i < m; i++) {
+            int pos = next[b.edgeSources.get(i)]++;
+            edgeTarget[pos] = b.edgeTargets.get(i);
+            edgeTimes[pos] = b.edgeTimes.get(i);
+        }
+        loadedAt = System.currentTimeMillis();
+    }
+
+    public int getPersonCount() {
+        return personIds.length;
+    }
+
+    public int getEdgeCount() {
+        return edgeTarget.length;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    String getPersonId(int person) {
+        return personIds[person];
+    }
+
+    // Reference edges of person i are edgeTarget/edgeTimes[edgeStart[i] .. edgeStart[i + 1])
+    int[] getEdgeStart() {
+        return edgeStart;
+    }
+
+    int[] getEdgeTarget() {
+        return edgeTarget;
+    }
+
+    int[] getEdgeTimes() {
+        return edgeTimes;
+    }
+
+    /** Same semantics as the GQL query built by {@link LorEngineService#buildQuery}. */
+    public LorEngineResponse run(LorEngineRequest req) {
+        boolean strengthFilter = req.getMinStrength() > LorEngineService.MIN_STRENGTH
+            || req.getMaxStrength() < LorEngineService.MAX_STRENGTH;
+        BitSet characters = req.getCharacters().length < LorEngineService.TOTAL_CHARACTERS
+            ? toBits(req.getCharacters(), personIndex) : null;
+        BitSet selectedKinds = req.getKinds().length < LorEngineService.TOTAL_KINDS
+            ? toBits(req.getKinds(), kindIndex) : null;
+        BitSet places = req.getPlaces().length < LorEngineService.TOTAL_PLACES
+            ? toBits(req.getPlaces(), placeIndex) : null;
+
+        // Persons that can appear at either end of an edge, with the kind filter applied
+        BitSet candidates = new BitSet(personIds.length);
+        for (int p = 0; p < personIds.length; p++) {
+            if (selectedKinds == null || (kinds[p] >= 0 && selectedKinds.get(kinds[p]))) {
+                candidates.set(p);
+            }
+        }
+
+        LorEngineResponse res = new LorEngineResponse();
+        BitSet nodes = new BitSet(personIds.length);
+        for (int s = candidates.nextSetBit(0); s >= 0; s = candidates.nextSetBit(s + 1)) {
+            for (int e = edgeStart[s]; e < edgeStart[s + 1]; e++) {
+                int t = edgeTarget[e];
+                if (!candidates.get(t)) {
+                    continue;
+                }
+                if (strengthFilter
+                        && (edgeTimes[e] < req.getMinStrength() || edgeTimes[e] > req.getMaxStrength())) {
+                    continue;
+                }
+                if (characters != null && !characters.get(s) && !characters.get(t)) {
+                    continue;
+                }
+                if (places != null && !sharePlace(s, t, places)) {
+                    continue;
+                }
+                nodes.set(s);
+                nodes.set(t);
+                res.addEdge(new Edge(personIds[s], personIds[t]));
+            }
+        }
+        for (int p = nodes.nextSetBit(0); p >= 0; p = nodes.nextSetBit(p + 1)) {
+            res.addNode(new Node(personIds[p], labels[p], subtypes[p]));
+        }
+        return res;
+    }
+
+    private boolean sharePlace(int s, int t, BitSet places) {
+        BitSet common = (BitSet) placesOfPerson[s].clone();
+        common.and(placesOfPerson[t]);
+        return common.intersects(places);
+    }
+
+    private static BitSet toBits(String[] ids, Map<String, Integer> index) {
+        BitSet bits = new BitSet(index.size());
+        for (String id : ids) {
+            Integer i = index.get(id);
+            if (i != null) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    public static class Builder {
+
+        private final Map<String, Integer> personIndex = new HashMap<String, Integer>();
+        private final Map<String, Integer> kindIndex = new HashMap<String, Integer>();
+        private final Map<String, Integer> placeIndex = new HashMap<String, Integer>();
+
+        private final List<String> personIds = new ArrayList<String>();
+        private final List<String> labels = new ArrayList<String>();
+        private final List<String> subtypes = new ArrayList<String>();
+        private final List<BitSet> placesOfPerson = new ArrayList<BitSet>();
+
+        private final List<Integer> edgeSources = new ArrayList<Integer>();
+        private final List<Integer> edgeTargets = new ArrayList<Integer>();
+        private final List<Integer> edgeTimes = new ArrayList<Integer>();
+
+        public Builder addPerson(String id, String label, String subtype) {
+            if (personIndex.putIfAbsent(id, personIds.size()) == null) {
+                personIds.add(id);
+                labels.add(label);
+                subtypes.add(subtype);
+                placesOfPerson.add(new BitSet());
+                if (subtype != null) {
+                    kindIndex.putIfAbsent(subtype, kindIndex.size());
+                }
+            }
+            return this;
+        }
+
+        /** Edges whose ends are not persons are ignored, as they are not part of the graph. */
+        public Builder addReference(String source, String target, long times) {
+            Integer s = personIndex.get(source);
+            Integer t = personIndex.get(target);
+            if (s != null && t != null) {
+                edgeSources.add(s);
+                edgeTargets.add(t);
+                edgeTimes.add((int) times);
+            }
+            return this;
+        }
+
+        public Builder addPlacePerson(String place, String person) {
+            Integer p = personIndex.get(person);
+            if (p != null) {
+                placeIndex.putIfAbsent(place, placeIndex.size());
+                placesOfPerson.get(p).set(placeIndex.get(place));
+            }
+            return this;
+        }
+
+        public LorGraph build() {
+            return new LorGraph(this);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.KeySet;
+import com.google.cloud.spanner.ReadOnlyTransaction;
+import com.google.cloud.spanner.ResultSet;
+
+/**
+ * Keeps a {@link LorGraph} snapshot loaded from Spanner when lor.engine.mode is "memory". The
+ * graph is loaded at startup and reloaded every lor.graph.refresh-seconds; until the first load
+ * succeeds, or whenever the mode is "spanner", requests are answered by the GQL query instead.
+ * Every successful load publishes a {@link GraphLoadedEvent}.
+ */
+@Component
+public class LorGraphEngine {
+
+    @Autowired
+    LorResultCache cache;
+
+    @Autowired
+    ApplicationEventPublisher events;
+
+    private final boolean enabled;
+
+    private volatile LorGraph graph;
+
+    public LorGraphEngine(@Value("${lor.engine.mode:spanner}") String mode) {
+        this.enabled = "memory".equalsIgnoreCase(mode);
+    }
+
+    /** Returns the loaded graph, or null if it should not or cannot be used. */
+    public LorGraph getGraph() {
+        return enabled ? graph : null;
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${lor.graph.refresh-seconds:600}", timeUnit = TimeUnit.SECONDS)
+    public void refresh() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            graph = load(LorEngineService.getClient());
+            // Results cached from the previous snapshot may no longer be valid
+            cache.invalidate();
+            System.out.println("Loaded LoRGraph with " + graph.getPersonCount() + " persons and "
+                + graph.getEdgeCount() + " references in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            events.publishEvent(new GraphLoadedEvent(this));
+        }
+        catch (Throwable e) {
+            // Keep serving the previous snapshot, or the GQL query if there is none
+            e.printStackTrace();
+        }
+    }
+
+    /** Published on the refresh thread after a new snapshot has replaced the previous one. */
+    public static class GraphLoadedEvent extends ApplicationEvent {
+
+        GraphLoadedEvent(LorGraphEngine source) {
+            super(source);
+        }
+    }
+
+    // Reads the node and edge tables of LoRGraph at a single timestamp
+    static LorGraph load(DatabaseClient dbClient) {
+        LorGraph.Builder builder = new LorGraph.Builder();
+        try (ReadOnlyTransaction tx = dbClient.readOnlyTransaction()) {
+            try (ResultSet rs = tx.read("Persons", KeySet.all(), Arrays.asList("Id", "Label", "Subtype"))) {
+                while (rs.next()) {
+                    builder.addPerson(rs.getString(0), rs.isNull(1) ? null : rs.getString(1),
+                        rs.isNull(2) ? null : rs.getString(2));
+                }
+            }
+            try (ResultSet rs = tx.read("Reference", KeySet.all(), Arrays.asList("IdSource", "IdTarget", "Times"))) {
+                while (rs.next()) {
+                    builder.addReference(rs.getString(0), rs.getString(1), rs.isNull(2) ? 0 : rs.getLong(2));
+                }
+            }
+            try (ResultSet rs = tx.read("PlacesPersons", KeySet.all(), Arrays.asList("IdPlace", "IdPerson"))) {
+                while (rs.next()) {
+                    builder.addPlacePerson(rs.getString(0), rs.getString(1));
+                }
+            }
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,218 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Per-person metrics over the Reference edges, treated as undirected and weighted by Times:
+ * weighted degree, PageRank and a community label found by label propagation. Each iteration
+ * updates every person in parallel on a fork-join pool, reading only the previous iteration.
+ */
+public class LorGraphMetrics {
+
+    static final double DAMPING = 0.85;
+    static final int MAX_PAGE_RANK_ITERATIONS = 100;
+    static final double PAGE_RANK_TOLERANCE = 1e-9;
+    static final int MAX_LABEL_ITERATIONS = 30;
+
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+    private final String[] ids;
+    private final long[] weightedDegree;
+    private final double[] pageRank;
+    private final String[] community;
+    private final long computedAt;
+
+    private LorGraphMetrics(String[] ids, long[] weightedDegree, double[] pageRank, String[] community) {
+        this.ids = ids;
+        this.weightedDegree = weightedDegree;
+        this.pageRank = pageRank;
+        this.community = community;
+        for (int i = 0; i < ids.length; i++) {
+            index.put(ids[i], i);
+        }
+        this.computedAt = System.currentTimeMillis();
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public long getComputedAt() {
+        return computedAt;
+    }
+
+    /** Copies the metrics of each node that is part of the graph onto it. */
+    public void decorate(Iterable<Node> nodes) {
+        for (Node n : nodes) {
+            decorate(n);
+        }
+    }
+
+    /** Copies the metrics of a node onto it, if it is part of the graph. */
+    public void decorate(Node n) {
+        Integer i = index.get(n.getId());
+        if (i != null) {
+            n.setWeightedDegree(weightedDegree[i]);
+            n.setPageRank(pageRank[i]);
+            n.setCommunity(community[i]);
+        }
+    }
+
+    public static LorGraphMetrics compute(LorGraph graph, ForkJoinPool pool) {
+        int n = graph.getPersonCount();
+        String[] ids = new String[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = graph.getPersonId(i);
+        }
+
+        // Undirected adjacency: every Reference edge is listed at both of its ends
+        int[] start = graph.getEdgeStart();
+        int[] target = graph.getEdgeTarget();
+        int[] times = graph.getEdgeTimes();
+        int[] adjStart = new int[n + 1];
+        for (int s = 0; s < n; s++) {
+            for (int e = start[s]; e < start[s + 1]; e++) {
+                adjStart[s + 1]++;
+                adjStart[target[e] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            adjStart[i + 1] += adjStart[i];
+        }
+        int[] adj = new int[adjStart[n]];
+        int[] weight = new int[adjStart[n]];
+        int[] next = adjStart.clone();
+        for (int s = 0; s < n; s++) {
+            for (int e = start[s]; e < start[s + 1]; e++) {
+                int t = target[e];
+                adj[next[s]] = t;
+                weight[next[s]++] = times[e];
+                adj[next[t]] = s;
+                weight[next[t]++] = times[e];
+            }
+        }
+
+        long[] degree = new long[n];
+        run(pool, n, i -> {
+            long sum = 0;
+            for (int e = adjStart[i]; e < adjStart[i + 1]; e++) {
+                sum += weight[e];
+            }
+            degree[i] = sum;
+        });
+        return new LorGraphMetrics(ids, degree, pageRank(pool, n, adjStart, adj, weight, degree),
+            communities(pool, ids, adjStart, adj, weight));
+    }
+
+    // Weighted PageRank; persons without references spread their rank evenly
+    private static double[] pageRank(ForkJoinPool pool, int n, int[] adjStart, int[] adj,
+            int[] weight, long[] degree) {
+        double[] rank = new double[n];
+        Arrays.fill(rank, 1.0 / n);
+        for (int iteration = 0; iteration < MAX_PAGE_RANK_ITERATIONS; iteration++) {
+            double[] current = rank;
+            double dangling = 0;
+            for (int i = 0; i < n; i++) {
+                if (degree[i] == 0) {
+                    dangling += current[i];
+                }
+            }
+            double base = (1 - DAMPING) / n + DAMPING * dangling / n;
+            double[] updated = new double[n];
+            run(pool, n, i -> {
+                double sum = 0;
+                for (int e = adjStart[i]; e < adjStart[i + 1]; e++) {
+                    int j = adj[e];
+                    sum += current[j] * weight[e] / degree[j];
+                }
+                updated[i] = base + DAMPING * sum;
+            });
+            double delta = 0;
+            for (int i = 0; i < n; i++) {
+                delta += Math.abs(updated[i] - current[i]);
+            }
+            rank = updated;
+            if (delta < PAGE_RANK_TOLERANCE) {
+                break;
+            }
+        }
+        return rank;
+    }
+
+    // Weighted label propagation: each person takes the label with the largest total weight among
+    // its neighbours, ties going to the smallest label, until no label changes. A person also
+    // votes for its own label with the weight of its strongest reference, which stops the
+    // synchronous updates from swapping labels back and forth between two neighbours.
+    private static String[] communities(ForkJoinPool pool, String[] ids, int[] adjStart, int[] adj,
+            int[] weight) {
+        int n = ids.length;
+        int[] label = IntStream.range(0, n).toArray();
+        for (int iteration = 0; iteration < MAX_LABEL_ITERATIONS; iteration++) {
+            int[] current = label;
+            int[] updated = new int[n];
+            run(pool, n, i -> {
+                Map<Integer, Long> votes = new HashMap<Integer, Long>();
+                long strongest = 0;
+                for (int e = adjStart[i]; e < adjStart[i + 1]; e++) {
+                    votes.merge(current[adj[e]], (long) weight[e], Long::sum);
+                    strongest = Math.max(strongest, weight[e]);
+                }
+                votes.merge(current[i], strongest, Long::sum);
+                int best = current[i];
+                long bestVotes = votes.getOrDefault(best, 0L);
+                for (Map.Entry<Integer, Long> vote : votes.entrySet()) {
+                    if (vote.getValue() > bestVotes
+                            || (vote.getValue() == bestVotes && vote.getKey() < best)) {
+                        best = vote.getKey();
+                        bestVotes = vote.getValue();
+                    }
+                }
+                updated[i] = best;
+            });
+            label = updated;
+            if (Arrays.equals(current, updated)) {
+                break;
+            }
+        }
+        String[] community = new String[n];
+        for (int i = 0; i < n; i++) {
+            community[i] = ids[label[i]];
+        }
+        return community;
+    }
+
+    private interface PersonTask {
+        void run(int person);
+    }
+
+    private static void run(ForkJoinPool pool, int n, PersonTask task) {
+        try {
+            pool.submit(() -> IntStream.range(0, n).parallel().forEach(task::run)).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Recomputes {@link LorGraphMetrics} in the background every lor.metrics.refresh-seconds, from
+ * the in-memory graph when it is loaded or from a fresh read of the graph tables otherwise, and
+ * attaches the latest results to the nodes of every response. Each reload of the in-memory graph
+ * triggers a recomputation as well, so the metrics never lag behind the graph being served.
+ */
+@Component
+public class LorMetricsJob implements ApplicationListener<LorGraphEngine.GraphLoadedEvent> {
+
+    @Autowired
+    LorGraphEngine graphEngine;
+
+    @Autowired
+    LorResultCache cache;
+
+    private final boolean enabled;
+    private final ForkJoinPool pool;
+
+    private volatile LorGraphMetrics metrics;
+
+    public LorMetricsJob(@Value("${lor.metrics.enabled:true}") boolean enabled,
+            @Value("${lor.metrics.parallelism:0}") int parallelism) {
+        this.enabled = enabled;
+        this.pool = parallelism > 0 ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool();
+    }
+
+    public LorGraphMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Adds the latest metrics to the nodes of a response that has not been shared yet. */
+    public LorEngineResponse decorate(LorEngineResponse res) {
+        LorGraphMetrics current = metrics;
+        if (current != null) {
+            current.decorate(res.getNodes());
+        }
+        return res;
+    }
+
+    @Override
+    public void onApplicationEvent(LorGraphEngine.GraphLoadedEvent event) {
+        refresh();
+    }
+
+    // Synchronized as the schedule and a graph reload can both trigger it
+    @Scheduled(initialDelayString = "${lor.metrics.initial-delay-seconds:5}", fixedDelayString = "${lor.metrics.refresh-seconds:3600}", timeUnit = TimeUnit.SECONDS)
+    public synchronized void refresh() {
+        if (!enabled || !LorEngineService.isConfigured()) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            LorGraph graph = graphEngine.getGraph();
+            if (graph == null) {
+                graph = LorGraphEngine.load(LorEngineService.getClient());
+            }
+            metrics = LorGraphMetrics.compute(graph, pool);
+            // Cached responses were built without the new metrics
+            cache.invalidate();
+            System.out.println("Computed graph metrics for " + metrics.size() + " persons in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        catch (Throwable e) {
+            // Keep the previous metrics until the next run
+            e.printStackTrace();
+        }
+    }
+}
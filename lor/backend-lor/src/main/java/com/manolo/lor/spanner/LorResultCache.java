@@ -0,0 +1,134 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded LRU cache of graph query results keyed by {@link LorEngineRequest#cacheKey()}. The
+ * graph is small and rarely changes, so the UI keeps asking for the same handful of filter sets.
+ * Entries expire after a configurable TTL and can be dropped at once through the admin endpoint
+ * after the data has been reloaded. Cached responses are shared and must not be modified.
+ */
+@Component
+public class LorResultCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static class Entry {
+        final LorEngineResponse response;
+        final long expiresAt;
+
+        Entry(LorEngineResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public LorResultCache(@Value("${lor.cache.max-entries:1000}") int maxEntries,
+            @Value("${lor.cache.ttl-seconds:3600}") long ttlSeconds) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > LorResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0 && ttlNanos > 0;
+    }
+
+    /** Returns the cached response for the key, or null if it is missing or has expired. */
+    public LorEngineResponse get(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits.incrementAndGet();
+                return entry.response;
+            }
+            if (entry != null) {
+                entries.remove(key);
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, LorEngineResponse response) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new Entry(response, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    /** Drops every entry, e.g. after the graph tables have been reloaded. Returns how many. */
+    public int invalidate() {
+        synchronized (entries) {
+            int size = entries.size();
+            entries.clear();
+            invalidations.incrementAndGet();
+            return size;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long h = hits.get();
+        long m = misses.get();
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", isEnabled());
+        stats.put("size", size());
+        stats.put("maxEntries", maxEntries);
+        stats.put("ttlSeconds", TimeUnit.NANOSECONDS.toSeconds(ttlNanos));
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m == 0 ? 0.0 : (double) h / (h + m));
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+}
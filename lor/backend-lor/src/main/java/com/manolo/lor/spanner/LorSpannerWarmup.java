@@ -0,0 +1,111 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.support.ServletRequestHandledEvent;
+
+import com.google.cloud.spanner.ResultSet;
+
+/**
+ * Creates the Spanner client, fills its session pool and runs the unfiltered graph query while
+ * the application starts. It runs in a lifecycle phase before the web server, so the port only
+ * opens, and the Cloud Run startup probe only passes, once the first request can be served
+ * without paying for client creation. Skipped when INSTANCE_ID or DATABASE_ID is not set.
+ */
+@Component
+public class LorSpannerWarmup implements SmartLifecycle, ApplicationListener<ServletRequestHandledEvent> {
+
+    @Autowired
+    LorEngineService engine;
+
+    private final boolean enabled;
+
+    private final AtomicBoolean firstResponse = new AtomicBoolean();
+    private volatile boolean running;
+
+    public LorSpannerWarmup(@Value("${lor.spanner.warmup:true}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        if (!enabled || !LorEngineService.isConfigured()) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            LorEngineService.getClient();
+            long clientMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            // Selections as long as the full lists apply no filter, like the UI's initial view
+            LorEngineRequest all = new LorEngineRequest();
+            all.setCharacters(new String[LorEngineService.TOTAL_CHARACTERS]);
+            all.setKinds(new String[LorEngineService.TOTAL_KINDS]);
+            all.setPlaces(new String[LorEngineService.TOTAL_PLACES]);
+            all.setMinStrength(LorEngineService.MIN_STRENGTH);
+            all.setMaxStrength(LorEngineService.MAX_STRENGTH);
+            try (ResultSet resultSet = LorEngineService.getClient().singleUse().executeQuery(engine.buildQuery(all))) {
+                while (resultSet.next()) {
+                }
+            }
+            long queryMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Spanner warm-up: client and sessions " + clientMillis
+                + " ms, graph query " + queryMillis + " ms, " + sinceJvmStart() + " ms since JVM start");
+        }
+        catch (Throwable e) {
+            // Start anyway, the first request will retry creating the client
+            e.printStackTrace();
+        }
+    }
+
+    // Cold start as seen by a user: time from JVM start until the first graph response is sent
+    @Override
+    public void onApplicationEvent(ServletRequestHandledEvent event) {
+        if (event.getRequestUrl().startsWith("/api/run") && firstResponse.compareAndSet(false, true)) {
+            System.out.println("First response to " + event.getRequestUrl() + " took "
+                + event.getProcessingTimeMillis() + " ms, " + sinceJvmStart() + " ms since JVM start");
+        }
+    }
+
+    private static long sinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    // Before the embedded web server, which starts in one of the last phases
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+}
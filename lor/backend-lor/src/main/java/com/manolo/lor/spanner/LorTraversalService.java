@@ -0,0 +1,217 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.stereotype.Service;
+
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+
+/**
+ * Multi-hop exploration of LoRGraph by iterative frontier expansion: each hop is one
+ * parameterized query for the Reference edges touching the current frontier, in either
+ * direction, so only the explored part of the graph leaves Spanner. The query returns at most
+ * fanOut of the strongest edges of each frontier node, which keeps the result bounded on dense
+ * graphs without sending every edge of a hub to the client.
+ */
+@Service
+public class LorTraversalService {
+
+    public static final int MAX_HOPS = 4;
+    public static final int MAX_FAN_OUT = 100;
+    // Stop expanding once this many nodes have been reached, which also bounds every frontier
+    public static final int MAX_NODES = 1000;
+
+    // Reads the tables behind the Persons nodes and Reference edges of LoRGraph, as the per node
+    // LIMIT needs a correlated subquery for each frontier node
+    static final String HOP_QUERY = "SELECT frontier_id, \n"
+        + "e.from_id, e.from_label, e.from_subtype, e.to_id, e.to_label, e.to_subtype, e.times \n"
+        + "FROM UNNEST(@frontier) AS frontier_id \n"
+        + "CROSS JOIN UNNEST(ARRAY( \n"
+        + "  SELECT AS STRUCT \n"
+        + "  p1.Id as from_id, p1.Label as from_label, p1.Subtype as from_subtype,\n"
+        + "  p2.Id as to_id, p2.Label as to_label, p2.Subtype as to_subtype,\n"
+        + "  ref.Times as times \n"
+        + "  FROM Reference AS ref \n"
+        + "  JOIN Persons AS p1 ON p1.Id = ref.IdSource \n"
+        + "  JOIN Persons AS p2 ON p2.Id = ref.IdTarget \n"
+        + "  WHERE (ref.IdSource = frontier_id OR ref.IdTarget = frontier_id) \n"
+        + "  AND ref.Times >= @minStrength \n"
+        + "  ORDER BY ref.Times DESC \n"
+        + "  LIMIT @fanOut)) AS e \n"
+        + "ORDER BY e.times DESC";
+
+    /** Nodes and edges reachable from id in at most hops steps, ignoring edge direction. */
+    public LorEngineResponse neighborhood(String id, int hops, int fanOut, int minStrength) {
+        checkLimits(hops, fanOut);
+        Traversal traversal = new Traversal();
+        Set<String> frontier = new HashSet<String>();
+        frontier.add(id);
+        Set<String> visited = new HashSet<String>(frontier);
+        for (int hop = 0; hop < hops && !frontier.isEmpty() && !traversal.isFull(); hop++) {
+            Set<String> next = new HashSet<String>();
+            for (Struct row : traversal.expand(frontier, fanOut, minStrength)) {
+                traversal.add(row);
+                for (String neighbor : new String[] {row.getString("from_id"), row.getString("to_id")}) {
+                    if (visited.size() < MAX_NODES && visited.add(neighbor)) {
+                        next.add(neighbor);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return traversal.toResponse();
+    }
+
+    /**
+     * A shortest path from one character to another, ignoring edge direction, found by breadth
+     * first search within the hop and fan-out limits. The search stops once it has reached
+     * MAX_NODES nodes, so the response is empty if there is no path among them.
+     */
+    public LorEngineResponse shortestPath(String from, String to, int maxHops, int fanOut, int minStrength) {
+        checkLimits(maxHops, fanOut);
+        Traversal traversal = new Traversal();
+        // Edge through which each node was first reached
+        Map<String, Struct> parent = new HashMap<String, Struct>();
+        Set<String> frontier = new HashSet<String>();
+        frontier.add(from);
+        Set<String> visited = new HashSet<String>(frontier);
+        boolean found = from.equals(to);
+        for (int hop = 0; hop < maxHops && !found && !frontier.isEmpty(); hop++) {
+            Set<String> next = new HashSet<String>();
+            for (Struct row : traversal.expand(frontier, fanOut, minStrength)) {
+                String source = row.getString("from_id");
+                String target = row.getString("to_id");
+                String neighbor = row.getString("frontier_id").equals(source) ? target : source;
+                if (visited.size() < MAX_NODES && visited.add(neighbor)) {
+                    parent.put(neighbor, row);
+                    next.add(neighbor);
+                    found |= neighbor.equals(to);
+                }
+            }
+            frontier = next;
+        }
+
+        Traversal path = new Traversal();
+        path.queries = traversal.queries;
+        if (found) {
+            LinkedList<Struct> edges = new LinkedList<Struct>();
+            for (String node = to; parent.containsKey(node); ) {
+                Struct row = parent.get(node);
+                edges.addFirst(row);
+                node = node.equals(row.getString("to_id")) ? row.getString("from_id") : row.getString("to_id");
+            }
+            for (Struct row : edges) {
+                path.add(row);
+            }
+        }
+        return path.toResponse();
+    }
+
+    private static void checkLimits(int hops, int fanOut) {
+        if (hops < 1 || hops > MAX_HOPS) {
+            throw new IllegalArgumentException("hops must be between 1 and " + MAX_HOPS);
+        }
+        if (fanOut < 1 || fanOut > MAX_FAN_OUT) {
+            throw new IllegalArgumentException("fanOut must be between 1 and " + MAX_FAN_OUT);
+        }
+    }
+
+    /**
+     * Returns up to fanOut of the strongest Reference edges of each frontier node, strongest
+     * first, each with the frontier_id it was read for. An edge between two frontier nodes is
+     * returned once for each of them.
+     */
+    List<Struct> queryHop(Set<String> frontier, int fanOut, int minStrength) {
+        Statement statement = Statement.newBuilder(HOP_QUERY)
+            .bind("frontier").toStringArray(frontier)
+            .bind("fanOut").to(fanOut)
+            .bind("minStrength").to(minStrength)
+            .build();
+        List<Struct> rows = new ArrayList<Struct>();
+        try (ResultSet resultSet = LorEngineService.getClient().singleUse().executeQuery(statement)) {
+            while (resultSet.next()) {
+                rows.add(resultSet.getCurrentRowAsStruct());
+            }
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("Spanner client is not available", e);
+        }
+        return rows;
+    }
+
+    // Nodes and edges collected so far, and the per-hop queries that produced them
+    private class Traversal {
+
+        private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+        private final Map<String, Edge> edges = new LinkedHashMap<String, Edge>();
+        private List<String> queries = new ArrayList<String>();
+
+        // Edges of one hop; the query already limits them to fanOut per frontier node, this only
+        // guards against it returning more
+        List<Struct> expand(Set<String> frontier, int fanOut, int minStrength) {
+            List<Struct> rows = queryHop(frontier, fanOut, minStrength);
+            queries.add("-- hop " + (queries.size() + 1) + ": frontier " + frontier.size()
+                + " nodes, " + rows.size() + " edges");
+            Map<String, Integer> taken = new HashMap<String, Integer>();
+            List<Struct> kept = new ArrayList<Struct>();
+            for (Struct row : rows) {
+                int count = taken.merge(row.getString("frontier_id"), 1, Integer::sum);
+                if (count <= fanOut) {
+                    kept.add(row);
+                }
+            }
+            return kept;
+        }
+
+        void add(Struct row) {
+            if (isFull()) {
+                return;
+            }
+            String source = row.getString("from_id");
+            String target = row.getString("to_id");
+            nodes.putIfAbsent(source, new Node(source, row.getString("from_label"), row.getString("from_subtype")));
+            nodes.putIfAbsent(target, new Node(target, row.getString("to_label"), row.getString("to_subtype")));
+            edges.putIfAbsent(source + '\u0000' + target, new Edge(source, target));
+        }
+
+        boolean isFull() {
+            return nodes.size() >= MAX_NODES;
+        }
+
+        LorEngineResponse toResponse() {
+            LorEngineResponse res = new LorEngineResponse();
+            res.setQuery(HOP_QUERY + "\n" + String.join("\n", queries));
+            for (Node n : nodes.values())
+                res.addNode(n);
+            for (Edge e : edges.values())
+                res.addEdge(e);
+            return res;
+        }
+    }
+}
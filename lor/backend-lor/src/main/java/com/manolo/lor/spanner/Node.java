@@ -14,11 +14,21 @@
 
 package com.manolo.lor.spanner;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 public class Node {
     
     private String id;
     private String label;
     private String group;
+
+    // Graph metrics, only present once LorMetricsJob has computed them
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long weightedDegree;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Double pageRank;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String community;
     
     public Node() {
     }
@@ -47,6 +57,24 @@ public class Node {
     public void setGroup(String group) {
         this.group = group;
     }
+    public Long getWeightedDegree() {
+        return weightedDegree;
+    }
+    public void setWeightedDegree(Long weightedDegree) {
+        this.weightedDegree = weightedDegree;
+    }
+    public Double getPageRank() {
+        return pageRank;
+    }
+    public void setPageRank(Double pageRank) {
+        this.pageRank = pageRank;
+    }
+    public String getCommunity() {
+        return community;
+    }
+    public void setCommunity(String community) {
+        this.community = community;
+    }
 
     @Override
     public int hashCode() {
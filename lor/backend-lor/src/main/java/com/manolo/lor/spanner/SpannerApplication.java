@@ -16,8 +16,10 @@ package com.manolo.lor.spanner;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class SpannerApplication {
 
 	public static void main(String[] args) {
@@ -0,0 +1,124 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+@WebMvcTest(LorEngineController.class)
+class LorCompactResponseTests {
+
+	private static final String PAYLOAD = "{\"kinds\":[],\"characters\":[],\"places\":[],"
+			+ "\"minStrenght\":1,\"maxStrenght\":533}";
+
+	@Autowired
+	MockMvc mvc;
+
+	@MockBean
+	LorEngineService engine;
+
+	@MockBean
+	LorResultCache cache;
+
+	@MockBean
+	LorTraversalService traversal;
+
+	@MockBean
+	LorMetricsJob metricsJob;
+
+	// Every character referencing every other one, the worst case for repeated ids
+	static LorEngineResponse dense() {
+		LorEngineResponse res = new LorEngineResponse();
+		res.setQuery("GRAPH LoRGraph");
+		for (int i = 0; i < LorGraphFixture.CHARACTERS.length; i++) {
+			String id = LorGraphFixture.CHARACTERS[i];
+			res.addNode(new Node(id, "Label of " + id, LorGraphFixture.KINDS[i % 8]));
+			for (String other : LorGraphFixture.CHARACTERS) {
+				if (!other.equals(id)) {
+					res.addEdge(new Edge(id, other));
+				}
+			}
+		}
+		return res;
+	}
+
+	@Test
+	void edgesAreIndexPairs() {
+		LorEngineResponse res = new LorEngineResponse();
+		res.addNode(new Node("frod", "Frodo", "hobbit"));
+		res.addNode(new Node("sams", "Sam", "hobbit"));
+		res.addEdge(new Edge("sams", "frod"));
+		LorCompactResponse compact = LorCompactResponse.of(res);
+		assertArrayEquals(new String[] {"frod", "sams"}, compact.getIds());
+		assertArrayEquals(new int[] {1, 0}, compact.getEdges());
+	}
+
+	@Test
+	void metricsAreParallelArrays() {
+		LorEngineResponse res = new LorEngineResponse();
+		res.addNode(new Node("frod", "Frodo", "hobbit"));
+		Node sams = new Node("sams", "Sam", "hobbit");
+		sams.setWeightedDegree(105L);
+		sams.setPageRank(0.25);
+		sams.setCommunity("frod");
+		res.addNode(sams);
+		LorCompactResponse compact = LorCompactResponse.of(res);
+		assertArrayEquals(new Long[] {null, 105L}, compact.getWeightedDegrees());
+		assertArrayEquals(new Double[] {null, 0.25}, compact.getPageRanks());
+		assertArrayEquals(new String[] {null, "frod"}, compact.getCommunities());
+
+		assertNull(LorCompactResponse.of(dense()).getPageRanks());
+	}
+
+	// Encoding speed is measured by LorEngineBenchmarks.serializeCompactResponse
+	@Test
+	void compactIsSmaller() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		LorEngineResponse res = dense();
+		byte[] json = mapper.writeValueAsBytes(res);
+		byte[] compact = mapper.writeValueAsBytes(LorCompactResponse.of(res));
+
+		assertTrue(compact.length * 3 < json.length);
+	}
+
+	@Test
+	void acceptHeaderSelectsEncoding() throws Exception {
+		when(engine.run(any())).thenReturn(dense());
+		mvc.perform(post("/api/run").contentType(MediaType.APPLICATION_JSON).content(PAYLOAD)
+						.accept(LorCompactResponse.MEDIA_TYPE))
+				.andExpect(content().contentTypeCompatibleWith(LorCompactResponse.MEDIA_TYPE))
+				.andExpect(jsonPath("$.edges[0]").value(0))
+				.andExpect(jsonPath("$.ids[1]").value("sams"));
+		mvc.perform(post("/api/run").contentType(MediaType.APPLICATION_JSON).content(PAYLOAD)
+						.accept(MediaType.APPLICATION_JSON))
+				.andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+				.andExpect(jsonPath("$.edges[0].from").value("frod"));
+	}
+}
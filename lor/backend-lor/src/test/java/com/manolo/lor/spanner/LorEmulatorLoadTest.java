@@ -0,0 +1,89 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.spanner.DatabaseId;
+import com.google.cloud.spanner.Spanner;
+import com.google.cloud.spanner.SpannerOptions;
+
+/**
+ * End-to-end load test of /api/run against the Spanner emulator, on a synthetic LoRGraph created
+ * by {@link LorGraphFixture} before the application starts. Needs SPANNER_EMULATOR_HOST,
+ * GOOGLE_CLOUD_PROJECT, INSTANCE_ID and DATABASE_ID; the instance is created if missing and the
+ * database is recreated on every run. The result cache is disabled so every request runs a query.
+ */
+@EnabledIfEnvironmentVariable(named = "SPANNER_EMULATOR_HOST", matches = ".+")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = {"lor.cache.max-entries=0", "lor.metrics.enabled=false"})
+class LorEmulatorLoadTest {
+
+	private static final int[] CONCURRENCY = {1, 8, 32};
+	private static final int REQUESTS_PER_CLIENT = Integer.getInteger("lor.load.requests", 20);
+
+	@LocalServerPort
+	int port;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@BeforeAll
+	static void createGraph() throws Exception {
+		String project = SpannerOptions.getDefaultProjectId();
+		String instance = System.getenv("INSTANCE_ID");
+		String database = System.getenv("DATABASE_ID");
+		Spanner spanner = SpannerOptions.newBuilder().setProjectId(project).build().getService();
+		try {
+			long start = System.nanoTime();
+			LorGraphFixture.create(spanner, project, instance, database);
+			LorGraphFixture.seed(spanner.getDatabaseClient(DatabaseId.of(project, instance, database)));
+			System.out.println("Seeded " + LorGraphFixture.PERSONS + " persons in "
+					+ (System.nanoTime() - start) / 1_000_000 + " ms");
+		} finally {
+			spanner.close();
+		}
+	}
+
+	@Test
+	void run() throws Exception {
+		for (int concurrency : CONCURRENCY) {
+			long[] latencies = LorLoadDriver.drive("http://localhost:" + port + "/api/run", concurrency,
+					REQUESTS_PER_CLIENT, this::payload);
+			assertTrue(latencies[latencies.length - 1] < Long.MAX_VALUE, "some requests failed");
+		}
+	}
+
+	private String payload(Random random) throws Exception {
+		LorEngineRequest req = LorGraphFixture.randomRequest(random);
+		Map<String, Object> payload = new LinkedHashMap<>();
+		payload.put("characters", req.getCharacters());
+		payload.put("kinds", req.getKinds());
+		payload.put("places", req.getPlaces());
+		payload.put("minStrenght", req.getMinStrength());
+		payload.put("maxStrenght", req.getMaxStrength());
+		return mapper.writeValueAsString(payload);
+	}
+}
@@ -0,0 +1,127 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+
+/**
+ * Microbenchmarks for the CPU side of /api/run: building the parameterized statement, turning
+ * result rows into deduplicated nodes and edges, and serializing the response. Run with
+ * mvn -Pbenchmark test-compile exec:exec.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LorEngineBenchmarks {
+
+	private final LorEngineService engine = new LorEngineService();
+	private final List<LorEngineRequest> requests = new ArrayList<LorEngineRequest>();
+	private int next;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		for (int i = 0; i < 256; i++) {
+			requests.add(LorGraphFixture.randomRequest(random).canonical());
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Rows {
+
+		// Rows returned by the graph query; each edge appears this many times, as it does once
+		// per shared place when filtering by places
+		@Param({"1000", "10000"})
+		int rows;
+
+		@Param({"1", "3"})
+		int duplicates;
+
+		final ObjectMapper mapper = new ObjectMapper();
+		final List<Struct> resultRows = new ArrayList<Struct>();
+		LorEngineResponse response;
+
+		@Setup
+		public void setup() {
+			Random random = new Random(42);
+			int persons = (int) Math.sqrt(rows) * 2;
+			for (int i = 0; i < rows / duplicates; i++) {
+				Struct row = Struct.newBuilder()
+						.set("from_id").to("p" + random.nextInt(persons))
+						.set("from_label").to("Person")
+						.set("from_subtype").to("hobbit")
+						.set("to_id").to("p" + random.nextInt(persons))
+						.set("to_label").to("Person")
+						.set("to_subtype").to("men")
+						.build();
+				for (int d = 0; d < duplicates; d++) {
+					resultRows.add(row);
+				}
+			}
+			response = assemble();
+		}
+
+		LorEngineResponse assemble() {
+			LorEngineService.GraphCollector collector = new LorEngineService.GraphCollector();
+			for (Struct row : resultRows) {
+				collector.add(row);
+			}
+			return collector.toResponse(Statement.of("GRAPH LoRGraph"));
+		}
+	}
+
+	@Benchmark
+	public Statement buildQuery() {
+		next = (next + 1) & 255;
+		return engine.buildQuery(requests.get(next));
+	}
+
+	@Benchmark
+	public LorEngineResponse assembleResponse(Rows rows) {
+		return rows.assemble();
+	}
+
+	@Benchmark
+	public byte[] serializeResponse(Rows rows) throws Exception {
+		return rows.mapper.writeValueAsBytes(rows.response);
+	}
+
+	@Benchmark
+	public byte[] serializeCompactResponse(Rows rows) throws Exception {
+		return rows.mapper.writeValueAsBytes(LorCompactResponse.of(rows.response));
+	}
+}
@@ -0,0 +1,71 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+@WebMvcTest(LorEngineController.class)
+class LorEngineControllerTests {
+
+	@Autowired
+	MockMvc mvc;
+
+	@MockBean
+	LorEngineService engine;
+
+	@MockBean
+	LorResultCache cache;
+
+	@MockBean
+	LorTraversalService traversal;
+
+	@MockBean
+	LorMetricsJob metricsJob;
+
+	@Test
+	void cacheInvalidationIsOffByDefault() throws Exception {
+		mvc.perform(delete("/api/admin/cache")).andExpect(status().isNotFound());
+		verify(cache, never()).invalidate();
+	}
+
+	@Nested
+	@TestPropertySource(properties = "lor.cache.invalidation-enabled=true")
+	class WhenEnabled {
+
+		// Injected from this class's own context, the outer fields belong to the default one
+		@Autowired
+		MockMvc mvc;
+
+		@Autowired
+		LorResultCache cache;
+
+		@Test
+		void invalidatesCache() throws Exception {
+			mvc.perform(delete("/api/admin/cache")).andExpect(status().isOk());
+			verify(cache).invalidate();
+		}
+	}
+}
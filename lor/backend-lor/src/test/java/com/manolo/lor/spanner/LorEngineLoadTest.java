@@ -0,0 +1,74 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Drives /api/run and /api/run/async with an increasing number of concurrent clients against a
+ * Tomcat limited to a few request threads, and reports p99 latency, throughput and the highest
+ * concurrency that stays within the latency budget. The result cache is disabled so every request
+ * reaches Spanner. Only runs when INSTANCE_ID and DATABASE_ID point at a loaded LoR database.
+ */
+@EnabledIfEnvironmentVariable(named = "INSTANCE_ID", matches = ".+")
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = {"server.tomcat.threads.max=8", "lor.cache.max-entries=0"})
+class LorEngineLoadTest {
+
+	private static final int[] CONCURRENCY = {8, 32, 128, 256};
+	private static final int REQUESTS_PER_CLIENT = 10;
+	private static final long LATENCY_BUDGET_MILLIS = 1000;
+
+	@LocalServerPort
+	int port;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	void blockingVersusAsync() throws Exception {
+		for (String path : new String[] {"/api/run", "/api/run/async"}) {
+			int maxConcurrency = 0;
+			for (int concurrency : CONCURRENCY) {
+				long[] latencies = LorLoadDriver.drive("http://localhost:" + port + path, concurrency,
+						REQUESTS_PER_CLIENT, this::payload);
+				if (LorGraphFixture.p99(latencies) <= LATENCY_BUDGET_MILLIS * 1_000_000) {
+					maxConcurrency = concurrency;
+				}
+			}
+			System.out.println(path + ": max concurrency within " + LATENCY_BUDGET_MILLIS
+					+ " ms p99: " + maxConcurrency);
+		}
+	}
+
+	private String payload(Random random) throws Exception {
+		LorEngineRequest req = LorGraphFixture.randomRequest(random);
+		Map<String, Object> payload = new LinkedHashMap<>();
+		payload.put("characters", req.getCharacters());
+		payload.put("kinds", req.getKinds());
+		payload.put("places", req.getPlaces());
+		payload.put("minStrenght", req.getMinStrength());
+		payload.put("maxStrenght", req.getMaxStrength());
+		return mapper.writeValueAsString(payload);
+	}
+}
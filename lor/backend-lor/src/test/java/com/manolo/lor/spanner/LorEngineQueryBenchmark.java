@@ -0,0 +1,109 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ResultSet;
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Type;
+import com.google.cloud.spanner.Value;
+
+/**
+ * Compares end-to-end latency of the parameterized graph queries against the same queries with
+ * the filter values spliced into the text, which is how they used to be built, and against the
+ * in-memory graph. Only runs when INSTANCE_ID and DATABASE_ID point at a loaded LoR database.
+ */
+@EnabledIfEnvironmentVariable(named = "INSTANCE_ID", matches = ".+")
+class LorEngineQueryBenchmark {
+
+	private static final int ITERATIONS = 200;
+
+	@Test
+	void literalVersusParameterizedQueries() throws Throwable {
+		LorEngineService engine = new LorEngineService();
+		DatabaseClient client = LorEngineService.getClient();
+		Random random = new Random(42);
+
+		long[] literal = new long[ITERATIONS];
+		long[] parameterized = new long[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			Statement statement = engine.buildQuery(LorGraphFixture.randomRequest(random));
+			// Alternate the order so that neither variant consistently benefits from a warm cache
+			if (i % 2 == 0) {
+				literal[i] = execute(client, inline(statement));
+				parameterized[i] = execute(client, statement);
+			} else {
+				parameterized[i] = execute(client, statement);
+				literal[i] = execute(client, inline(statement));
+			}
+		}
+		System.out.println("Literal queries:       " + LorGraphFixture.summary(literal));
+		System.out.println("Parameterized queries: " + LorGraphFixture.summary(parameterized));
+	}
+
+	@Test
+	void inMemoryVersusGqlQueries() throws Throwable {
+		LorEngineService engine = new LorEngineService();
+		DatabaseClient client = LorEngineService.getClient();
+		LorGraph graph = LorGraphEngine.load(client);
+		Random random = new Random(42);
+
+		long[] gql = new long[ITERATIONS];
+		long[] memory = new long[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			LorEngineRequest req = LorGraphFixture.randomRequest(random).canonical();
+			gql[i] = execute(client, engine.buildQuery(req));
+			long start = System.nanoTime();
+			graph.run(req);
+			memory[i] = System.nanoTime() - start;
+		}
+		System.out.println("GQL queries:       " + LorGraphFixture.summary(gql));
+		System.out.println("In-memory graph:   " + LorGraphFixture.summary(memory));
+	}
+
+	// Splices the bound values into the query text so every request becomes a distinct statement
+	static Statement inline(Statement statement) {
+		String sql = statement.getSql();
+		for (Map.Entry<String, Value> param : statement.getParameters().entrySet()) {
+			Value value = param.getValue();
+			String literal;
+			if (value.getType().getCode() == Type.Code.ARRAY) {
+				literal = value.getStringArray().stream()
+						.map(s -> "'" + s + "'")
+						.collect(Collectors.joining(", ", "[", "]"));
+			} else {
+				literal = String.valueOf(value.getInt64());
+			}
+			sql = sql.replace("@" + param.getKey(), literal);
+		}
+		return Statement.of(sql);
+	}
+
+	private static long execute(DatabaseClient client, Statement statement) {
+		long start = System.nanoTime();
+		try (ResultSet resultSet = client.singleUse().executeQuery(statement)) {
+			while (resultSet.next()) {
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,201 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.cloud.spanner.DatabaseAdminClient;
+import com.google.cloud.spanner.DatabaseClient;
+import com.google.cloud.spanner.ErrorCode;
+import com.google.cloud.spanner.InstanceAdminClient;
+import com.google.cloud.spanner.InstanceConfigId;
+import com.google.cloud.spanner.InstanceId;
+import com.google.cloud.spanner.InstanceInfo;
+import com.google.cloud.spanner.Mutation;
+import com.google.cloud.spanner.Spanner;
+import com.google.cloud.spanner.SpannerException;
+
+/**
+ * Creates the LoR schema and property graph (the same DDL as infra-lor and the README) and
+ * fills it with a synthetic graph. The first persons and places reuse the ids of the UI, so the
+ * requests of {@link #randomRequest} select parts of it; the size is set with the
+ * lor.fixture.persons, lor.fixture.references and lor.fixture.places-per-person system
+ * properties. Also holds the filter ids, random requests and latency summary shared by the unit
+ * tests, benchmarks and load tests.
+ */
+class LorGraphFixture {
+
+	// Ids the UI offers as filters
+	static final String[] CHARACTERS = {"frod", "sams", "ganda", "arag", "pipp", "merr", "goll",
+			"gimli", "bilb", "lego", "saur", "fara", "saru", "boro", "theod", "elro", "eome", "treeb",
+			"tomb", "dene"};
+	static final String[] KINDS = {"animal", "orcs", "hobbit", "ents", "men", "dwarf", "ainur",
+			"elves"};
+	static final String[] PLACES = {"andu", "bage", "bree", "dtow", "edor", "gond", "helm", "hton",
+			"isen", "lori", "loth", "mdoo", "mirk", "mord", "morg", "mori", "nume", "oldf", "orth",
+			"osgi", "rive", "roha", "shir", "tiri"};
+
+	static final List<String> DDL = Arrays.asList(
+			"CREATE TABLE Ontology (OntologyId STRING(1024) NOT NULL, Type STRING(1024), Label STRING(1024), FreqSum INT64, Subtype STRING(1024), Gender   STRING(1024)) PRIMARY KEY(OntologyId)",
+			"CREATE TABLE Reference (IdSource STRING(1024) NOT NULL, IdTarget STRING(1024) NOT NULL, Times INT64, Type STRING(1024)) PRIMARY KEY(IdSource,IdTarget)",
+			"CREATE TABLE Persons (Id STRING(1024) NOT NULL, Label STRING(1024), FreqSum INT64, Subtype STRING(1024), Gender STRING(1024), FOREIGN KEY (Id) REFERENCES Ontology(OntologyId)) PRIMARY KEY(Id)",
+			"CREATE TABLE Places (Id STRING(1024) NOT NULL, Label STRING(1024), FreqSum INT64, FOREIGN KEY (Id) REFERENCES Ontology(OntologyId)) PRIMARY KEY(Id)",
+			"CREATE TABLE PlacesPersons (IdPlace STRING(1024) NOT NULL, IdPerson STRING(1024) NOT NULL, FreqSum INT64, FOREIGN KEY (IdPlace) REFERENCES Places(Id), FOREIGN KEY (IdPerson) REFERENCES Persons(Id)) PRIMARY KEY(IdPlace, IdPerson)",
+			"CREATE OR REPLACE PROPERTY GRAPH LoRGraph"
+					+ " NODE TABLES (Persons, Places)"
+					+ " EDGE TABLES ("
+					+ " Reference SOURCE KEY (IdSource) REFERENCES Persons (Id) DESTINATION KEY (IdTarget) REFERENCES Persons (Id),"
+					+ " PlacesPersons SOURCE KEY (IdPerson) REFERENCES Persons (Id) DESTINATION KEY (IdPlace) REFERENCES Places (Id))");
+
+	static final int PERSONS = Integer.getInteger("lor.fixture.persons", 2000);
+	static final int REFERENCES = Integer.getInteger("lor.fixture.references", 10);
+	static final int PLACES_PER_PERSON = Integer.getInteger("lor.fixture.places-per-person", 2);
+
+	private static final int BATCH = 1000;
+
+	// Recreates the database so every run starts from the same graph
+	static void create(Spanner spanner, String project, String instance, String database) throws Exception {
+		InstanceAdminClient instances = spanner.getInstanceAdminClient();
+		try {
+			instances.createInstance(InstanceInfo.newBuilder(InstanceId.of(project, instance))
+					.setInstanceConfigId(InstanceConfigId.of(project, "emulator-config"))
+					.setDisplayName(instance)
+					.setNodeCount(1)
+					.build()).get();
+		} catch (Exception e) {
+			if (!alreadyExists(e)) {
+				throw e;
+			}
+		}
+		DatabaseAdminClient databases = spanner.getDatabaseAdminClient();
+		try {
+			databases.dropDatabase(instance, database);
+		} catch (SpannerException e) {
+			if (e.getErrorCode() != ErrorCode.NOT_FOUND) {
+				throw e;
+			}
+		}
+		databases.createDatabase(instance, database, DDL).get();
+	}
+
+	// A request with a random non-empty subset of each filter, as the UI sends them
+	static LorEngineRequest randomRequest(Random random) {
+		LorEngineRequest req = new LorEngineRequest();
+		req.setCharacters(randomSubset(random, CHARACTERS));
+		req.setKinds(randomSubset(random, KINDS));
+		req.setPlaces(randomSubset(random, PLACES));
+		int min = LorEngineRequest.MIN_STRENGTH + random.nextInt(20);
+		req.setMinStrength(min);
+		req.setMaxStrength(min + random.nextInt(LorEngineRequest.MAX_STRENGTH - min + 1));
+		return req;
+	}
+
+	static String[] randomSubset(Random random, String[] values) {
+		List<String> list = new ArrayList<>(Arrays.asList(values));
+		Collections.shuffle(list, random);
+		return list.subList(0, 1 + random.nextInt(values.length)).toArray(new String[0]);
+	}
+
+	static String personId(int i) {
+		return i < CHARACTERS.length ? CHARACTERS[i] : "p" + i;
+	}
+
+	static void seed(DatabaseClient client) {
+		Random random = new Random(42);
+		String[] places = PLACES;
+		String[] kinds = KINDS;
+		List<Mutation> ontology = new ArrayList<>();
+		List<Mutation> nodes = new ArrayList<>();
+		for (String place : places) {
+			ontology.add(Mutation.newInsertBuilder("Ontology")
+					.set("OntologyId").to(place).set("Type").to("place").set("Label").to(place)
+					.build());
+			nodes.add(Mutation.newInsertBuilder("Places")
+					.set("Id").to(place).set("Label").to(place).set("FreqSum").to(1)
+					.build());
+		}
+		for (int i = 0; i < PERSONS; i++) {
+			String id = personId(i);
+			String kind = kinds[random.nextInt(kinds.length)];
+			ontology.add(Mutation.newInsertBuilder("Ontology")
+					.set("OntologyId").to(id).set("Type").to("per").set("Label").to(id).set("Subtype").to(kind)
+					.build());
+			nodes.add(Mutation.newInsertBuilder("Persons")
+					.set("Id").to(id).set("Label").to(id).set("FreqSum").to(1).set("Subtype").to(kind)
+					.build());
+		}
+		write(client, ontology);
+		write(client, nodes);
+
+		List<Mutation> edges = new ArrayList<>();
+		for (int i = 0; i < PERSONS; i++) {
+			Set<Integer> targets = new HashSet<>();
+			for (int r = 0; r < REFERENCES; r++) {
+				// Skewed towards the first persons, like references to the main characters
+				int t = (int) (PERSONS * Math.pow(random.nextDouble(), 3));
+				if (t != i && targets.add(t)) {
+					edges.add(Mutation.newInsertBuilder("Reference")
+							.set("IdSource").to(personId(i)).set("IdTarget").to(personId(t))
+							.set("Times").to(1 + random.nextInt(LorEngineRequest.MAX_STRENGTH))
+							.set("Type").to("per")
+							.build());
+				}
+			}
+			Set<Integer> visited = new HashSet<>();
+			for (int p = 0; p < PLACES_PER_PERSON; p++) {
+				int place = random.nextInt(places.length);
+				if (visited.add(place)) {
+					edges.add(Mutation.newInsertBuilder("PlacesPersons")
+							.set("IdPlace").to(places[place]).set("IdPerson").to(personId(i)).set("FreqSum").to(1)
+							.build());
+				}
+			}
+		}
+		write(client, edges);
+	}
+
+	private static void write(DatabaseClient client, List<Mutation> mutations) {
+		for (int i = 0; i < mutations.size(); i += BATCH) {
+			client.write(mutations.subList(i, Math.min(i + BATCH, mutations.size())));
+		}
+	}
+
+	private static boolean alreadyExists(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof SpannerException && ((SpannerException) t).getErrorCode() == ErrorCode.ALREADY_EXISTS) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Median and 99th percentile of the latencies in nanoseconds
+	static String summary(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return String.format("p50=%.2f ms p99=%.2f ms", sorted[sorted.length / 2] / 1e6,
+				p99(sorted) / 1e6);
+	}
+
+	static long p99(long[] sorted) {
+		return sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+	}
+}
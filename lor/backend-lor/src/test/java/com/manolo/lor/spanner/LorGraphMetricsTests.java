@@ -0,0 +1,77 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+class LorGraphMetricsTests {
+
+	static Map<String, Node> metrics() {
+		LorGraph graph = LorGraphTests.graph();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		LorGraphMetrics metrics;
+		try {
+			metrics = LorGraphMetrics.compute(graph, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+		Map<String, Node> nodes = new LinkedHashMap<>();
+		for (String id : new String[] {"frod", "sams", "ganda", "arag", "lego", "goll"}) {
+			nodes.put(id, new Node(id, id, "x"));
+		}
+		metrics.decorate(nodes.values());
+		return nodes;
+	}
+
+	@Test
+	void weightedDegreeCountsBothDirections() {
+		Map<String, Node> nodes = metrics();
+		assertEquals(120L, nodes.get("frod").getWeightedDegree());
+		assertEquals(105L, nodes.get("sams").getWeightedDegree());
+		assertEquals(300L, nodes.get("lego").getWeightedDegree());
+	}
+
+	@Test
+	void pageRankSumsToOne() {
+		Map<String, Node> nodes = metrics();
+		double sum = 0;
+		for (Node n : nodes.values()) {
+			sum += n.getPageRank();
+		}
+		assertEquals(1.0, sum, 1e-6);
+		assertTrue(nodes.get("frod").getPageRank() > nodes.get("ganda").getPageRank());
+		assertTrue(nodes.get("sams").getPageRank() > nodes.get("goll").getPageRank());
+	}
+
+	@Test
+	void communitiesFollowComponents() {
+		Map<String, Node> nodes = metrics();
+		String fellowship = nodes.get("frod").getCommunity();
+		assertEquals(fellowship, nodes.get("sams").getCommunity());
+		assertEquals(fellowship, nodes.get("ganda").getCommunity());
+		assertEquals(fellowship, nodes.get("goll").getCommunity());
+		assertEquals(nodes.get("arag").getCommunity(), nodes.get("lego").getCommunity());
+		assertNotEquals(fellowship, nodes.get("arag").getCommunity());
+	}
+}
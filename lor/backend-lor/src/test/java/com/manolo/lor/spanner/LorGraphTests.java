@@ -0,0 +1,137 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.spanner.Statement;
+import com.google.cloud.spanner.Struct;
+
+class LorGraphTests {
+
+	// frod -> sams (100), frod -> ganda (20), arag -> lego (300), sams -> goll (5)
+	static LorGraph graph() {
+		return new LorGraph.Builder()
+				.addPerson("frod", "Frodo", "hobbit")
+				.addPerson("sams", "Sam", "hobbit")
+				.addPerson("ganda", "Gandalf", "ainur")
+				.addPerson("arag", "Aragorn", "men")
+				.addPerson("lego", "Legolas", "elves")
+				.addPerson("goll", "Gollum", "hobbit")
+				.addReference("frod", "sams", 100)
+				.addReference("frod", "ganda", 20)
+				.addReference("arag", "lego", 300)
+				.addReference("sams", "goll", 5)
+				.addPlacePerson("shir", "frod")
+				.addPlacePerson("shir", "sams")
+				.addPlacePerson("mord", "sams")
+				.addPlacePerson("mord", "goll")
+				.addPlacePerson("roha", "arag")
+				.addPlacePerson("roha", "lego")
+				.addPlacePerson("rive", "ganda")
+				.build();
+	}
+
+	static LorEngineRequest all() {
+		LorEngineRequest req = new LorEngineRequest();
+		req.setCharacters(LorGraphFixture.CHARACTERS);
+		req.setKinds(LorGraphFixture.KINDS);
+		req.setPlaces(LorGraphFixture.PLACES);
+		req.setMinStrength(LorEngineRequest.MIN_STRENGTH);
+		req.setMaxStrength(LorEngineRequest.MAX_STRENGTH);
+		return req;
+	}
+
+	static Set<String> edges(LorEngineResponse res) {
+		Set<String> edges = new TreeSet<>();
+		for (Edge e : res.getEdges()) {
+			edges.add(e.getFrom() + ">" + e.getTo());
+		}
+		return edges;
+	}
+
+	@Test
+	void noFilters() {
+		LorEngineResponse res = graph().run(all());
+		assertEquals(Set.of("frod>sams", "frod>ganda", "arag>lego", "sams>goll"), edges(res));
+		assertEquals(6, res.getNodes().size());
+	}
+
+	@Test
+	void strengthFilter() {
+		LorEngineRequest req = all();
+		req.setMinStrength(10);
+		req.setMaxStrength(200);
+		assertEquals(Set.of("frod>sams", "frod>ganda"), edges(graph().run(req)));
+	}
+
+	@Test
+	void charactersMatchEitherEnd() {
+		LorEngineRequest req = all();
+		req.setCharacters(new String[] {"sams"});
+		assertEquals(Set.of("frod>sams", "sams>goll"), edges(graph().run(req)));
+	}
+
+	@Test
+	void kindsMustMatchBothEnds() {
+		LorEngineRequest req = all();
+		req.setKinds(new String[] {"hobbit"});
+		LorEngineResponse res = graph().run(req);
+		assertEquals(Set.of("frod>sams", "sams>goll"), edges(res));
+		assertEquals(3, res.getNodes().size());
+	}
+
+	@Test
+	void placesMustBeShared() {
+		LorEngineRequest req = all();
+		req.setPlaces(new String[] {"mord", "roha"});
+		assertEquals(Set.of("arag>lego", "sams>goll"), edges(graph().run(req)));
+	}
+
+	static Struct row(String from, String fromSubtype, String to, String toSubtype) {
+		return Struct.newBuilder()
+				.set("from_id").to(from)
+				.set("from_label").to("Person")
+				.set("from_subtype").to(fromSubtype)
+				.set("to_id").to(to)
+				.set("to_label").to("Person")
+				.set("to_subtype").to(toSubtype)
+				.build();
+	}
+
+	// The GQL query returns sams -> goll once per place they share; both engines send it once
+	@Test
+	void gqlEdgesAreDeduplicatedLikeInMemory() {
+		LorEngineService.GraphCollector collector = new LorEngineService.GraphCollector();
+		collector.add(row("sams", "hobbit", "goll", "hobbit"));
+		collector.add(row("sams", "hobbit", "goll", "hobbit"));
+		collector.add(row("frod", "hobbit", "sams", "hobbit"));
+		LorEngineResponse gql = collector.toResponse(Statement.of("GRAPH LoRGraph"));
+
+		LorEngineRequest req = all();
+		req.setCharacters(new String[] {"sams"});
+		LorEngineResponse memory = graph().run(req);
+
+		assertEquals(2, gql.getEdges().size());
+		assertEquals(memory.getEdges().size(), gql.getEdges().size());
+		assertEquals(edges(memory), edges(gql));
+		assertEquals(3, gql.getNodes().size());
+	}
+}
@@ -0,0 +1,91 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Closed-loop HTTP load generator for the load tests: a number of concurrent clients each send
+ * a fixed number of POST requests back to back, and the latencies of all of them are returned.
+ */
+class LorLoadDriver {
+
+	interface Payload {
+		String next(Random random) throws Exception;
+	}
+
+	// Returns the sorted latencies in nanoseconds; failed requests count as Long.MAX_VALUE
+	static long[] drive(String url, int concurrency, int requestsPerClient, Payload payload) throws Exception {
+		ExecutorService io = Executors.newFixedThreadPool(concurrency);
+		HttpClient client = HttpClient.newBuilder()
+				.executor(io)
+				.connectTimeout(Duration.ofSeconds(10))
+				.build();
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		AtomicInteger failures = new AtomicInteger();
+		List<Future<long[]>> futures = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int c = 0; c < concurrency; c++) {
+			Random random = new Random(c);
+			futures.add(clients.submit(() -> {
+				long[] latencies = new long[requestsPerClient];
+				for (int i = 0; i < requestsPerClient; i++) {
+					HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+							.header("Content-Type", "application/json")
+							.timeout(Duration.ofSeconds(30))
+							.POST(HttpRequest.BodyPublishers.ofString(payload.next(random)))
+							.build();
+					long t = System.nanoTime();
+					try {
+						HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+						latencies[i] = response.statusCode() == 200 ? System.nanoTime() - t : Long.MAX_VALUE;
+					} catch (Exception e) {
+						latencies[i] = Long.MAX_VALUE;
+					}
+					if (latencies[i] == Long.MAX_VALUE) {
+						failures.incrementAndGet();
+					}
+				}
+				return latencies;
+			}));
+		}
+		long[] all = new long[concurrency * requestsPerClient];
+		int n = 0;
+		for (Future<long[]> future : futures) {
+			for (long latency : future.get()) {
+				all[n++] = latency;
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		clients.shutdown();
+		io.shutdown();
+		Arrays.sort(all);
+		System.out.println(String.format("%s concurrency=%d throughput=%.1f req/s failures=%d %s",
+				url, concurrency, all.length / seconds, failures.get(), LorGraphFixture.summary(all)));
+		return all;
+	}
+}
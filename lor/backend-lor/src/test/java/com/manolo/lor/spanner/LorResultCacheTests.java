@@ -0,0 +1,77 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+class LorResultCacheTests {
+
+	private static LorEngineRequest request(String[] characters, int minStrength) {
+		LorEngineRequest req = new LorEngineRequest();
+		req.setCharacters(characters);
+		req.setKinds(new String[] {"hobbit", "men"});
+		req.setPlaces(new String[] {"shir"});
+		req.setMinStrength(minStrength);
+		req.setMaxStrength(LorEngineRequest.MAX_STRENGTH);
+		return req;
+	}
+
+	@Test
+	void equivalentRequestsShareKey() {
+		String a = request(new String[] {"frod", "sams", "frod"}, 1).canonical().cacheKey();
+		String b = request(new String[] {"sams", "frod"}, 1).canonical().cacheKey();
+		String c = request(new String[] {"sams", "frod"}, 2).canonical().cacheKey();
+		assertEquals(a, b);
+		assertNotEquals(a, c);
+	}
+
+	@Test
+	void evictsLeastRecentlyUsed() {
+		LorResultCache cache = new LorResultCache(2, 60);
+		LorEngineResponse first = new LorEngineResponse();
+		cache.put("a", first);
+		cache.put("b", new LorEngineResponse());
+		assertSame(first, cache.get("a"));
+		cache.put("c", new LorEngineResponse());
+		assertNull(cache.get("b"));
+		assertSame(first, cache.get("a"));
+		assertEquals(2, cache.size());
+		assertEquals(2L, cache.stats().get("hits"));
+		assertEquals(1L, cache.stats().get("evictions"));
+	}
+
+	@Test
+	void invalidateDropsEverything() {
+		LorResultCache cache = new LorResultCache(10, 60);
+		cache.put("a", new LorEngineResponse());
+		cache.put("b", new LorEngineResponse());
+		assertEquals(2, cache.invalidate());
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void disabledWithoutTtl() {
+		LorResultCache cache = new LorResultCache(10, 0);
+		cache.put("a", new LorEngineResponse());
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.size());
+	}
+}
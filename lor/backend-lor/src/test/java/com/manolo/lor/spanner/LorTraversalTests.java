@@ -0,0 +1,168 @@
+// Copyright 2021 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.manolo.lor.spanner;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.cloud.spanner.Struct;
+
+class LorTraversalTests {
+
+	// frod -> sams (100), frod -> ganda (20), ganda -> saru (50), saru -> saur (10),
+	// sams -> goll (5), goll -> saur (40)
+	static final Object[][] EDGES = {
+			{"frod", "sams", 100}, {"frod", "ganda", 20}, {"ganda", "saru", 50},
+			{"saru", "saur", 10}, {"sams", "goll", 5}, {"goll", "saur", 40}};
+
+	// Answers the hop query from EDGES instead of Spanner, with the same per node limit
+	static class FakeTraversal extends LorTraversalService {
+		int queries;
+
+		@Override
+		List<Struct> queryHop(Set<String> frontier, int fanOut, int minStrength) {
+			queries++;
+			List<Struct> rows = new ArrayList<>();
+			for (String id : frontier) {
+				List<Struct> edges = new ArrayList<>();
+				for (Object[] e : EDGES) {
+					int times = (Integer) e[2];
+					if ((id.equals(e[0]) || id.equals(e[1])) && times >= minStrength) {
+						edges.add(row(id, (String) e[0], (String) e[1], times));
+					}
+				}
+				edges.sort(STRONGEST_FIRST);
+				rows.addAll(edges.subList(0, Math.min(fanOut, edges.size())));
+			}
+			rows.sort(STRONGEST_FIRST);
+			return rows;
+		}
+	}
+
+	static final Comparator<Struct> STRONGEST_FIRST =
+			Comparator.comparingLong((Struct r) -> r.getLong("times")).reversed();
+
+	static Struct row(String frontierId, String from, String to, long times) {
+		return Struct.newBuilder()
+				.set("frontier_id").to(frontierId)
+				.set("from_id").to(from).set("from_label").to(from).set("from_subtype").to("x")
+				.set("to_id").to(to).set("to_label").to(to).set("to_subtype").to("x")
+				.set("times").to(times)
+				.build();
+	}
+
+	// Tree in which every node has MAX_FAN_OUT children, so each hop multiplies the frontier.
+	// Ignores fanOut, like a query that does not apply the limit.
+	static class WideTraversal extends LorTraversalService {
+		int largestFrontier;
+
+		@Override
+		List<Struct> queryHop(Set<String> frontier, int fanOut, int minStrength) {
+			largestFrontier = Math.max(largestFrontier, frontier.size());
+			List<Struct> rows = new ArrayList<>();
+			for (String id : frontier) {
+				for (int i = 0; i < MAX_FAN_OUT; i++) {
+					rows.add(row(id, id, id + "." + i, 1));
+				}
+			}
+			return rows;
+		}
+	}
+
+	static Set<String> nodes(LorEngineResponse res) {
+		Set<String> ids = new TreeSet<>();
+		for (Node n : res.getNodes()) {
+			ids.add(n.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	void neighborhoodOneQueryPerHop() {
+		FakeTraversal traversal = new FakeTraversal();
+		LorEngineResponse res = traversal.neighborhood("frod", 2, 10, 1);
+		assertEquals(Set.of("frod", "sams", "ganda", "saru", "goll"), nodes(res));
+		assertEquals(4, res.getEdges().size());
+		assertEquals(2, traversal.queries);
+	}
+
+	@Test
+	void fanOutKeepsStrongestEdges() {
+		LorEngineResponse res = new FakeTraversal().neighborhood("frod", 1, 1, 1);
+		assertEquals(Set.of("frod", "sams"), nodes(res));
+	}
+
+	@Test
+	void fanOutIsEnforcedWhenQueryReturnsMore() {
+		LorEngineResponse res = new WideTraversal().neighborhood("root", 2, 3, 1);
+		assertEquals(1 + 3 + 3 * 3, res.getNodes().size());
+	}
+
+	@Test
+	void minStrengthFiltersEdges() {
+		LorEngineResponse res = new FakeTraversal().neighborhood("frod", 3, 10, 30);
+		assertEquals(Set.of("frod", "sams"), nodes(res));
+	}
+
+	@Test
+	void shortestPathIgnoresDirection() {
+		LorEngineResponse res = new FakeTraversal().shortestPath("sams", "saru", 4, 10, 1);
+		assertEquals(Set.of("sams", "frod", "ganda", "saru"), nodes(res));
+		assertEquals(3, res.getEdges().size());
+	}
+
+	@Test
+	void noPathWithinHops() {
+		LorEngineResponse res = new FakeTraversal().shortestPath("frod", "saur", 2, 10, 1);
+		assertTrue(res.getNodes().isEmpty());
+	}
+
+	@Test
+	void shortestPathStopsAtMaxNodes() {
+		WideTraversal traversal = new WideTraversal();
+		LorEngineResponse res = traversal.shortestPath("root", "missing", LorTraversalService.MAX_HOPS,
+				LorTraversalService.MAX_FAN_OUT, 1);
+		assertTrue(res.getNodes().isEmpty());
+		assertTrue(traversal.largestFrontier <= LorTraversalService.MAX_NODES,
+				"frontier of " + traversal.largestFrontier + " nodes");
+	}
+
+	@Test
+	void neighborhoodStopsAtMaxNodes() {
+		WideTraversal traversal = new WideTraversal();
+		LorEngineResponse res = traversal.neighborhood("root", LorTraversalService.MAX_HOPS,
+				LorTraversalService.MAX_FAN_OUT, 1);
+		assertEquals(LorTraversalService.MAX_NODES, res.getNodes().size());
+		assertTrue(traversal.largestFrontier <= LorTraversalService.MAX_NODES,
+				"frontier of " + traversal.largestFrontier + " nodes");
+	}
+
+	@Test
+	void rejectsUnboundedRequests() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new FakeTraversal().neighborhood("frod", LorTraversalService.MAX_HOPS + 1, 10, 1));
+		assertThrows(IllegalArgumentException.class,
+				() -> new FakeTraversal().neighborhood("frod", 1, LorTraversalService.MAX_FAN_OUT + 1, 1));
+	}
+}